@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.text.Selection;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the undo history of {@link NoteEditor}. The history watches an editable text the way it
+ * watches the editor's, so the edits are made directly on the text.
+ */
+public class EditHistoryTest extends TestCase {
+
+    // A budget that holds all the edits of a test
+    private static final int LARGE_BUDGET = 1024 * 1024;
+
+    private SpannableStringBuilder mText;
+    private EditHistory mHistory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        setUpHistory("", LARGE_BUDGET);
+    }
+
+    // Starts a history with the given budget on a text, as the editor does once a note is loaded.
+    private void setUpHistory(String text, int budget) {
+        mText = new SpannableStringBuilder(text);
+        mHistory = new EditHistory(budget);
+        mText.setSpan(mHistory, 0, mText.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+    }
+
+    // Types a string one character at a time at the end of the text, as a keyboard does.
+    private void type(String typed) {
+        for (int i = 0; i < typed.length(); i++) {
+            mText.append(typed.charAt(i));
+        }
+    }
+
+    /*
+     * Tests that typing is undone a run at a time, that a line break ends a run, and that the
+     * undone edits can be redone.
+     */
+    public void testTypingRuns() {
+        type("Hello world\n");
+        type("Second line");
+        assertEquals("Hello world\nSecond line", mText.toString());
+
+        assertTrue(mHistory.undo(mText));
+        assertEquals("Hello world\n", mText.toString());
+        assertEquals(mText.length(), Selection.getSelectionEnd(mText));
+        assertTrue(mHistory.undo(mText));
+        assertEquals("", mText.toString());
+        assertFalse(mHistory.canUndo());
+        assertFalse(mHistory.undo(mText));
+
+        assertTrue(mHistory.redo(mText));
+        assertTrue(mHistory.redo(mText));
+        assertEquals("Hello world\nSecond line", mText.toString());
+        assertFalse(mHistory.canRedo());
+    }
+
+    /*
+     * Tests that backspaces, forward deletes and an input method composing a word are merged
+     * into a single edit each.
+     */
+    public void testMergedChanges() {
+        setUpHistory("The quick brown fox", LARGE_BUDGET);
+
+        // Backspaces over "brown"
+        for (int end = 15; end > 10; end--) {
+            mText.delete(end - 1, end);
+        }
+        assertEquals("The quick  fox", mText.toString());
+
+        // Ends the run by undoing and redoing it, and deletes " fox" forward
+        mHistory.undo(mText);
+        mHistory.redo(mText);
+        for (int i = 0; i < 4; i++) {
+            mText.delete(10, 11);
+        }
+        assertEquals("The quick ", mText.toString());
+
+        // Ends the run again, and composes "red", replacing the word as it grows
+        mHistory.undo(mText);
+        mHistory.redo(mText);
+        mText.insert(10, "r");
+        mText.replace(10, 11, "re");
+        mText.replace(10, 12, "red");
+        assertEquals("The quick red", mText.toString());
+
+        assertTrue(mHistory.undo(mText));
+        assertEquals("The quick ", mText.toString());
+        assertTrue(mHistory.undo(mText));
+        assertEquals("The quick  fox", mText.toString());
+        assertTrue(mHistory.undo(mText));
+        assertEquals("The quick brown fox", mText.toString());
+        assertFalse(mHistory.canUndo());
+    }
+
+    /*
+     * Tests that a new edit drops the edits that could be redone.
+     */
+    public void testEditDropsRedo() {
+        type("one\n");
+        type("two");
+        mHistory.undo(mText);
+        assertTrue(mHistory.canRedo());
+
+        type("three");
+        assertFalse(mHistory.canRedo());
+        assertEquals("one\nthree", mText.toString());
+        mHistory.undo(mText);
+        assertEquals("one\n", mText.toString());
+    }
+
+    /*
+     * Tests that the history stays within its budget by dropping the oldest edits, and that an
+     * edit larger than the budget clears it.
+     */
+    public void testBudget() {
+        int budget = 4096;
+        setUpHistory("", budget);
+
+        StringBuilder line = new StringBuilder();
+        while (line.length() < 99) {
+            line.append('x');
+        }
+        line.append('\n');
+        for (int i = 0; i < 100; i++) {
+            mText.append(line);
+            assertTrue(mHistory.getSizeBytes() <= budget);
+        }
+
+        // Only the latest lines can be undone
+        int undone = 0;
+        while (mHistory.undo(mText)) {
+            undone++;
+        }
+        assertTrue(undone > 0);
+        assertTrue(undone < 100);
+        assertEquals((100 - undone) * line.length(), mText.length());
+
+        // An edit larger than the budget can't be undone
+        mHistory.redo(mText);
+        StringBuilder paste = new StringBuilder();
+        while (paste.length() < budget) {
+            paste.append(line);
+        }
+        mText.append(paste);
+        assertFalse(mHistory.canUndo());
+        assertFalse(mHistory.canRedo());
+        assertEquals(0, mHistory.getSizeBytes());
+    }
+
+    /*
+     * Tests that changes made while not recording, such as loading a note, aren't recorded.
+     */
+    public void testNotRecording() {
+        mHistory.setRecording(false);
+        mText.replace(0, mText.length(), "A loaded note");
+        mHistory.setRecording(true);
+        assertFalse(mHistory.canUndo());
+
+        type(" edited");
+        mHistory.undo(mText);
+        assertEquals("A loaded note", mText.toString());
+    }
+}
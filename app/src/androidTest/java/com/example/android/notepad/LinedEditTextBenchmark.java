@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import android.view.View;
+
+import java.util.Arrays;
+
+/**
+ * This class measures the time it takes {@link NoteEditor.LinedEditText} to draw a frame of a
+ * 20,000-line note, scrolled to its middle. The frame is drawn in software, into a bitmap the
+ * size of a phone screen, so that the timings only depend on the drawing code. As a baseline,
+ * the same frame is timed with every line of the note underlined, as the editor used to do.
+ * The timings are reported to the log under the "NotePadBenchmark" tag.
+ *
+ * Run this class on its own:
+ * adb shell am instrument -w -e class com.example.android.notepad.LinedEditTextBenchmark
+ *     com.example.android.notepad.tests/androidx.test.runner.AndroidJUnitRunner
+ */
+public class LinedEditTextBenchmark extends InstrumentationTestCase {
+
+    // The log tag for benchmark results.
+    private static final String TAG = "NotePadBenchmark";
+
+    // The number of lines of the note.
+    private static final int LINES = 20000;
+
+    // The size of the editor, in pixels.
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+
+    // The number of frames timed, after as many to warm up.
+    private static final int FRAMES = 100;
+
+    /*
+     * Times frames of the editor with only the visible lines underlined, and with all of them.
+     */
+    public void testDrawLargeNote() {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                drawLargeNote();
+            }
+        });
+    }
+
+    // Lays out the editor on a large note, and times its frames. Runs on the UI thread.
+    private void drawLargeNote() {
+        StringBuilder text = new StringBuilder();
+        for (int line = 0; line < LINES; line++) {
+            text.append("Line ").append(line).append(" of a very long note\n");
+        }
+
+        final NoteEditor.LinedEditText editor =
+                new NoteEditor.LinedEditText(getInstrumentation().getTargetContext(), null);
+        editor.setText(text);
+        editor.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        editor.layout(0, 0, WIDTH, HEIGHT);
+        assertTrue(editor.getLineCount() >= LINES);
+
+        // Scrolls to the middle of the note
+        editor.scrollTo(0, editor.getLayout().getLineTop(LINES / 2));
+
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+
+        // The baseline: the underlines of every line of the note, as the editor used to draw
+        // them, without the text
+        final Rect r = new Rect();
+        final Paint paint = new Paint();
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setStrokeWidth(1.5f);
+        long[] allLines = timeFrames(canvas, editor, new Drawing() {
+            @Override
+            public void draw(Canvas canvas) {
+                int count = editor.getLineCount();
+                for (int i = 0; i < count; i++) {
+                    int baseline = editor.getLineBounds(i, r);
+                    canvas.drawLine(r.left, baseline + 1, r.right, baseline + 1, paint);
+                }
+            }
+        });
+
+        // The editor's own drawing: the visible underlines, and the text
+        long[] culled = timeFrames(canvas, editor, new Drawing() {
+            @Override
+            public void draw(Canvas canvas) {
+                editor.draw(canvas);
+            }
+        });
+
+        Log.i(TAG, "draw " + LINES + " lines: all underlines median " + median(allLines)
+                + " us, max " + allLines[FRAMES - 1] + " us; visible underlines and text median "
+                + median(culled) + " us, max " + culled[FRAMES - 1] + " us");
+        bitmap.recycle();
+    }
+
+    /*
+     * Draws a frame of the editor.
+     */
+    private interface Drawing {
+        void draw(Canvas canvas);
+    }
+
+    // Times frames drawn into the canvas, scrolled as the editor is.
+    // Returns the sorted frame times, in microseconds.
+    private static long[] timeFrames(Canvas canvas, View editor, Drawing drawing) {
+        long[] times = new long[FRAMES];
+        for (int frame = -FRAMES; frame < FRAMES; frame++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            canvas.save();
+            canvas.translate(-editor.getScrollX(), -editor.getScrollY());
+            drawing.draw(canvas);
+            canvas.restore();
+            if (frame >= 0) {
+                times[frame] = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+            }
+        }
+        Arrays.sort(times);
+        return times;
+    }
+
+    // Returns the median of sorted times.
+    private static long median(long[] times) {
+        return times[times.length / 2];
+    }
+}
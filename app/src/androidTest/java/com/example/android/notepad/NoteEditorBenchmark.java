@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.app.Activity;
+import android.app.Application;
+import android.app.Instrumentation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import android.view.ViewTreeObserver;
+import android.widget.EditText;
+
+import java.util.Arrays;
+
+/**
+ * This class measures how long it takes to open a large note in {@link NoteEditor}: the time to
+ * its first frame, when the user first sees the editor, and the time until the note's text is
+ * shown. It reports its timings to the log under the "NotePadBenchmark" tag, and only fails if
+ * the editor doesn't show the note.
+ *
+ * The editor runs against the application's own provider, so the note is created for the
+ * benchmark and deleted for good afterwards. Run this class on its own:
+ * adb shell am instrument -w -e class com.example.android.notepad.NoteEditorBenchmark
+ *     com.example.android.notepad.tests/androidx.test.runner.AndroidJUnitRunner
+ */
+public class NoteEditorBenchmark extends InstrumentationTestCase {
+
+    // The log tag for benchmark results.
+    private static final String TAG = "NotePadBenchmark";
+
+    // The number of times the editor is opened.
+    private static final int OPENS = 10;
+
+    // The longest the editor may take to show the note.
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    /*
+     * Opens a note of 200,000 characters, as NotesList does, and times the first frame and the
+     * display of the text.
+     */
+    public void testOpenLargeNote() throws InterruptedException {
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 200000) {
+            body.append("A line of a long note, to fill the editor.\n");
+        }
+        ContentResolver resolver = getInstrumentation().getTargetContext().getContentResolver();
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Benchmark");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body.toString());
+        Uri noteUri = resolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        try {
+            long[] firstFrame = new long[OPENS];
+            long[] shown = new long[OPENS];
+            for (int open = 0; open < OPENS; open++) {
+                long[] times = openEditor(noteUri, body.length());
+                firstFrame[open] = times[0];
+                shown[open] = times[1];
+            }
+            Arrays.sort(firstFrame);
+            Arrays.sort(shown);
+            Log.i(TAG, "open " + body.length() + " chars x " + OPENS + ": first frame median "
+                    + firstFrame[OPENS / 2] + " ms, max " + firstFrame[OPENS - 1]
+                    + " ms; text shown median " + shown[OPENS / 2] + " ms, max "
+                    + shown[OPENS - 1] + " ms");
+        } finally {
+            long noteId = ContentUris.parseId(noteUri);
+            resolver.delete(noteUri, null, null);
+            resolver.delete(ContentUris.withAppendedId(NotePad.Notes.TRASH_ID_URI_BASE, noteId),
+                    null, null);
+        }
+    }
+
+    /*
+     * Opens the editor on a note and closes it again.
+     *
+     * @return The milliseconds from the start of the activity to its first frame, and to the
+     * display of the note's text.
+     */
+    private long[] openEditor(Uri noteUri, final int length) throws InterruptedException {
+        final Instrumentation instrumentation = getInstrumentation();
+        final Application application =
+                (Application) instrumentation.getTargetContext().getApplicationContext();
+        final long[] firstFrame = new long[] { -1 };
+
+        // Times the first draw of the editor's window, from the creation of the activity on
+        Application.ActivityLifecycleCallbacks callbacks = new LifecycleCallbacks() {
+            @Override
+            public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+                final ViewTreeObserver observer =
+                        activity.getWindow().getDecorView().getViewTreeObserver();
+                observer.addOnDrawListener(new ViewTreeObserver.OnDrawListener() {
+                    @Override
+                    public void onDraw() {
+                        synchronized (firstFrame) {
+                            if (firstFrame[0] < 0) {
+                                firstFrame[0] = SystemClock.uptimeMillis();
+                                firstFrame.notifyAll();
+                            }
+                        }
+                    }
+                });
+            }
+        };
+        application.registerActivityLifecycleCallbacks(callbacks);
+
+        Intent intent = new Intent(Intent.ACTION_EDIT, noteUri);
+        intent.setClassName(instrumentation.getTargetContext(), NoteEditor.class.getName());
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        long start = SystemClock.uptimeMillis();
+        final Activity editor = instrumentation.startActivitySync(intent);
+        try {
+            // Waits for the text to be shown
+            final EditText text = (EditText) editor.findViewById(R.id.note);
+            final boolean[] loaded = new boolean[1];
+            long shown;
+            while (true) {
+                instrumentation.runOnMainSync(new Runnable() {
+                    @Override
+                    public void run() {
+                        loaded[0] = text.length() == length;
+                    }
+                });
+                shown = SystemClock.uptimeMillis();
+                if (loaded[0]) {
+                    break;
+                }
+                assertTrue("The note wasn't shown", shown - start < TIMEOUT_MILLIS);
+                SystemClock.sleep(1);
+            }
+
+            synchronized (firstFrame) {
+                while (firstFrame[0] < 0) {
+                    firstFrame.wait(TIMEOUT_MILLIS);
+                    assertTrue("The editor wasn't drawn",
+                            SystemClock.uptimeMillis() - start < TIMEOUT_MILLIS);
+                }
+            }
+            return new long[] { firstFrame[0] - start, shown - start };
+        } finally {
+            application.unregisterActivityLifecycleCallbacks(callbacks);
+            editor.finish();
+            instrumentation.waitForIdleSync();
+        }
+    }
+
+    /*
+     * Activity lifecycle callbacks that do nothing, to override one at a time.
+     */
+    private static class LifecycleCallbacks implements Application.ActivityLifecycleCallbacks {
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+        }
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.app.Instrumentation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.widget.EditText;
+
+/**
+ * Tests {@link NoteEditor} across pauses, which save the note and load it again. The editor runs
+ * against the application's own provider, so the note is created for the test and deleted for
+ * good afterwards.
+ */
+public class NoteEditorTest extends InstrumentationTestCase {
+
+    // The longest the editor may take to load the note.
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    /*
+     * Tests that pausing and resuming the editor keeps the undo history of the text, unless the
+     * note was changed elsewhere while the editor was paused.
+     */
+    public void testPauseKeepsHistory() {
+        final Instrumentation instrumentation = getInstrumentation();
+        ContentResolver resolver = instrumentation.getTargetContext().getContentResolver();
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "History");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Hello");
+        Uri noteUri = resolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        Intent intent = new Intent(Intent.ACTION_EDIT, noteUri);
+        intent.setClassName(instrumentation.getTargetContext(), NoteEditor.class.getName());
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        final NoteEditor editor = (NoteEditor) instrumentation.startActivitySync(intent);
+        try {
+            final EditText text = (EditText) editor.findViewById(R.id.note);
+            waitForLoad(editor);
+
+            // Types, then pauses and resumes the editor, which saves the note and reloads it.
+            instrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    text.getText().append(" world");
+                }
+            });
+            pauseAndResume(editor);
+
+            // Asserts that the typing can still be undone.
+            final boolean[] undone = new boolean[1];
+            instrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    undone[0] = editor.getHistoryForTest().undo(text.getText());
+                }
+            });
+            assertTrue(undone[0]);
+            assertEquals("Hello", text.getText().toString());
+
+            // Changes the note elsewhere while the editor is paused, which replaces the text and
+            // drops the history that no longer applies to it.
+            instrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    instrumentation.callActivityOnPause(editor);
+                }
+            });
+            NoteSaveQueue.getInstance(editor).flush();
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Changed elsewhere");
+            assertEquals(1, resolver.update(noteUri, values, null, null));
+            instrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    instrumentation.callActivityOnResume(editor);
+                }
+            });
+            waitForLoad(editor);
+            assertEquals("Changed elsewhere", text.getText().toString());
+            assertFalse(editor.getHistoryForTest().canUndo());
+        } finally {
+            editor.finish();
+            instrumentation.waitForIdleSync();
+            NoteSaveQueue.getInstance(editor).flush();
+            long noteId = ContentUris.parseId(noteUri);
+            resolver.delete(noteUri, null, null);
+            resolver.delete(ContentUris.withAppendedId(NotePad.Notes.TRASH_ID_URI_BASE, noteId),
+                    null, null);
+        }
+    }
+
+    // Pauses and resumes the editor on the main thread, and waits for the reload.
+    private void pauseAndResume(final NoteEditor editor) {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                getInstrumentation().callActivityOnPause(editor);
+                getInstrumentation().callActivityOnResume(editor);
+            }
+        });
+        waitForLoad(editor);
+    }
+
+    // Waits for the editor to finish loading the note.
+    private void waitForLoad(final NoteEditor editor) {
+        long start = SystemClock.uptimeMillis();
+        final boolean[] loading = new boolean[1];
+        while (true) {
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    loading[0] = editor.isLoading();
+                }
+            });
+            if (!loading[0]) {
+                return;
+            }
+            assertTrue("The note wasn't loaded",
+                    SystemClock.uptimeMillis() - start < TIMEOUT_MILLIS);
+            SystemClock.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class measures the performance of the content provider for the Note Pad sample
+ * application. Each test reports its timings to the log under the "NotePadBenchmark" tag, and
+ * only fails if the provider returns wrong results.
+ *
+ * The benchmarks take minutes rather than seconds, so run this class on its own:
+ * adb shell am instrument -w -e class com.example.android.notepad.NotePadProviderBenchmark
+ *     com.example.android.notepad.tests/androidx.test.runner.AndroidJUnitRunner
+ */
+public class NotePadProviderBenchmark extends ProviderTestCase2<NotePadProvider> {
+
+    // The log tag for benchmark results.
+    private static final String TAG = "NotePadBenchmark";
+
+    // Contains a reference to the mocked content resolver for the provider under test.
+    private MockContentResolver mMockResolver;
+
+    // Contains the SQLite database underlying the provider.
+    private SQLiteDatabase mDb;
+
+    /*
+     * Constructor for the benchmark class.
+     * Calls the super constructor with the class name of the provider under test and the
+     * authority name of the provider.
+     */
+    public NotePadProviderBenchmark() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    /*
+     * Sets up the benchmark environment before each test method. Gets the mock content resolver
+     * and the database of the provider under test.
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+        mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+    }
+
+    /*
+     * Compares inserting 10,000 notes one insert() at a time with a single bulkInsert().
+     */
+    public void testBulkInsert10k() {
+        compareInsertPaths(10000);
+    }
+
+    /*
+     * Compares inserting 100,000 notes one insert() at a time with a single bulkInsert().
+     */
+    public void testBulkInsert100k() {
+        compareInsertPaths(100000);
+    }
+
+    // Times both insert paths for the given number of rows, starting from an empty table each time.
+    private void compareInsertPaths(int rows) {
+        ContentValues[] values = createNotes(rows);
+
+        // The per-row path: one transaction and one notification per note.
+        clearNotes();
+        long start = SystemClock.elapsedRealtime();
+        for (ContentValues row : values) {
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, row);
+        }
+        long perRowMillis = SystemClock.elapsedRealtime() - start;
+        assertEquals(rows, countNotes());
+
+        // The bulk path: one transaction, one compiled statement and one notification.
+        clearNotes();
+        start = SystemClock.elapsedRealtime();
+        int inserted = mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, values);
+        long bulkMillis = SystemClock.elapsedRealtime() - start;
+        assertEquals(rows, inserted);
+        assertEquals(rows, countNotes());
+
+        Log.i(TAG, "insert x " + rows + ": " + perRowMillis + " ms, bulkInsert: " + bulkMillis
+                + " ms (" + (bulkMillis > 0 ? perRowMillis / bulkMillis : perRowMillis) + "x)");
+    }
+
+    /*
+     * Measures the latency of the notes list query while another thread saves notes at a steady
+     * rate, as NoteEditor does from onPause(). The same queries are first timed without the
+     * writer, as a baseline.
+     */
+    public void testListQueryLatencyUnderWrites() throws InterruptedException {
+        final int NOTES = 5000;
+        final int QUERIES = 200;
+
+        // One save every 10 ms, i.e. 100 saves per second.
+        final long WRITE_INTERVAL_MILLIS = 10;
+
+        clearNotes();
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, createNotes(NOTES));
+
+        long[] baseline = timeListQueries(QUERIES);
+
+        // Starts a writer that keeps updating notes until the queries are done.
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger writes = new AtomicInteger();
+        Thread writer = new Thread("NoteWriter") {
+            @Override
+            public void run() {
+                ContentValues values = new ContentValues();
+                int index = 0;
+                while (!done.get()) {
+                    values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Saved " + index);
+                    values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                            System.currentTimeMillis());
+                    mMockResolver.update(
+                            ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                                    1 + (index % NOTES)),
+                            values, null, null);
+                    writes.incrementAndGet();
+                    index++;
+                    SystemClock.sleep(WRITE_INTERVAL_MILLIS);
+                }
+            }
+        };
+        writer.start();
+
+        long[] contended;
+        try {
+            contended = timeListQueries(QUERIES);
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+
+        Log.i(TAG, "list query over " + NOTES + " notes, idle: " + describeLatencies(baseline));
+        Log.i(TAG, "list query over " + NOTES + " notes, " + writes.get() + " concurrent saves: "
+                + describeLatencies(contended));
+    }
+
+    /*
+     * Compares the throughput of single-note reads and saves through the provider, which binds
+     * the note ID, with the same statements built with the ID written into the SQL, as the
+     * provider used to build them. Each of the latter is a new SQL string, so it misses the
+     * connection's prepared statement cache and is compiled again.
+     */
+    public void testSingleNoteThroughput() {
+        final int NOTES = 1000;
+        final int OPERATIONS = 5000;
+        final String[] PROJECTION = new String[] {
+                NotePad.Notes._ID,
+                NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.COLUMN_NAME_NOTE
+        };
+
+        clearNotes();
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, createNotes(NOTES));
+        long firstId = firstNoteId();
+        ContentValues values = new ContentValues();
+
+        // Reads with the ID concatenated into the WHERE clause.
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int index = 0; index < OPERATIONS; index++) {
+            Cursor cursor = mDb.query(NotePad.Notes.TABLE_NAME, PROJECTION,
+                    NotePad.Notes._ID + " = " + (firstId + index % NOTES), null, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            cursor.close();
+        }
+        long concatenatedReads = SystemClock.elapsedRealtimeNanos() - start;
+
+        // Reads through the provider, with the ID bound.
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int index = 0; index < OPERATIONS; index++) {
+            Cursor cursor = mMockResolver.query(
+                    ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                            firstId + index % NOTES),
+                    PROJECTION, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            cursor.close();
+        }
+        long boundReads = SystemClock.elapsedRealtimeNanos() - start;
+
+        // Saves with the ID concatenated into the WHERE clause.
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int index = 0; index < OPERATIONS; index++) {
+            putSave(values, index);
+            assertEquals(1, mDb.update(NotePad.Notes.TABLE_NAME, values,
+                    NotePad.Notes._ID + " = " + (firstId + index % NOTES), null));
+        }
+        long concatenatedSaves = SystemClock.elapsedRealtimeNanos() - start;
+
+        // Saves through the provider, with the ID bound to a cached statement.
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int index = 0; index < OPERATIONS; index++) {
+            putSave(values, index);
+            assertEquals(1, mMockResolver.update(
+                    ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                            firstId + index % NOTES),
+                    values, null, null));
+        }
+        long boundSaves = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.i(TAG, "single-note reads x " + OPERATIONS + ": concatenated "
+                + describeThroughput(OPERATIONS, concatenatedReads) + ", bound "
+                + describeThroughput(OPERATIONS, boundReads));
+        Log.i(TAG, "single-note saves x " + OPERATIONS + ": concatenated "
+                + describeThroughput(OPERATIONS, concatenatedSaves) + ", bound "
+                + describeThroughput(OPERATIONS, boundSaves));
+    }
+
+    /*
+     * Compares large notes stored compressed by the provider with the same notes stored as they
+     * are: the bytes that the notes add to the whole database file, full-text index included,
+     * and the time to save and to read each note. The uncompressed notes are written directly to
+     * the database, as the provider used to store them.
+     */
+    public void testLargeNoteCompression() {
+        final int NOTES = 100;
+
+        StringBuilder body = new StringBuilder();
+        for (int line = 0; body.length() < 64 * 1024; line++) {
+            body.append("Line ").append(line).append(" of a large note, as pasted from a log. ");
+        }
+        final String TEXT = body.toString();
+        final String[] PROJECTION = new String[] {
+                NotePad.Notes._ID,
+                NotePad.Notes.COLUMN_NAME_NOTE
+        };
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Large");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, TEXT);
+
+        // Saves and reads the notes stored as they are.
+        clearNotes();
+        long bytesBefore = databaseBytes();
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int index = 0; index < NOTES; index++) {
+            mDb.insert(NotePad.Notes.TABLE_NAME, null, values);
+        }
+        long rawSaves = SystemClock.elapsedRealtimeNanos() - start;
+        long rawBytes = databaseBytes() - bytesBefore;
+        long firstId = firstNoteId();
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int index = 0; index < NOTES; index++) {
+            Cursor cursor = mDb.query(NotePad.Notes.TABLE_NAME, PROJECTION,
+                    NotePad.Notes._ID + " = ?", new String[] { Long.toString(firstId + index) },
+                    null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(TEXT.length(), cursor.getString(1).length());
+            cursor.close();
+        }
+        long rawReads = SystemClock.elapsedRealtimeNanos() - start;
+
+        // Saves and reads the notes through the provider, which compresses them.
+        clearNotes();
+        bytesBefore = databaseBytes();
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int index = 0; index < NOTES; index++) {
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+        long compressedSaves = SystemClock.elapsedRealtimeNanos() - start;
+        long compressedBytes = databaseBytes() - bytesBefore;
+        firstId = firstNoteId();
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int index = 0; index < NOTES; index++) {
+            Cursor cursor = mMockResolver.query(
+                    ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, firstId + index),
+                    PROJECTION, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(TEXT.length(), cursor.getString(1).length());
+            cursor.close();
+        }
+        long compressedReads = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.i(TAG, "large notes x " + NOTES + " (" + TEXT.length() + " chars), database file: raw "
+                + rawBytes / 1024 + " KB, compressed " + compressedBytes / 1024 + " KB");
+        Log.i(TAG, "large note saves: raw " + describeThroughput(NOTES, rawSaves)
+                + ", compressed " + describeThroughput(NOTES, compressedSaves));
+        Log.i(TAG, "large note reads: raw " + describeThroughput(NOTES, rawReads)
+                + ", compressed " + describeThroughput(NOTES, compressedReads));
+    }
+
+    // Puts the values that NoteEditor saves for a note.
+    private static void putSave(ContentValues values, int index) {
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Saved" + index);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "This is saved note " + index);
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+    }
+
+    // Describes the throughput of a number of operations that took the given time.
+    private static String describeThroughput(int operations, long nanos) {
+        return (operations * 1000000000L / Math.max(1, nanos)) + " ops/s";
+    }
+
+    // Returns the bytes of the database file in use: its pages, less those on the free list,
+    // which the next writes reuse before the file grows.
+    private long databaseBytes() {
+        long pages = DatabaseUtils.longForQuery(mDb, "PRAGMA page_count", null)
+                - DatabaseUtils.longForQuery(mDb, "PRAGMA freelist_count", null);
+        return pages * DatabaseUtils.longForQuery(mDb, "PRAGMA page_size", null);
+    }
+
+    // Returns the lowest note ID in the database, bypassing the provider.
+    private long firstNoteId() {
+        return DatabaseUtils.longForQuery(mDb,
+                "SELECT MIN(" + NotePad.Notes._ID + ") FROM " + NotePad.Notes.TABLE_NAME, null);
+    }
+
+    // Runs the notes list query the given number of times, and returns the sorted latencies in
+    // microseconds. Each cursor is filled completely, as a list that is scrolled to the end is.
+    private long[] timeListQueries(int queries) {
+        final String[] PROJECTION = new String[] {
+                NotePad.Notes._ID,
+                NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                NotePad.Notes.COLUMN_NAME_CATEGORY
+        };
+
+        long[] latencies = new long[queries];
+        for (int index = 0; index < queries; index++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, PROJECTION, null, null,
+                    NotePad.Notes.DEFAULT_SORT_ORDER);
+            assertTrue(cursor.moveToLast());
+            cursor.close();
+            latencies[index] = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    // Describes the median, 95th percentile and maximum of a sorted array of latencies.
+    private static String describeLatencies(long[] sorted) {
+        return "p50 " + sorted[sorted.length / 2] + " us, p95 "
+                + sorted[(int) (sorted.length * 0.95)] + " us, max "
+                + sorted[sorted.length - 1] + " us";
+    }
+
+    // Creates the values of the given number of notes. Only titles and bodies are supplied, so
+    // that the provider fills in the dates and category.
+    private static ContentValues[] createNotes(int rows) {
+        ContentValues[] values = new ContentValues[rows];
+        for (int index = 0; index < rows; index++) {
+            values[index] = new ContentValues();
+            values[index].put(NotePad.Notes.COLUMN_NAME_TITLE, "Note" + index);
+            values[index].put(NotePad.Notes.COLUMN_NAME_NOTE, "This is note " + index);
+        }
+        return values;
+    }
+
+    // Deletes every note, bypassing the provider.
+    private void clearNotes() {
+        mDb.delete(NotePad.Notes.TABLE_NAME, null, null);
+    }
+
+    // Counts the notes in the database, bypassing the provider.
+    private long countNotes() {
+        return DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME);
+    }
+}
@@ -16,12 +16,17 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
@@ -31,8 +36,12 @@ import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.concurrent.Executor;
 
 /*
  */
@@ -146,12 +155,14 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
             TEST_NOTES[index].setCreationDate(START_DATE + (index * ONE_DAY_MILLIS));
             TEST_NOTES[index].setModificationDate(START_DATE + (index * ONE_WEEK_MILLIS));
 
-            // Adds a record to the database.
-            mDb.insertOrThrow(
+            // Adds a record to the database, and indexes it as the provider would.
+            long noteId = mDb.insertOrThrow(
                 NotePad.Notes.TABLE_NAME,             // the table name for the insert
                 NotePad.Notes.COLUMN_NAME_TITLE,      // column set to null if empty values map
                 TEST_NOTES[index].getContentValues()  // the values map to insert
             );
+            NotePadProvider.DatabaseHelper.indexNote(mDb, noteId, TEST_NOTES[index].title,
+                    TEST_NOTES[index].note);
         }
     }
 
@@ -790,6 +801,1594 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
     }
 
+    /*
+     * Tests that an update of a note that changes nothing but its modification date is skipped.
+     */
+    public void testNoOpUpdates() {
+        insertData();
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+        long changes = DatabaseUtils.queryNumEntries(mDb, NotePad.Changes.TABLE_NAME);
+
+        // Saves the same title and text, with a new modification date
+        ContentValues values = TEST_NOTES[0].getContentValues();
+        values.remove(NotePad.Notes.COLUMN_NAME_CREATE_DATE);
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + ONE_WEEK_MILLIS);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(START_DATE, DatabaseUtils.longForQuery(mDb,
+                "SELECT modified FROM notes WHERE _id = 1", null));
+        assertEquals(changes, DatabaseUtils.queryNumEntries(mDb, NotePad.Changes.TABLE_NAME));
+
+        // Changing a column, or only the modification date, is written
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(START_DATE + ONE_WEEK_MILLIS, DatabaseUtils.longForQuery(mDb,
+                "SELECT modified FROM notes WHERE _id = 1", null));
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(START_DATE, DatabaseUtils.longForQuery(mDb,
+                "SELECT modified FROM notes WHERE _id = 1", null));
+
+        // A note that doesn't exist isn't updated
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        assertEquals(0, mMockResolver.update(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1000),
+                values, null, null));
+
+        // Saving the same text of a compressed note is found to change nothing, once the text
+        // is decompressed.
+        StringBuilder body = new StringBuilder();
+        while (body.length() <= NoteCompression.COMPRESSION_THRESHOLD * 2) {
+            body.append("A long note. ");
+        }
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Long");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body.toString());
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE);
+        Uri longUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        String[] longId = { String.valueOf(ContentUris.parseId(longUri)) };
+        assertEquals(1, DatabaseUtils.longForQuery(mDb,
+                "SELECT COUNT(*) FROM notes WHERE _id = ? AND note_compressed IS NOT NULL", longId));
+        changes = DatabaseUtils.queryNumEntries(mDb, NotePad.Changes.TABLE_NAME);
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + ONE_WEEK_MILLIS);
+        assertEquals(1, mMockResolver.update(longUri, values, null, null));
+        assertEquals(START_DATE, DatabaseUtils.longForQuery(mDb,
+                "SELECT modified FROM notes WHERE _id = ?", longId));
+        assertEquals(changes, DatabaseUtils.queryNumEntries(mDb, NotePad.Changes.TABLE_NAME));
+
+        // Changing its text is written
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body.append("More.").toString());
+        assertEquals(1, mMockResolver.update(longUri, values, null, null));
+        assertEquals(START_DATE + ONE_WEEK_MILLIS, DatabaseUtils.longForQuery(mDb,
+                "SELECT modified FROM notes WHERE _id = ?", longId));
+    }
+
+    /*
+     * Tests applying a batch of operations, which the provider does in one transaction.
+     */
+    public void testApplyBatch() throws Exception {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+
+        // Batch subtest 1.
+        // Inserts every test note, marking every other insert as a yield point.
+        for (int index = 0; index < TEST_NOTES.length; index++) {
+            operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                    .withValues(TEST_NOTES[index].getContentValues())
+                    .withYieldAllowed(index % 2 == 0)
+                    .build());
+        }
+
+        // Updates the first note inserted by the batch, using a back reference to its id.
+        operations.add(ContentProviderOperation.newUpdate(NotePad.Notes.CONTENT_URI)
+                .withSelection(NotePad.Notes._ID + " = ?", new String[1])
+                .withSelectionBackReference(0, 0)
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Batched")
+                .build());
+
+        ContentProviderResult[] results = mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+
+        // Asserts that every operation has a result, and that the update found its note.
+        assertEquals(operations.size(), results.length);
+        assertNotNull(results[0].uri);
+        assertEquals(1, results[TEST_NOTES.length].count.intValue());
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+
+        cursor = mMockResolver.query(results[0].uri, null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Batched",
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+
+        // Batch subtest 2.
+        // A batch whose last operation fails rolls back the operations before it.
+        operations.clear();
+        operations.add(ContentProviderOperation.newDelete(NotePad.Notes.CONTENT_URI).build());
+        operations.add(ContentProviderOperation.newUpdate(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Unreachable")
+                .withExpectedCount(1)
+                .build());
+        try {
+            mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+            fail("Expected the batch to fail on its expected count");
+        } catch (OperationApplicationException e) {
+            // continue
+        }
+
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+    }
+
+    /*
+     * Tests full-text searches, using the search URI.
+     */
+    public void testSearch() {
+        // Inserts data into the model.
+        insertData();
+
+        // Searches for a term that appears in the title of a single note.
+        Cursor cursor = mMockResolver.query(
+            searchUri("Note5"), // the search URI, with the search terms
+            null,               // no projection, return all columns
+            null,               // no selection criteria
+            null,               // no selection arguments
+            null                // rank the results
+        );
+
+        // Asserts that only the note titled "Note5" matched.
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Note5",
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+
+        // Searches for a term that is a prefix of a word in every note body.
+        cursor = mMockResolver.query(searchUri("th"), null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+
+        // Inserts one note that mentions a term in its title and one that mentions it in its
+        // body. The title match should be ranked first.
+        NoteInfo body = new NoteInfo("Groceries", "Buy kiwi and apples");
+        NoteInfo title = new NoteInfo("Kiwi", "Buy some");
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, body.getContentValues());
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, title.getContentValues());
+
+        cursor = mMockResolver.query(searchUri("kiwi"), null, null, null, null);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(title.title,
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        assertTrue(cursor.moveToNext());
+        assertEquals(body.title,
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+
+        // Tests that ranked results apply the selection, and return the projected columns.
+        cursor = mMockResolver.query(searchUri("kiwi"), new String[] {
+                NotePad.Notes.COLUMN_NAME_NOTE,
+                NotePad.Notes.COLUMN_NAME_TITLE
+        }, NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { body.title }, null);
+        assertEquals(2, cursor.getColumnCount());
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(body.note, cursor.getString(0));
+        assertEquals(body.title, cursor.getString(1));
+
+        // Tests that the search index follows updates and deletes.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Fruit");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { title.title });
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { body.title });
+
+        cursor = mMockResolver.query(searchUri("kiwi"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor = mMockResolver.query(searchUri("fruit"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+
+        // Tests that CJK terms are found anywhere in a run of CJK text, through the index.
+        Uri cjkUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("会议", "今天开会讨论").getContentValues());
+        for (String terms : new String[] { "开会", "会讨论", "议" }) {
+            cursor = mMockResolver.query(searchUri(terms), null, null, null, null);
+            assertEquals(terms, 1, cursor.getCount());
+            cursor.close();
+            assertEquals(terms, ContentUris.parseId(cjkUri), DatabaseUtils.longForQuery(mDb,
+                    "SELECT docid FROM notes_fts WHERE notes_fts MATCH ?",
+                    new String[] { NoteTokenizer.buildMatchQuery(terms) }));
+        }
+        cursor = mMockResolver.query(searchUri("开讨"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+
+        // Tests that accented terms are matched through the index, ignoring case.
+        Uri accentedUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Dessert", "Crème brûlée").getContentValues());
+        cursor = mMockResolver.query(searchUri("CRÈME"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertEquals(ContentUris.parseId(accentedUri), DatabaseUtils.longForQuery(mDb,
+                "SELECT docid FROM notes_fts WHERE notes_fts MATCH ?",
+                new String[] { NoteTokenizer.buildMatchQuery("CRÈME") }));
+    }
+
+    /*
+     * Tests paging through the notes URI with the limit and after parameters, and through the
+     * search URI with the limit and offset parameters.
+     */
+    public void testPaging() {
+        // Inserts data into the model, plus three notes saved in the same millisecond, so that
+        // pages have to break ties by ID.
+        insertData();
+        for (int index = 0; index < 3; index++) {
+            NoteInfo note = new NoteInfo("Tied" + index, "This is a tied note");
+            note.setCreationDate(START_DATE);
+            note.setModificationDate(START_DATE + ONE_WEEK_MILLIS);
+            long noteId = mDb.insertOrThrow(NotePad.Notes.TABLE_NAME, null,
+                    note.getContentValues());
+            NotePadProvider.DatabaseHelper.indexNote(mDb, noteId, note.title, note.note);
+        }
+
+        final String[] PROJECTION = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        };
+
+        // Gets every note in the paged sort order, as the expected result.
+        Cursor all = mMockResolver.query(NotePad.Notes.CONTENT_URI, PROJECTION, null, null,
+                NotePad.Notes.PAGE_SORT_ORDER);
+        ArrayList<Long> expected = new ArrayList<Long>();
+        while (all.moveToNext()) {
+            expected.add(all.getLong(0));
+        }
+        all.close();
+
+        // Pages through the notes four at a time, continuing after the last note of each page.
+        ArrayList<Long> paged = new ArrayList<Long>();
+        String after = null;
+        int pages = 0;
+        while (true) {
+            Uri.Builder page = NotePad.Notes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "4");
+            if (after != null) {
+                page.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER, after);
+            }
+            Cursor cursor = mMockResolver.query(page.build(), PROJECTION, null, null, null);
+            assertTrue(cursor.getCount() <= 4);
+            if (!cursor.moveToLast()) {
+                cursor.close();
+                break;
+            }
+            after = NotePad.Notes.buildPageToken(cursor.getLong(1), cursor.getLong(0));
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                paged.add(cursor.getLong(0));
+            }
+            cursor.close();
+            pages++;
+        }
+
+        // Asserts that the pages hold every note exactly once, in order.
+        assertEquals(expected, paged);
+        assertEquals((expected.size() + 3) / 4, pages);
+
+        // Asserts that the page parameters combine with a selection.
+        Uri firstPage = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "2")
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER,
+                        NotePad.Notes.buildPageToken(START_DATE + ONE_WEEK_MILLIS, 0))
+                .build();
+        Cursor cursor = mMockResolver.query(firstPage, PROJECTION,
+                NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ?", new String[] { "Tied%" }, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+
+        // Asserts that a page token can't be combined with another sort order, and that
+        // malformed parameters are rejected.
+        try {
+            mMockResolver.query(firstPage, PROJECTION, null, null,
+                    NotePad.Notes.DEFAULT_SORT_ORDER);
+            fail("paged query accepted another sort order");
+        } catch (IllegalArgumentException e) {
+            // The expected result
+        }
+        try {
+            mMockResolver.query(NotePad.Notes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER, "1; DROP TABLE")
+                    .build(), PROJECTION, null, null, null);
+            fail("malformed page token accepted");
+        } catch (IllegalArgumentException e) {
+            // The expected result
+        }
+
+        // Pages through ranked search results by offset.
+        Cursor ranked = mMockResolver.query(searchUri("note"), PROJECTION, null, null, null);
+        Cursor second = mMockResolver.query(searchUri("note").buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_OFFSET, "2")
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "2")
+                .build(), PROJECTION, null, null, null);
+        assertEquals(2, second.getCount());
+        assertTrue(ranked.moveToPosition(2));
+        assertTrue(second.moveToFirst());
+        assertEquals(ranked.getLong(0), second.getLong(0));
+        ranked.close();
+        second.close();
+    }
+
+    /*
+     * Tests the categories URI, and the category columns of notes.
+     */
+    public void testCategories() {
+        // Asserts that the default categories exist, with "未分类" first.
+        Cursor cursor = mMockResolver.query(NotePad.Categories.CONTENT_URI, null, null, null,
+                null);
+        assertEquals(6, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(NotePad.Categories.UNCATEGORIZED_ID,
+                cursor.getLong(cursor.getColumnIndex(NotePad.Categories._ID)));
+        assertEquals("未分类",
+                cursor.getString(cursor.getColumnIndex(NotePad.Categories.COLUMN_NAME_NAME)));
+        cursor.close();
+
+        // Inserts a category, and a note in it set by ID and another set by name.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Categories.COLUMN_NAME_NAME, "旅行");
+        values.put(NotePad.Categories.COLUMN_NAME_COLOR, 0xFF00BCD4);
+        Uri categoryUri = mMockResolver.insert(NotePad.Categories.CONTENT_URI, values);
+        long categoryId = ContentUris.parseId(categoryUri);
+
+        values = new NoteInfo("Trip", "Pack bags").getContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, categoryId);
+        Uri byId = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values = new NoteInfo("Flight", "Check in").getContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "旅行");
+        Uri byName = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        final String[] PROJECTION = {
+            NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_ICON
+        };
+
+        // Asserts that both notes are in the new category, with its color and the default icon.
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, PROJECTION,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?",
+                new String[] { Long.toString(categoryId) }, null);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("旅行", cursor.getString(1));
+        assertEquals(0xFF00BCD4, cursor.getInt(2));
+        assertEquals("📝", cursor.getString(3));
+        cursor.close();
+
+        // Asserts that an unknown category name is rejected.
+        values = new NoteInfo("Lost", "Nowhere").getContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "No such category");
+        try {
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+            fail("note inserted into an unknown category");
+        } catch (IllegalArgumentException e) {
+            // The expected result
+        }
+
+        // Renames the category, and asserts that its notes show the new name.
+        values = new ContentValues();
+        values.put(NotePad.Categories.COLUMN_NAME_NAME, "出差");
+        assertEquals(1, mMockResolver.update(categoryUri, values, null, null));
+        cursor = mMockResolver.query(byName, PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("出差", cursor.getString(1));
+        cursor.close();
+
+        // Deletes the category, and asserts that its notes are moved to "未分类".
+        assertEquals(1, mMockResolver.delete(categoryUri, null, null));
+        cursor = mMockResolver.query(byId, PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(NotePad.Categories.UNCATEGORIZED_ID, cursor.getLong(0));
+        assertEquals("未分类", cursor.getString(1));
+        cursor.close();
+
+        // Asserts that "未分类" itself can't be deleted.
+        assertEquals(0, mMockResolver.delete(
+                ContentUris.withAppendedId(NotePad.Categories.CONTENT_ID_URI_BASE,
+                        NotePad.Categories.UNCATEGORIZED_ID), null, null));
+    }
+
+    /*
+     * Tests that the category counts follow inserts, moves, saves and deletes of notes, and
+     * always agree with counting the notes directly.
+     */
+    public void testCategoryCounts() {
+        // Inserts data into the model; every note starts out uncategorized.
+        insertData();
+        assertCountsMatchNotes();
+        long latest = TEST_NOTES[TEST_NOTES.length - 1].modDate;
+
+        // Moves two notes to "工作", one of them the latest.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "工作");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " IN (?, ?)",
+                new String[] { "Note1", TEST_NOTES[TEST_NOTES.length - 1].title });
+        assertCountsMatchNotes();
+
+        Cursor cursor = mMockResolver.query(NotePad.Categories.COUNTS_URI, null,
+                NotePad.Categories.COLUMN_NAME_NAME + " = ?", new String[] { "工作" }, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(2, cursor.getInt(
+                cursor.getColumnIndex(NotePad.Categories.COLUMN_NAME_NOTE_COUNT)));
+        assertEquals(latest, cursor.getLong(
+                cursor.getColumnIndex(NotePad.Categories.COLUMN_NAME_LATEST_MODIFIED)));
+        cursor.close();
+
+        // Saves one note later and another earlier, then deletes some notes.
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, latest + ONE_DAY_MILLIS);
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note1" });
+        assertCountsMatchNotes();
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE - ONE_DAY_MILLIS);
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note1" });
+        assertCountsMatchNotes();
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " IN (?, ?)",
+                new String[] { TEST_NOTES[TEST_NOTES.length - 1].title, "Note2" });
+        assertCountsMatchNotes();
+
+        // Deletes "工作", which moves its notes back, and adds a new empty category.
+        mMockResolver.delete(NotePad.Categories.CONTENT_URI,
+                NotePad.Categories.COLUMN_NAME_NAME + " = ?", new String[] { "工作" });
+        values = new ContentValues();
+        values.put(NotePad.Categories.COLUMN_NAME_NAME, "旅行");
+        mMockResolver.insert(NotePad.Categories.CONTENT_URI, values);
+        assertCountsMatchNotes();
+    }
+
+    // Asserts that the counts URI returns the same count and latest modification date for each
+    // category as a GROUP BY over the notes table.
+    private void assertCountsMatchNotes() {
+        Cursor expected = mDb.rawQuery("SELECT categories._id, COUNT(notes._id),"
+                + " MAX(notes.modified) FROM categories"
+                + " LEFT JOIN notes ON (notes.category_id = categories._id AND notes.deleted = 0)"
+                + " GROUP BY categories._id ORDER BY categories._id", null);
+        Cursor actual = mMockResolver.query(NotePad.Categories.COUNTS_URI, new String[] {
+                NotePad.Categories._ID,
+                NotePad.Categories.COLUMN_NAME_NOTE_COUNT,
+                NotePad.Categories.COLUMN_NAME_LATEST_MODIFIED
+        }, null, null, null);
+        try {
+            assertEquals(expected.getCount(), actual.getCount());
+            while (expected.moveToNext()) {
+                assertTrue(actual.moveToNext());
+                assertEquals(expected.getLong(0), actual.getLong(0));
+                assertEquals(expected.getInt(1), actual.getInt(1));
+                assertEquals(expected.isNull(2), actual.isNull(2));
+                assertEquals(expected.getLong(2), actual.getLong(2));
+            }
+        } finally {
+            expected.close();
+            actual.close();
+        }
+    }
+
+    /*
+     * Tests the set-based methods of call(), which change every note that matches a filter.
+     */
+    public void testBulkMethods() {
+        insertData();
+        long work = DatabaseUtils.longForQuery(mDb, "SELECT _id FROM categories WHERE name = ?",
+                new String[] { "工作" });
+
+        // Moves the notes modified before the fourth week to "工作"
+        Bundle filter = new Bundle();
+        filter.putLong(NotePad.Methods.KEY_FILTER_MODIFIED_BEFORE,
+                START_DATE + 3 * ONE_WEEK_MILLIS);
+        assertEquals(3, callBulk(NotePad.Methods.METHOD_RECATEGORIZE, Long.toString(work), filter));
+        assertCountsMatchNotes();
+
+        // Moving them again changes nothing
+        assertEquals(0, callBulk(NotePad.Methods.METHOD_RECATEGORIZE, Long.toString(work), filter));
+
+        // Touches the notes of "工作" that match a search
+        filter = new Bundle();
+        filter.putLong(NotePad.Methods.KEY_FILTER_CATEGORY_ID, work);
+        filter.putString(NotePad.Methods.KEY_FILTER_QUERY, "note");
+        long touched = START_DATE + 100 * ONE_WEEK_MILLIS;
+        assertEquals(3, callBulk(NotePad.Methods.METHOD_TOUCH, Long.toString(touched), filter));
+        assertEquals(3, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME,
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " = " + touched));
+        assertCountsMatchNotes();
+
+        // Clears "工作", which moves its notes to the trash
+        filter = new Bundle();
+        filter.putLong(NotePad.Methods.KEY_FILTER_CATEGORY_ID, work);
+        assertEquals(3, callBulk(NotePad.Methods.METHOD_DELETE_BY_FILTER, null, filter));
+        assertEquals(3, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME,
+                NotePad.Notes.COLUMN_NAME_DELETED + " != 0"));
+        assertEquals(0, callBulk(NotePad.Methods.METHOD_TOUCH, null, filter));
+        assertCountsMatchNotes();
+
+        Bundle metrics = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Methods.METHOD_METRICS, null, null);
+        assertEquals(3, metrics.getBundle("delete notes").getLong(
+                NotePad.Methods.KEY_METRIC_ROWS));
+
+        // A filter is required, and the category must exist
+        try {
+            callBulk(NotePad.Methods.METHOD_DELETE_BY_FILTER, null, new Bundle());
+            fail("Deleted without a filter");
+        } catch (IllegalArgumentException e) {
+            // There is no filter
+        }
+        try {
+            callBulk(NotePad.Methods.METHOD_RECATEGORIZE, "12345", filter);
+            fail("Moved notes to a missing category");
+        } catch (IllegalArgumentException e) {
+            // There is no such category
+        }
+    }
+
+    // Calls a set-based method and returns the number of notes it changed.
+    private int callBulk(String method, String arg, Bundle filter) {
+        return mMockResolver.call(NotePad.Notes.CONTENT_URI, method, arg, filter)
+                .getInt(NotePad.Methods.KEY_COUNT);
+    }
+
+    /*
+     * Tests the upgrade of a version 5 database, which stored each note's category by name.
+     */
+    public void testUpgradeToCategoryIds() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            // Creates the version 5 schema, and notes in a default and a custom category.
+            db.execSQL("CREATE TABLE notes (_id INTEGER PRIMARY KEY, title TEXT, note TEXT,"
+                    + " created INTEGER, modified INTEGER, category TEXT DEFAULT '未分类')");
+            db.execSQL("INSERT INTO notes (_id, title, note, created, modified, category)"
+                    + " VALUES (7, 'Report', 'Quarterly report', 1, 1, '工作')");
+            db.execSQL("INSERT INTO notes (_id, title, note, created, modified, category)"
+                    + " VALUES (8, 'Recipe', 'Dumplings', 2, 2, '菜谱')");
+            db.execSQL("INSERT INTO notes (_id, title, note, created, modified, category)"
+                    + " VALUES (9, 'Misc', 'Anything', 3, 3, NULL)");
+
+            // Indexes the notes, as the version 4 backfill did.
+            NotePadProvider.DatabaseHelper.createSearchIndex(db);
+            db.execSQL("INSERT INTO notes_fts (docid, title, note)"
+                    + " SELECT _id, title, note FROM notes");
+
+            getProvider().getOpenHelperForTest().onUpgrade(db, 5, 6);
+
+            // Asserts that the list indexes are left to the background.
+            assertTrue(DatabaseMigrations.isPending(db, "list_indexes"));
+
+            // Asserts that each note refers to the category it was in, by ID.
+            Cursor cursor = db.rawQuery("SELECT notes._id, categories.name FROM notes"
+                    + " JOIN categories ON (categories._id = notes.category_id)"
+                    + " ORDER BY notes._id", null);
+            assertEquals(3, cursor.getCount());
+            assertTrue(cursor.moveToNext());
+            assertEquals(7, cursor.getLong(0));
+            assertEquals("工作", cursor.getString(1));
+            assertTrue(cursor.moveToNext());
+            assertEquals("菜谱", cursor.getString(1));
+            assertTrue(cursor.moveToNext());
+            assertEquals("未分类", cursor.getString(1));
+            cursor.close();
+
+            // Asserts that the full-text index still finds the notes of the rebuilt table.
+            cursor = db.rawQuery("SELECT notes._id FROM notes JOIN notes_fts"
+                    + " ON (notes_fts.docid = notes._id) WHERE notes_fts MATCH 'quarterly'",
+                    null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(7, cursor.getLong(0));
+            cursor.close();
+        } finally {
+            db.close();
+        }
+    }
+
+    /*
+     * Tests the upgrade of a version 3 database, whose full-text index is filled by a background
+     * task in chunks, while notes keep being added.
+     */
+    public void testBackgroundSearchBackfill() {
+        final int NOTES = 1200;
+        NotePadProvider.DatabaseHelper helper = getProvider().getOpenHelperForTest();
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            // Creates the version 3 schema, with more notes than one chunk copies.
+            db.execSQL("CREATE TABLE notes (_id INTEGER PRIMARY KEY, title TEXT, note TEXT,"
+                    + " created INTEGER, modified INTEGER, category TEXT DEFAULT '未分类')");
+            for (int index = 1; index <= NOTES; index++) {
+                db.execSQL("INSERT INTO notes (_id, title, note, created, modified)"
+                        + " VALUES (" + index + ", 'Note" + index + "', 'Old note', 0, 0)");
+            }
+
+            helper.onUpgrade(db, 3, 8);
+
+            // Asserts that the upgrade only scheduled the backfill.
+            assertTrue(DatabaseMigrations.isPending(db, "search_backfill"));
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, "notes_fts_docsize"));
+
+            // A note that the provider adds during the backfill is indexed straight away.
+            db.execSQL("INSERT INTO notes (_id, title, note) VALUES (5000, 'Fresh', 'New note')");
+            NotePadProvider.DatabaseHelper.indexNote(db, 5000, "Fresh", "New note");
+            assertEquals(1, DatabaseUtils.queryNumEntries(db, "notes_fts_docsize"));
+
+            // Runs one chunk, then the rest, as if the process restarted in between.
+            assertTrue(helper.runSearchBackfillChunk(db));
+            assertEquals(501, DatabaseUtils.queryNumEntries(db, "notes_fts_docsize"));
+            while (helper.runSearchBackfillChunk(db)) {
+                // Keeps going until the backfill is done
+            }
+
+            // Asserts that every note is indexed exactly once.
+            assertFalse(DatabaseMigrations.isPending(db, "search_backfill"));
+            assertEquals(NOTES + 1, DatabaseUtils.queryNumEntries(db, "notes_fts_docsize"));
+            assertEquals(NOTES, DatabaseUtils.longForQuery(db,
+                    "SELECT COUNT(*) FROM notes_fts WHERE notes_fts MATCH 'old'", null));
+        } finally {
+            db.close();
+        }
+    }
+
+    /*
+     * Tests the category counts backfill of the version 10 upgrade, which counts a few
+     * categories per chunk while notes keep being added.
+     */
+    public void testBackgroundCategoryCounts() {
+        NotePadProvider.DatabaseHelper helper = getProvider().getOpenHelperForTest();
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            // Creates the current schema, with more categories than one chunk counts.
+            helper.onCreate(db);
+            for (int index = 1; index <= 6; index++) {
+                db.execSQL("INSERT INTO categories (name, color) VALUES ('Extra" + index
+                        + "', 0)");
+            }
+            db.execSQL("INSERT INTO notes (title, modified, category_id) VALUES ('One', 1, 1)");
+            db.execSQL("INSERT INTO notes (title, modified, category_id) VALUES ('Two', 2, 10)");
+            db.execSQL("INSERT INTO notes (title, modified, category_id, deleted)"
+                    + " VALUES ('Trashed', 3, 10, 3)");
+
+            // Creates the counts again, empty, as the version 10 step does.
+            NotePadProvider.DatabaseHelper.dropCategoryCounts(db);
+            NotePadProvider.DatabaseHelper.createCategoryCounts(db);
+            DatabaseMigrations.schedule(db, "category_counts");
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, "category_counts"));
+
+            // A note added to a category that hasn't been counted yet is counted with it.
+            db.execSQL("INSERT INTO notes (title, modified, category_id) VALUES ('Three', 4, 12)");
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, "category_counts"));
+
+            // Runs one chunk, then adds a note to a counted category, then runs the rest.
+            assertTrue(helper.runCategoryCountsChunk(db));
+            assertEquals(8, DatabaseUtils.queryNumEntries(db, "category_counts"));
+            db.execSQL("INSERT INTO notes (title, modified, category_id) VALUES ('Four', 5, 1)");
+            while (helper.runCategoryCountsChunk(db)) {
+                // Keeps going until the backfill is done
+            }
+
+            // Asserts that every category is counted, as a GROUP BY over the notes counts it.
+            assertFalse(DatabaseMigrations.isPending(db, "category_counts"));
+            Cursor expected = db.rawQuery("SELECT categories._id, COUNT(notes._id),"
+                    + " MAX(notes.modified) FROM categories LEFT JOIN notes"
+                    + " ON (notes.category_id = categories._id AND notes.deleted = 0)"
+                    + " GROUP BY categories._id ORDER BY categories._id", null);
+            Cursor actual = db.rawQuery("SELECT category_id, note_count, latest_modified"
+                    + " FROM category_counts ORDER BY category_id", null);
+            try {
+                assertEquals(12, expected.getCount());
+                assertEquals(expected.getCount(), actual.getCount());
+                while (expected.moveToNext()) {
+                    assertTrue(actual.moveToNext());
+                    assertEquals(expected.getLong(0), actual.getLong(0));
+                    assertEquals(expected.getInt(1), actual.getInt(1));
+                    assertEquals(expected.isNull(2), actual.isNull(2));
+                    assertEquals(expected.getLong(2), actual.getLong(2));
+                }
+            } finally {
+                expected.close();
+                actual.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /*
+     * Tests the background compression of the large notes saved before version 12, including a
+     * note too long to fit in a cursor window, which is read in slices.
+     */
+    public void testBackgroundCompression() {
+        NotePadProvider.DatabaseHelper helper = getProvider().getOpenHelperForTest();
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            helper.onCreate(db);
+
+            // Stores a note of a few megabytes and a short one as they are, as version 11 did.
+            StringBuilder body = new StringBuilder();
+            for (int line = 0; body.length() < 3 * 1024 * 1024; line++) {
+                body.append("Line ").append(line).append(" of a very long note. ");
+            }
+            String text = body.toString();
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Huge");
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+            long hugeId = db.insert(NotePad.Notes.TABLE_NAME, null, values);
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Short");
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Short note");
+            long shortId = db.insert(NotePad.Notes.TABLE_NAME, null, values);
+
+            DatabaseMigrations.schedule(db, "compress_notes");
+            while (helper.runCompressNotesChunk(db)) {
+                // Keeps going until the compression is done
+            }
+            assertFalse(DatabaseMigrations.isPending(db, "compress_notes"));
+
+            // Asserts that the long note is stored compressed, and the short one as it is.
+            Cursor cursor = db.query(NotePad.Notes.TABLE_NAME, new String[] {
+                    NotePad.Notes._ID,
+                    NotePad.Notes.COLUMN_NAME_NOTE,
+                    NoteCompression.COLUMN_NAME_COMPRESSED
+            }, null, null, null, null, NotePad.Notes._ID);
+            try {
+                assertTrue(cursor.moveToNext());
+                assertEquals(hugeId, cursor.getLong(0));
+                assertTrue(cursor.isNull(1));
+                assertEquals(text, NoteCompression.decompress(cursor.getBlob(2)));
+                assertTrue(cursor.moveToNext());
+                assertEquals(shortId, cursor.getLong(0));
+                assertEquals("Short note", cursor.getString(1));
+                assertTrue(cursor.isNull(2));
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /*
+     * Tests the change log: that inserts, updates and deletes are logged in order, that the since
+     * parameter skips the changes already read, and that compaction keeps the latest change of
+     * each note and tells clients that fell behind the trimmed log to start over.
+     */
+    public void testChangeLog() {
+        final String[] PROJECTION = new String[] {
+                NotePad.Changes._ID,
+                NotePad.Changes.COLUMN_NAME_NOTE_ID,
+                NotePad.Changes.COLUMN_NAME_OPERATION
+        };
+
+        // Inserts a note, saves it twice, and inserts and deletes another. Deleting a note
+        // moves it to the trash, which is logged as an update followed by a delete.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Logged");
+        Uri first = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long firstId = ContentUris.parseId(first);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Saved once");
+        mMockResolver.update(first, values, null, null);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Saved twice");
+        mMockResolver.update(first, values, null, null);
+        Uri second = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long secondId = ContentUris.parseId(second);
+        mMockResolver.delete(second, null, null);
+
+        // Asserts that every change is logged, oldest first.
+        Cursor cursor = mMockResolver.query(NotePad.Changes.CONTENT_URI, PROJECTION, null, null,
+                null);
+        long[][] expected = new long[][] {
+                { firstId, NotePad.Changes.OPERATION_INSERT },
+                { firstId, NotePad.Changes.OPERATION_UPDATE },
+                { firstId, NotePad.Changes.OPERATION_UPDATE },
+                { secondId, NotePad.Changes.OPERATION_INSERT },
+                { secondId, NotePad.Changes.OPERATION_UPDATE },
+                { secondId, NotePad.Changes.OPERATION_DELETE },
+        };
+        assertEquals(expected.length, cursor.getCount());
+        long[] sequences = new long[expected.length];
+        long previous = 0;
+        for (int index = 0; index < expected.length; index++) {
+            assertTrue(cursor.moveToNext());
+            sequences[index] = cursor.getLong(0);
+            assertTrue(sequences[index] > previous);
+            previous = sequences[index];
+            assertEquals(expected[index][0], cursor.getLong(1));
+            assertEquals(expected[index][1], cursor.getLong(2));
+        }
+        cursor.close();
+
+        // Asserts that reading from a sequence number only returns the later changes.
+        cursor = mMockResolver.query(changesSince(sequences[2]), PROJECTION, null, null, null);
+        assertEquals(3, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(sequences[3], cursor.getLong(0));
+        cursor.close();
+
+        // Asserts that compaction keeps only the latest change of each note.
+        getProvider().compactChangeLog();
+        cursor = mMockResolver.query(changesSince(0), PROJECTION, null, null, null);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(sequences[2], cursor.getLong(0));
+        assertEquals(NotePad.Changes.OPERATION_UPDATE, cursor.getInt(2));
+        assertTrue(cursor.moveToNext());
+        assertEquals(sequences[5], cursor.getLong(0));
+        assertEquals(NotePad.Changes.OPERATION_DELETE, cursor.getInt(2));
+        cursor.close();
+
+        // Logs more changes than the log keeps, and compacts it.
+        ContentValues[] notes = new ContentValues[1200];
+        for (int index = 0; index < notes.length; index++) {
+            notes[index] = new ContentValues();
+            notes[index].put(NotePad.Notes.COLUMN_NAME_TITLE, "Note" + index);
+        }
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes);
+        getProvider().compactChangeLog();
+
+        // Asserts that a client that read nothing since the first change is told to start over,
+        // at the latest sequence number.
+        cursor = mMockResolver.query(changesSince(sequences[0]), PROJECTION, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.isNull(1));
+        assertEquals(NotePad.Changes.OPERATION_RESET, cursor.getInt(2));
+        long latest = cursor.getLong(0);
+        cursor.close();
+
+        // Asserts that reading on from the reset returns nothing new.
+        cursor = mMockResolver.query(changesSince(latest), PROJECTION, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Asserts that a sequence number the log never reached also resets the client.
+        cursor = mMockResolver.query(changesSince(latest + 1), PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(NotePad.Changes.OPERATION_RESET, cursor.getInt(2));
+        cursor.close();
+    }
+
+    // Builds the change log URI that returns the changes after the given sequence number.
+    private static Uri changesSince(long since) {
+        return NotePad.Changes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Changes.QUERY_PARAMETER_SINCE,
+                        Long.toString(since))
+                .build();
+    }
+
+    /*
+     * Tests the trash: deleting a note moves it out of the list, the counts and the search
+     * results into the trash, from where it can be restored, deleted for good, or purged once
+     * it is old enough.
+     */
+    public void testTrash() {
+        insertData();
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes._ID }, null, null, null);
+        int notes = cursor.getCount();
+        assertTrue(cursor.moveToFirst());
+        long noteId = cursor.getLong(0);
+        assertTrue(cursor.moveToNext());
+        long otherId = cursor.getLong(0);
+        cursor.close();
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId);
+
+        // Moves a note to the trash, and asserts that deleting it again does nothing.
+        long before = System.currentTimeMillis();
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        assertEquals(0, mMockResolver.delete(noteUri, null, null));
+
+        // Asserts that the note is gone from the list, its own URI and the counts.
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(notes - 1, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(noteUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        assertCountsMatchNotes();
+
+        // Asserts that the note is in the trash, with the time it was deleted.
+        cursor = mMockResolver.query(NotePad.Notes.TRASH_URI,
+                new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_DELETED },
+                null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(noteId, cursor.getLong(0));
+        assertTrue(cursor.getLong(1) >= before);
+        cursor.close();
+
+        // Asserts that the note's own URI doesn't update it while it is in the trash: neither
+        // a save, nor a save that would change nothing, nor an update with a selection.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Edited in the trash");
+        assertEquals(0, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(0, mMockResolver.update(noteUri, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " IS NOT NULL", null));
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, DatabaseUtils.stringForQuery(mDb,
+                "SELECT title FROM notes WHERE _id = " + noteId, null));
+        assertEquals(0, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME,
+                "title = 'Edited in the trash'"));
+
+        // Restores the note through the trash, and asserts that it is back in the list.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_DELETED, 0);
+        assertEquals(1, mMockResolver.update(
+                ContentUris.withAppendedId(NotePad.Notes.TRASH_ID_URI_BASE, noteId),
+                values, null, null));
+        cursor = mMockResolver.query(noteUri, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        assertCountsMatchNotes();
+
+        // Trashes both notes, and deletes one of them from the trash for good.
+        mMockResolver.delete(noteUri, null, null);
+        mMockResolver.delete(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                otherId), null, null);
+        assertEquals(1, mMockResolver.delete(
+                ContentUris.withAppendedId(NotePad.Notes.TRASH_ID_URI_BASE, otherId),
+                null, null));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME,
+                NotePad.Notes.COLUMN_NAME_DELETED + " != 0"));
+
+        // Asserts that a purge only removes notes deleted before its cutoff.
+        assertEquals(0, getProvider().purgeTrash(before));
+        assertEquals(1, getProvider().purgeTrash(System.currentTimeMillis() + 1));
+        assertEquals(notes - 2, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+        cursor = mMockResolver.query(NotePad.Notes.TRASH_URI, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        assertCountsMatchNotes();
+    }
+
+    /*
+     * Tests the revision history: that every save of a note's text can be read back, whether it
+     * is stored as a snapshot or as a delta, and that deltas only grow with the size of the edit.
+     */
+    public void testRevisions() {
+        final int SAVES = 45;
+
+        // Inserts a long note, then saves it many times, changing a few characters each time.
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 4000) {
+            body.append("This is a long line of the note body. ");
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body.toString());
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long noteId = ContentUris.parseId(noteUri);
+
+        ArrayList<String> texts = new ArrayList<String>();
+        texts.add(body.toString());
+        for (int save = 1; save <= SAVES; save++) {
+            body.replace(2000, 2000 + Integer.toString(save - 1).length(), Integer.toString(save));
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, body.toString());
+            assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+            texts.add(body.toString());
+        }
+
+        // Asserts that a save that doesn't change the text adds no revision.
+        mMockResolver.update(noteUri, values, null, null);
+
+        // Asserts that every revision is listed, latest first, without its text.
+        Uri revisionsUri = NotePad.Revisions.buildRevisionsUri(noteId);
+        Cursor cursor = mMockResolver.query(revisionsUri, null, null, null, null);
+        assertEquals(texts.size(), cursor.getCount());
+        assertEquals(-1, cursor.getColumnIndex(NotePad.Revisions.COLUMN_NAME_NOTE));
+        int revisionIndex = cursor.getColumnIndex(NotePad.Revisions.COLUMN_NAME_REVISION);
+        for (int revision = texts.size(); revision >= 1; revision--) {
+            assertTrue(cursor.moveToNext());
+            assertEquals(revision, cursor.getInt(revisionIndex));
+        }
+        cursor.close();
+
+        // Asserts that the texts of the whole list can't be asked for at once.
+        try {
+            mMockResolver.query(revisionsUri, new String[] {
+                    NotePad.Revisions.COLUMN_NAME_NOTE
+            }, null, null, null);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        // Asserts that every single revision is rebuilt, from snapshots and from deltas.
+        for (int revision = 1; revision <= texts.size(); revision++) {
+            cursor = mMockResolver.query(ContentUris.withAppendedId(revisionsUri, revision),
+                    new String[] { NotePad.Revisions.COLUMN_NAME_NOTE }, null, null, null);
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(texts.get(revision - 1), cursor.getString(0));
+            cursor.close();
+        }
+
+        // Asserts that only the snapshots hold the whole text.
+        long snapshots = (texts.size() + NoteRevisions.SNAPSHOT_INTERVAL - 1)
+                / NoteRevisions.SNAPSHOT_INTERVAL;
+        long stored = DatabaseUtils.longForQuery(mDb, "SELECT SUM(LENGTH(text)) FROM "
+                + NotePad.Revisions.TABLE_NAME + " WHERE prefix IS NOT NULL", null);
+        assertTrue(stored < 10 * (texts.size() - snapshots));
+        assertEquals(snapshots, DatabaseUtils.queryNumEntries(mDb, NotePad.Revisions.TABLE_NAME,
+                "prefix IS NULL"));
+
+        // Asserts that the revisions are deleted with the note.
+        mMockResolver.delete(noteUri, null, null);
+        mMockResolver.delete(NotePad.Notes.TRASH_URI, null, null);
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePad.Revisions.TABLE_NAME));
+    }
+
+    /*
+     * Tests that a note keeps at most NoteRevisions.MAX_REVISIONS revisions, that the oldest are
+     * dropped a snapshot interval at a time, and that the revisions kept are still rebuilt.
+     */
+    public void testRevisionRetention() {
+        final int SAVES = NoteRevisions.MAX_REVISIONS + 2 * NoteRevisions.SNAPSHOT_INTERVAL + 5;
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Save 0");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        for (int save = 1; save <= SAVES; save++) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Save " + save);
+            assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        }
+
+        // Revision n holds "Save n-1". The latest is 146; its snapshot, 141, dropped 1 to 60.
+        int latest = SAVES + 1;
+        int oldest = latest - (latest - 1) % NoteRevisions.SNAPSHOT_INTERVAL
+                - NoteRevisions.MAX_REVISIONS + NoteRevisions.SNAPSHOT_INTERVAL;
+        Uri revisionsUri = NotePad.Revisions.buildRevisionsUri(ContentUris.parseId(noteUri));
+        Cursor cursor = mMockResolver.query(revisionsUri, new String[] {
+                NotePad.Revisions.COLUMN_NAME_REVISION
+        }, null, null, null);
+        assertEquals(latest - oldest + 1, cursor.getCount());
+        assertTrue(cursor.getCount() <= NoteRevisions.MAX_REVISIONS);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(latest, cursor.getInt(0));
+        assertTrue(cursor.moveToLast());
+        assertEquals(oldest, cursor.getInt(0));
+        cursor.close();
+
+        // Asserts that the oldest and the latest revisions kept are rebuilt, and that a dropped
+        // revision is gone.
+        for (int revision : new int[] { oldest, oldest + 1, latest }) {
+            cursor = mMockResolver.query(ContentUris.withAppendedId(revisionsUri, revision),
+                    new String[] { NotePad.Revisions.COLUMN_NAME_NOTE }, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Save " + (revision - 1), cursor.getString(0));
+            cursor.close();
+        }
+        cursor = mMockResolver.query(ContentUris.withAppendedId(revisionsUri, oldest - 1),
+                null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that large notes are stored compressed, and that queries, searches, streams and
+     * revisions return their text as if it were stored as it is.
+     */
+    public void testCompression() throws IOException {
+        // Inserts a note longer than the compression threshold, on a single line.
+        StringBuilder body = new StringBuilder();
+        for (int line = 0; body.length() <= NoteCompression.COMPRESSION_THRESHOLD * 2; line++) {
+            body.append("Line ").append(line).append(" of a long note. ");
+        }
+        body.append("zebra 斑马线");
+        String text = body.toString();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Long");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // Asserts that the text is stored deflated, in much less space.
+        Cursor cursor = mDb.query(NotePad.Notes.TABLE_NAME, new String[] {
+                NotePad.Notes.COLUMN_NAME_NOTE, NoteCompression.COLUMN_NAME_COMPRESSED
+        }, null, null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.isNull(0));
+        assertTrue(cursor.getBlob(1).length < text.length() / 4);
+        cursor.close();
+
+        // Asserts that queries return the text, and don't return the compressed column.
+        cursor = mMockResolver.query(noteUri, null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(-1, cursor.getColumnIndex(NoteCompression.COLUMN_NAME_COMPRESSED));
+        assertEquals(text, cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE)));
+        assertEquals("Long", cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        cursor.close();
+
+        // Asserts that searches find Latin and CJK words in the text, through the full-text
+        // index.
+        for (String terms : new String[] { "zebra", "马线" }) {
+            cursor = mMockResolver.query(searchUri(terms), new String[] {
+                    NotePad.Notes.COLUMN_NAME_NOTE
+            }, null, null, null);
+            assertEquals(terms, 1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(text, cursor.getString(0));
+            cursor.close();
+        }
+
+        // Asserts that the full-text index keeps no copy of the text.
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, "notes_fts_source"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, "sqlite_master",
+                "name = 'notes_fts_content'"));
+
+        // Asserts that renaming the note keeps its text searchable, and indexes the new title.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        cursor = mMockResolver.query(searchUri("zebra"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(searchUri("renamed"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Asserts that the text is streamed whole.
+        AssetFileDescriptor descriptor = mMockResolver.openTypedAssetFileDescriptor(
+                noteUri, MIME_TYPE_TEXT, null);
+        BufferedReader in = new BufferedReader(new FileReader(
+                descriptor.getParcelFileDescriptor().getFileDescriptor()));
+        assertEquals("Renamed", in.readLine());
+        assertEquals("", in.readLine());
+        assertEquals(text, in.readLine());
+        in.close();
+
+        // Asserts that shrinking the note stores it as it is, and that its history holds both.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Short");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME,
+                NoteCompression.COLUMN_NAME_COMPRESSED + " IS NOT NULL"));
+        Uri revisionsUri = NotePad.Revisions.buildRevisionsUri(ContentUris.parseId(noteUri));
+        cursor = mMockResolver.query(revisionsUri, null, null, null, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(ContentUris.withAppendedId(revisionsUri, 2),
+                new String[] { NotePad.Revisions.COLUMN_NAME_NOTE }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Short", cursor.getString(0));
+        cursor.close();
+        cursor = mMockResolver.query(ContentUris.withAppendedId(revisionsUri, 1),
+                new String[] { NotePad.Revisions.COLUMN_NAME_NOTE }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(text, cursor.getString(0));
+        cursor.close();
+
+        // Asserts that the long text's snapshot in the history is stored deflated too.
+        assertTrue(DatabaseUtils.longForQuery(mDb, "SELECT LENGTH(text) FROM "
+                + NotePad.Revisions.TABLE_NAME + " WHERE revision = 1 AND typeof(text) = 'blob'",
+                null) < text.length() / 4);
+
+        cursor = mMockResolver.query(searchUri("zebra"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests the cache of recently read notes: that repeated reads of a note are served from it,
+     * and that no write leaves a stale note in it.
+     */
+    public void testNoteCache() {
+        final String[] PROJECTION = new String[] {
+                NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.COLUMN_NAME_NOTE,
+                NotePad.Notes.COLUMN_NAME_CATEGORY
+        };
+        insertData();
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+
+        // Asserts that the first read misses the cache and the next ones hit it.
+        Bundle before = cacheStats();
+        for (int read = 0; read < 3; read++) {
+            Cursor cursor = mMockResolver.query(noteUri, PROJECTION, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(TEST_NOTES[0].title, cursor.getString(0));
+            assertEquals(TEST_NOTES[0].note, cursor.getString(1));
+            cursor.close();
+        }
+        Bundle after = cacheStats();
+        assertEquals(1, after.getInt(NotePad.Methods.KEY_CACHE_MISSES)
+                - before.getInt(NotePad.Methods.KEY_CACHE_MISSES));
+        assertEquals(2, after.getInt(NotePad.Methods.KEY_CACHE_HITS)
+                - before.getInt(NotePad.Methods.KEY_CACHE_HITS));
+        assertTrue(after.getInt(NotePad.Methods.KEY_CACHE_SIZE) > 0);
+
+        // Asserts that a cursor held across an update sees the update when it is requeried.
+        Cursor held = mMockResolver.query(noteUri, PROJECTION, null, null, null);
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Updated");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertTrue(held.requery());
+        assertTrue(held.moveToFirst());
+        assertEquals("Updated", held.getString(1));
+
+        // Asserts that renaming the note's category is seen too.
+        values.clear();
+        values.put(NotePad.Categories.COLUMN_NAME_NAME, "Renamed");
+        assertEquals(1, mMockResolver.update(ContentUris.withAppendedId(
+                NotePad.Categories.CONTENT_ID_URI_BASE, NotePad.Categories.UNCATEGORIZED_ID),
+                values, null, null));
+        assertTrue(held.requery());
+        assertTrue(held.moveToFirst());
+        assertEquals("Renamed", held.getString(2));
+
+        // Asserts that a note moved to the trash is no longer returned.
+        mMockResolver.delete(noteUri, null, null);
+        assertTrue(held.requery());
+        assertEquals(0, held.getCount());
+        held.close();
+        Cursor cursor = mMockResolver.query(noteUri, PROJECTION, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Asserts that queries with a selection or an unknown column bypass the cache.
+        before = cacheStats();
+        noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 2);
+        cursor = mMockResolver.query(noteUri, PROJECTION, NotePad.Notes.COLUMN_NAME_TITLE
+                + " = ?", new String[] { TEST_NOTES[1].title }, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(noteUri, new String[] { "COUNT(*)" }, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        after = cacheStats();
+        assertEquals(before.getInt(NotePad.Methods.KEY_CACHE_MISSES),
+                after.getInt(NotePad.Methods.KEY_CACHE_MISSES));
+    }
+
+    /*
+     * Tests the operation metrics: that calls, failures and rows are counted per operation and
+     * URI pattern, and that the latency histogram accounts for every call.
+     */
+    public void testMetrics() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Measured");
+        Uri noteUri = null;
+        for (int index = 0; index < 3; index++) {
+            noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+        for (int index = 0; index < 5; index++) {
+            mMockResolver.query(noteUri, null, null, null, null).close();
+        }
+        assertEquals(3, mMockResolver.update(NotePad.Notes.CONTENT_URI, values, null, null));
+        try {
+            mMockResolver.update(NotePad.Notes.LIVE_FOLDER_URI, values, null, null);
+            fail("Updated the live folder");
+        } catch (IllegalArgumentException e) {
+            // The live folder is read-only
+        }
+
+        // A bulk insert counts as one insert of all its rows, including a row with an explicit
+        // ID, which it inserts the way insert() does.
+        ContentValues withId = new ContentValues(values);
+        withId.put(NotePad.Notes._ID, 1000);
+        assertEquals(3, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI,
+                new ContentValues[] { values, withId, values }));
+
+        Bundle metrics = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Methods.METHOD_METRICS, null, null);
+
+        Bundle inserts = metrics.getBundle("insert notes");
+        assertEquals(4, inserts.getLong(NotePad.Methods.KEY_METRIC_CALLS));
+        assertEquals(6, inserts.getLong(NotePad.Methods.KEY_METRIC_ROWS));
+
+        Bundle queries = metrics.getBundle("query notes/#");
+        assertEquals(5, queries.getLong(NotePad.Methods.KEY_METRIC_CALLS));
+        assertEquals(0, queries.getLong(NotePad.Methods.KEY_METRIC_FAILURES));
+        assertEquals(5, queries.getLong(NotePad.Methods.KEY_METRIC_ROWS));
+        long counted = 0;
+        for (long count : queries.getLongArray(NotePad.Methods.KEY_METRIC_BUCKET_COUNTS)) {
+            counted += count;
+        }
+        assertEquals(5, counted);
+        assertTrue(queries.getLong(NotePad.Methods.KEY_METRIC_P50_MICROS)
+                <= queries.getLong(NotePad.Methods.KEY_METRIC_P99_MICROS));
+        assertTrue(queries.getLong(NotePad.Methods.KEY_METRIC_P99_MICROS)
+                <= queries.getLong(NotePad.Methods.KEY_METRIC_MAX_MICROS));
+
+        assertEquals(3, metrics.getBundle("update notes").getLong(
+                NotePad.Methods.KEY_METRIC_ROWS));
+        assertEquals(1, metrics.getBundle("update live_folders/notes").getLong(
+                NotePad.Methods.KEY_METRIC_FAILURES));
+        assertNull(metrics.getBundle("delete notes"));
+    }
+
+    /*
+     * Tests that every latency falls in the histogram bucket whose limits surround it.
+     */
+    public void testMetricsBuckets() {
+        long limit = 0;
+        for (long micros = 0; micros < 1L << 20; micros += 1 + micros / 7) {
+            int bucket = ProviderMetrics.bucketOf(micros);
+            long lower = bucket == 0 ? 0 : ProviderMetrics.bucketLimit(bucket - 1);
+            assertTrue(micros + " in " + bucket, lower <= micros);
+            assertTrue(micros + " in " + bucket, micros < ProviderMetrics.bucketLimit(bucket));
+            assertTrue(ProviderMetrics.bucketLimit(bucket) >= limit);
+            limit = ProviderMetrics.bucketLimit(bucket);
+
+            // Every bucket is within 25% of its latencies
+            assertTrue(ProviderMetrics.bucketLimit(bucket) - lower <= Math.max(1, lower / 4));
+        }
+    }
+
+    /*
+     * Tests that slow queries are printed by dump() with their literals and arguments redacted.
+     */
+    public void testSlowQueryLog() {
+        insertData();
+
+        // Logs every query
+        Bundle result = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Methods.METHOD_SET_SLOW_QUERY_THRESHOLD, "0", null);
+        assertEquals(0, result.getLong(NotePad.Methods.KEY_SLOW_QUERY_THRESHOLD_MILLIS));
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE },
+                NotePad.Notes.COLUMN_NAME_TITLE + " = 'Secret title' OR "
+                        + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " > 1234 OR "
+                        + NotePad.Notes.COLUMN_NAME_NOTE + " = ?",
+                new String[] { "Secret note" },
+                NotePad.Notes.COLUMN_NAME_TITLE);
+        int rows = cursor.getCount();
+        cursor.close();
+
+        StringWriter dump = new StringWriter();
+        PrintWriter writer = new PrintWriter(dump);
+        getProvider().dump(null, writer, new String[0]);
+        writer.flush();
+        String output = dump.toString();
+
+        assertTrue(output, output.contains("notes SELECT " + NotePad.Notes.COLUMN_NAME_TITLE
+                + " WHERE " + NotePad.Notes.COLUMN_NAME_TITLE + " = ? OR "
+                + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " > ? OR "
+                + NotePad.Notes.COLUMN_NAME_NOTE + " = ? ORDER BY "
+                + NotePad.Notes.COLUMN_NAME_TITLE));
+        assertTrue(output, output.contains(rows + " rows, self: "));
+        assertTrue(output, output.contains("[1 args]"));
+        assertFalse(output, output.contains("Secret"));
+        assertFalse(output, output.contains("1234"));
+
+        // Turns the log off
+        result = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Methods.METHOD_SET_SLOW_QUERY_THRESHOLD, "-1", null);
+        assertEquals(-1, result.getLong(NotePad.Methods.KEY_SLOW_QUERY_THRESHOLD_MILLIS));
+    }
+
+    /*
+     * Tests that the save queue merges the saves of each note and writes the saves of several
+     * notes together.
+     */
+    public void testSaveQueue() {
+        final ArrayList<Runnable> writes = new ArrayList<Runnable>();
+        NoteSaveQueue queue = new NoteSaveQueue(mMockResolver, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                writes.add(command);
+            }
+        });
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "First");
+        Uri first = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        Uri second = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        Uri deleted = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // Saves the first note three times, the second once, and deletes the third
+        for (String text : new String[] { "Draft", "Draft 2", "Final" }) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+            queue.save(first, values);
+        }
+        ContentValues title = new ContentValues();
+        title.put(NotePad.Notes.COLUMN_NAME_TITLE, "Titled");
+        queue.save(first, title);
+        queue.save(second, values);
+        queue.save(deleted, values);
+        queue.delete(deleted);
+
+        // Nothing is written until the writer runs, and it runs once
+        assertEquals(1, writes.size());
+        assertNoteText(first, "First");
+        writes.remove(0).run();
+        queue.flush();
+
+        // The last text of the first note is written along with its title, in one revision
+        assertNoteText(first, "Final");
+        assertNoteText(second, "Final");
+        Cursor cursor = mMockResolver.query(first,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Titled", cursor.getString(0));
+        cursor.close();
+        cursor = mMockResolver.query(NotePad.Revisions.buildRevisionsUri(
+                ContentUris.parseId(first)), null, null, null, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(deleted, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // A later save is written by a new write
+        queue.save(second, title);
+        assertEquals(1, writes.size());
+        writes.remove(0).run();
+        assertTrue(queue.flush());
+    }
+
+    /*
+     * Tests that the save queue keeps a save that fails to be written, reports the failure from
+     * flush(), and writes the save again later.
+     */
+    public void testSaveQueueRetry() {
+        // Writes on the calling thread
+        NoteSaveQueue queue = new NoteSaveQueue(mMockResolver, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "First");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        Uri other = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // A save into a category that doesn't exist yet fails, without losing the other save
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Filed");
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "Later");
+        queue.save(noteUri, values);
+        assertFalse(queue.flush());
+        assertNoteText(noteUri, "First");
+
+        // A later save of the note is merged into the failed one, and fails with it
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Filed later");
+        queue.save(noteUri, values);
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Other");
+        queue.save(other, values);
+        assertFalse(queue.flush());
+        assertNoteText(noteUri, "First");
+        assertNoteText(other, "Other");
+
+        // Once the category exists, the next flush writes the held saves
+        values.clear();
+        values.put(NotePad.Categories.COLUMN_NAME_NAME, "Later");
+        values.put(NotePad.Categories.COLUMN_NAME_COLOR, 0xFF00BCD4);
+        long categoryId = ContentUris.parseId(
+                mMockResolver.insert(NotePad.Categories.CONTENT_URI, values));
+        assertTrue(queue.flush());
+        assertNoteText(noteUri, "Filed");
+        Cursor cursor = mMockResolver.query(noteUri, new String[] {
+                NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_CATEGORY_ID
+        }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Filed later", cursor.getString(0));
+        assertEquals(categoryId, cursor.getLong(1));
+        cursor.close();
+        assertTrue(queue.flush());
+    }
+
+    // Asserts the text of a note.
+    private void assertNoteText(Uri noteUri, String text) {
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(text, cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Returns the statistics of the provider's note cache.
+    private Bundle cacheStats() {
+        return mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Methods.METHOD_CACHE_STATS, null, null);
+    }
+
+    /*
+     * Tests that every query shape the application issues is served by an index. None of them
+     * may scan the whole notes table or sort its results in a temporary B-tree.
+     */
+    public void testQueryPlans() {
+        // Inserts data into the model, so that the planner sees a populated table.
+        insertData();
+
+        final String LIST_COLUMNS = NotePad.Notes._ID + ", " + NotePad.Notes.COLUMN_NAME_TITLE
+                + ", " + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                + NotePad.Notes.COLUMN_NAME_CATEGORY_ID;
+
+        // The notes list, sorted by modification date.
+        assertIndexedPlan(
+                "SELECT " + LIST_COLUMNS + " FROM " + NotePad.Notes.TABLE_NAME
+                        + " WHERE (deleted = 0)"
+                        + " ORDER BY " + NotePad.Notes.DEFAULT_SORT_ORDER,
+                null);
+
+        // The notes list filtered by category.
+        assertIndexedPlan(
+                "SELECT " + LIST_COLUMNS + " FROM " + NotePad.Notes.TABLE_NAME
+                        + " WHERE (deleted = 0)"
+                        + " AND (" + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?)"
+                        + " ORDER BY " + NotePad.Notes.DEFAULT_SORT_ORDER,
+                new String[] { "2" });
+
+        // The live folder listing.
+        assertIndexedPlan(
+                "SELECT " + NotePad.Notes._ID + ", " + NotePad.Notes.COLUMN_NAME_TITLE
+                        + " FROM " + NotePad.Notes.TABLE_NAME
+                        + " WHERE (deleted = 0)"
+                        + " ORDER BY " + NotePad.Notes.DEFAULT_SORT_ORDER,
+                null);
+
+        // A later page of the notes list, filtered by category.
+        assertIndexedPlan(
+                "SELECT " + LIST_COLUMNS + " FROM " + NotePad.Notes.TABLE_NAME
+                        + " WHERE (deleted = 0 AND modified <= ? AND (modified < ? OR"
+                        + " (modified = ? AND _id > ?)))"
+                        + " AND (" + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?)"
+                        + " ORDER BY " + NotePad.Notes.PAGE_SORT_ORDER + " LIMIT 50",
+                new String[] { "0", "0", "0", "1", "2" });
+
+        // A single note, as read by the editors and the stream writer.
+        assertIndexedPlan(
+                "SELECT * FROM " + NotePad.Notes.TABLE_NAME
+                        + " WHERE (" + NotePad.Notes._ID + " = ? AND deleted = 0)"
+                        + " ORDER BY " + NotePad.Notes.DEFAULT_SORT_ORDER,
+                new String[] { "1" });
+
+        // The trash, latest first.
+        assertIndexedPlan(
+                "SELECT " + LIST_COLUMNS + " FROM " + NotePad.Notes.TABLE_NAME
+                        + " WHERE (deleted != 0) ORDER BY deleted DESC",
+                null);
+
+        // A batch of the trash purge.
+        assertIndexedPlan(
+                "DELETE FROM " + NotePad.Notes.TABLE_NAME + " WHERE _id IN (SELECT _id FROM "
+                        + NotePad.Notes.TABLE_NAME + " WHERE deleted != 0 AND deleted < ?"
+                        + " LIMIT 200)",
+                new String[] { "1" });
+
+        // A full-text search, filtered by category.
+        assertIndexedPlan(
+                "SELECT " + LIST_COLUMNS + " FROM " + NotePad.Notes.TABLE_NAME
+                        + " JOIN (SELECT docid FROM notes_fts WHERE notes_fts MATCH ?) AS hits"
+                        + " ON (" + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID
+                        + " = hits.docid)"
+                        + " WHERE " + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?",
+                new String[] { "note*", "2" });
+    }
+
+    // Asserts that the query plan of a statement neither scans the notes table nor sorts.
+    private void assertIndexedPlan(String sql, String[] args) {
+        Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detailIndex = plan.getColumnIndexOrThrow("detail");
+            while (plan.moveToNext()) {
+                String detail = plan.getString(detailIndex);
+
+                // Older SQLite versions print "SCAN TABLE notes", newer ones "SCAN notes".
+                boolean fullScan = detail.matches("SCAN (TABLE )?" + NotePad.Notes.TABLE_NAME
+                        + "( AS \\w+)?$");
+                assertFalse("full table scan in \"" + sql + "\": " + detail, fullScan);
+                assertFalse("sort in \"" + sql + "\": " + detail,
+                        detail.contains("TEMP B-TREE"));
+            }
+        } finally {
+            plan.close();
+        }
+    }
+
+    // Builds a search URI for the given search terms.
+    private static Uri searchUri(String terms) {
+        return NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_QUERY, terms)
+                .build();
+    }
+
     // A utility for converting note data to a ContentValues map.
     private static class NoteInfo {
         String title;
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.graphics.Color;
+import android.os.Debug;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.test.InstrumentationTestCase;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Tests the row binding of {@link NotesAdapter}: that binding a row, once the adapter has shown
+ * every category and every note, doesn't allocate, and that timestamps are formatted as before.
+ */
+public class NotesAdapterTest extends InstrumentationTestCase {
+
+    // The number of notes in the list, and of rows recycled to show them, as on a phone screen
+    private static final int NOTES = 200;
+    private static final int ROWS = 12;
+
+    // The colors of the categories of the notes
+    private static final int[] CATEGORY_COLORS = {
+            Color.RED, Color.GREEN, Color.BLUE, Color.MAGENTA
+    };
+
+    // A start date for the notes, in milliseconds: 2009-01-01 00:00 UTC
+    private static final long START_DATE = 1230768000000L;
+
+    /*
+     * Tests that binding rows while scrolling back and forth over the notes allocates nothing.
+     * The first pass over the notes fills the adapter's caches; the passes after it are counted.
+     */
+    public void testBindDoesNotAllocate() {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                bindWithoutAllocating();
+            }
+        });
+    }
+
+    // Binds the notes to recycled rows, and counts the allocations. Runs on the UI thread.
+    @SuppressWarnings("deprecation")
+    private void bindWithoutAllocating() {
+        ArrayList<NotesAdapter.Note> notes = new ArrayList<NotesAdapter.Note>();
+        for (int i = 0; i < NOTES; i++) {
+            int category = (i / 3) % CATEGORY_COLORS.length;
+            notes.add(new NotesAdapter.Note(i + 1, "Note" + i, START_DATE + i * 45 * 1000L,
+                    "Category" + category, CATEGORY_COLORS[category], "*"));
+        }
+
+        NotesAdapter adapter = new NotesAdapter(null, null);
+        adapter.submitList(notes);
+        assertEquals(NOTES, adapter.getItemCount());
+
+        RecyclerView parent = new RecyclerView(getInstrumentation().getTargetContext());
+        parent.setLayoutManager(new LinearLayoutManager(parent.getContext()));
+        NotesAdapter.NoteHolder[] rows = new NotesAdapter.NoteHolder[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            rows[i] = adapter.onCreateViewHolder(parent, 0);
+        }
+
+        // Shows every note in every row once, as scrolling eventually does
+        for (NotesAdapter.NoteHolder row : rows) {
+            for (int position = 0; position < NOTES; position++) {
+                adapter.bindViewHolder(row, position);
+            }
+        }
+
+        // Scrolls down and up again, each note being bound to the next recycled row
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            for (int position = 0; position < NOTES; position++) {
+                adapter.bindViewHolder(rows[position % ROWS], position);
+            }
+            for (int position = NOTES - 1; position >= 0; position--) {
+                adapter.bindViewHolder(rows[position % ROWS], position);
+            }
+            int allocations = Debug.getThreadAllocCount();
+            assertEquals("Allocations while binding " + 2 * NOTES + " rows", 0, allocations);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+
+        assertEquals("Note" + (NOTES - 1), rows[(NOTES - 1) % ROWS].title.getText().toString());
+    }
+
+    /*
+     * Tests that the timestamp formatter formats as SimpleDateFormat does, and that it formats
+     * each minute only once.
+     */
+    public void testTimestampFormatter() {
+        NotesAdapter.TimestampFormatter formatter =
+                new NotesAdapter.TimestampFormatter(Locale.US);
+        SimpleDateFormat expected = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.US);
+
+        for (long time = START_DATE - 3600 * 1000L; time < START_DATE + 3600 * 1000L;
+                time += 7 * 1000L) {
+            assertEquals(expected.format(new Date(time)), formatter.format(time));
+        }
+
+        // The same minute returns the same string
+        String minute = formatter.format(START_DATE + 5 * 1000L);
+        assertSame(minute, formatter.format(START_DATE + 59 * 1000L));
+        assertNotSame(minute, formatter.format(START_DATE + 60 * 1000L));
+    }
+}
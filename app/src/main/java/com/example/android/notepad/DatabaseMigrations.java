@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Runs the schema migrations of a database. A migration is split in two parts:
+ * <ul>
+ *   <li>A {@link Step} per schema version, which makes the schema changes. Steps run in version
+ *   order inside {@link android.database.sqlite.SQLiteOpenHelper#onUpgrade}, so they should only
+ *   do work that the new schema can't be used without.</li>
+ *   <li>Any number of {@link BackgroundTask}s, which do the heavy work that can wait, such as
+ *   filling a new table from an existing one. A step schedules its tasks, and they are run later,
+ *   off the thread that opened the database, in short transactions of one chunk each. The
+ *   position reached by each task is stored in the database, so a task that is interrupted by the
+ *   process dying resumes where it stopped the next time the database is opened.</li>
+ * </ul>
+ */
+final class DatabaseMigrations {
+
+    // Used for debugging and logging
+    private static final String TAG = "DatabaseMigrations";
+
+    /**
+     * The table holding the position reached by each scheduled background task. A task is
+     * pending while it has a row.
+     */
+    static final String PROGRESS_TABLE_NAME = "migration_progress";
+
+    // The columns of the progress table
+    private static final String COLUMN_NAME_TASK = "task";
+    private static final String COLUMN_NAME_POSITION = "position";
+
+    /**
+     * How long a background task pauses between chunks, so that other connections waiting for the
+     * database get a turn.
+     */
+    private static final long CHUNK_PAUSE_MILLIS = 10;
+
+    // This class cannot be instantiated
+    private DatabaseMigrations() {
+    }
+
+    /**
+     * The schema changes that take a database from the previous version to {@link #version}.
+     */
+    abstract static class Step {
+
+        // The schema version that this step upgrades to
+        final int version;
+
+        Step(int version) {
+            this.version = version;
+        }
+
+        /**
+         * Makes the schema changes of this step. Runs in the upgrade transaction.
+         */
+        abstract void upgrade(SQLiteDatabase db);
+    }
+
+    /**
+     * Work that a step defers to the background. A task works through its data in chunks, in
+     * increasing order of a position, such as a row ID, that it chooses. Each chunk must be
+     * correct to run again, since a chunk's work and its position are committed together but the
+     * data may have changed since the task was scheduled.
+     */
+    abstract static class BackgroundTask {
+
+        // The name that the task's progress is stored under
+        final String name;
+
+        BackgroundTask(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Does the work of the chunk that follows the given position.
+         *
+         * @return The position reached, or {@link #DONE} if there was nothing left to do.
+         */
+        abstract long runChunk(SQLiteDatabase db, long position);
+
+        /**
+         * Called once the task is done, outside of any transaction.
+         */
+        void onDone() {
+        }
+
+        /**
+         * The position returned by {@link #runChunk} when a task is done
+         */
+        static final long DONE = -1;
+    }
+
+    /**
+     * Applies the steps that take a database from oldVersion to newVersion, in version order.
+     *
+     * @throws IllegalStateException if there is a version between the two without a step.
+     */
+    static void upgrade(SQLiteDatabase db, Step[] steps, int oldVersion, int newVersion) {
+        createProgressTable(db);
+
+        int version = oldVersion;
+        for (Step step : steps) {
+            if (step.version <= oldVersion || step.version > newVersion) {
+                continue;
+            }
+            if (step.version != version + 1) {
+                throw new IllegalStateException("No migration to version " + (version + 1));
+            }
+            Log.i(TAG, "Upgrading database to version " + step.version);
+            step.upgrade(db);
+            version = step.version;
+        }
+        if (version != newVersion) {
+            throw new IllegalStateException("No migration to version " + newVersion);
+        }
+    }
+
+    /**
+     * Creates the table that records the progress of background tasks, unless it exists.
+     */
+    static void createProgressTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + PROGRESS_TABLE_NAME + " ("
+                + COLUMN_NAME_TASK + " TEXT PRIMARY KEY,"
+                + COLUMN_NAME_POSITION + " INTEGER NOT NULL"
+                + ");");
+    }
+
+    /**
+     * Schedules a background task to start from the beginning. Scheduling a task that is already
+     * pending restarts it.
+     */
+    static void schedule(SQLiteDatabase db, String task) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_NAME_TASK, task);
+        values.put(COLUMN_NAME_POSITION, 0);
+        db.insertWithOnConflict(PROGRESS_TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Tests whether a background task has been scheduled and isn't done yet.
+     */
+    static boolean isPending(SQLiteDatabase db, String task) {
+        return getPosition(db, task) != BackgroundTask.DONE;
+    }
+
+    /**
+     * Returns the position that a background task has reached, or {@link BackgroundTask#DONE} if
+     * it isn't pending.
+     */
+    private static long getPosition(SQLiteDatabase db, String task) {
+        Cursor cursor = db.query(PROGRESS_TABLE_NAME, new String[] { COLUMN_NAME_POSITION },
+                COLUMN_NAME_TASK + " = ?", new String[] { task }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : BackgroundTask.DONE;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Runs the next chunk of a background task, if it is pending, and records the position that it
+     * reached in the same transaction.
+     *
+     * @return true if the task is still pending afterwards.
+     */
+    static boolean runNextChunk(SQLiteDatabase db, BackgroundTask task) {
+        long position;
+        db.beginTransaction();
+        try {
+            position = getPosition(db, task.name);
+            if (position == BackgroundTask.DONE) {
+                return false;
+            }
+
+            position = task.runChunk(db, position);
+            if (position == BackgroundTask.DONE) {
+                db.delete(PROGRESS_TABLE_NAME, COLUMN_NAME_TASK + " = ?",
+                        new String[] { task.name });
+            } else {
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_NAME_POSITION, position);
+                db.update(PROGRESS_TABLE_NAME, values, COLUMN_NAME_TASK + " = ?",
+                        new String[] { task.name });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (position == BackgroundTask.DONE) {
+            Log.i(TAG, "Finished background migration " + task.name);
+            task.onDone();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs every pending background task to completion, one chunk at a time, pausing between
+     * chunks. Meant to be called on a background thread.
+     */
+    static void runPending(SQLiteDatabase db, BackgroundTask[] tasks) {
+        for (BackgroundTask task : tasks) {
+            while (runNextChunk(db, task)) {
+                SystemClock.sleep(CHUNK_PAUSE_MILLIS);
+            }
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.os.SystemClock;
+import android.text.Editable;
+import android.text.Selection;
+import android.text.TextUtils;
+import android.text.TextWatcher;
+
+import java.util.ArrayDeque;
+
+/**
+ * Records the edits made to a text, to undo and redo them.
+ *
+ * Added to an EditText as a TextWatcher, it records each change as a span: where it starts, the
+ * text it removed and the text it inserted. Only the changed characters are kept, never a copy of
+ * the whole text, so that undoing or redoing an edit replaces just that span, in time
+ * proportional to the size of the edit.
+ *
+ * Typing is recorded as runs: a change to the text just typed, soon enough after the previous
+ * one, is folded into the previous edit instead of making a new one. This covers typing a
+ * character after the previous one, backspacing over them and an input method replacing the
+ * word being composed. Consecutive backspaces and forward deletes are merged the same way. A run
+ * ends at a line break, or when an edit is undone or redone.
+ *
+ * The memory held by the edits is capped. When it goes over the budget, the oldest edits are
+ * dropped first, so the latest ones can always be undone. An edit larger than the whole budget,
+ * such as a very large paste, can't be undone, and clears the history.
+ */
+final class EditHistory implements TextWatcher {
+
+    // The longest pause, in milliseconds, between two keystrokes of one typing run.
+    private static final long MERGE_WINDOW_MILLIS = 2000;
+
+    // The estimated memory held by an edit besides its characters: the edit and its two
+    // builders, with their headers and fields.
+    private static final int EDIT_OVERHEAD_BYTES = 96;
+
+    /*
+     * An edit: the text removed at an offset, and the text inserted in its place. Undoing it
+     * replaces the inserted text with the removed text, and redoing it does the reverse.
+     */
+    private static final class Edit {
+        int mStart;
+        final StringBuilder mRemoved;
+        final StringBuilder mInserted;
+        long mTime;
+
+        Edit(int start, CharSequence removed, CharSequence inserted, long time) {
+            mStart = start;
+            mRemoved = new StringBuilder(removed);
+            mInserted = new StringBuilder(inserted);
+            mTime = time;
+        }
+
+        // The estimated memory held by the edit, in bytes. A char takes two.
+        int size() {
+            return EDIT_OVERHEAD_BYTES + 2 * (mRemoved.capacity() + mInserted.capacity());
+        }
+    }
+
+    private final int mBudgetBytes;
+
+    // The edits that can be undone, oldest first, and those that can be redone, latest undone
+    // last.
+    private final ArrayDeque<Edit> mUndo = new ArrayDeque<Edit>();
+    private final ArrayDeque<Edit> mRedo = new ArrayDeque<Edit>();
+
+    // The estimated memory held by all the edits, in bytes.
+    private int mSizeBytes;
+
+    // Whether changes to the text are recorded. They aren't while an edit is undone or redone,
+    // or while the owner replaces the whole text.
+    private boolean mRecording = true;
+
+    // The text removed by the change being made, from beforeTextChanged() to onTextChanged().
+    private CharSequence mRemoved;
+
+    // The last edit can't be merged with the next change, which starts a new edit.
+    private boolean mSealed;
+
+    /**
+     * @param budgetBytes The most memory the edits may hold, in bytes.
+     */
+    EditHistory(int budgetBytes) {
+        mBudgetBytes = budgetBytes;
+    }
+
+    /**
+     * Starts or stops recording the changes to the text. The owner stops recording while it
+     * replaces the text as a whole, such as when loading a note, and then clears the history.
+     */
+    void setRecording(boolean recording) {
+        mRecording = recording;
+    }
+
+    /**
+     * Drops every edit.
+     */
+    void clear() {
+        mUndo.clear();
+        mRedo.clear();
+        mSizeBytes = 0;
+    }
+
+    boolean canUndo() {
+        return !mUndo.isEmpty();
+    }
+
+    boolean canRedo() {
+        return !mRedo.isEmpty();
+    }
+
+    /**
+     * Returns the estimated memory held by the edits, in bytes. Set to package visibility for
+     * testing purposes.
+     */
+    int getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    /**
+     * Undoes the latest edit, and puts the cursor at its end.
+     *
+     * @param text The text the history was recorded on.
+     * @return False if there is nothing to undo.
+     */
+    boolean undo(Editable text) {
+        Edit edit = mUndo.pollLast();
+        if (edit == null) {
+            return false;
+        }
+        apply(text, edit.mStart, edit.mInserted.length(), edit.mRemoved);
+        mRedo.addLast(edit);
+        return true;
+    }
+
+    /**
+     * Redoes the latest undone edit, and puts the cursor at its end.
+     *
+     * @param text The text the history was recorded on.
+     * @return False if there is nothing to redo.
+     */
+    boolean redo(Editable text) {
+        Edit edit = mRedo.pollLast();
+        if (edit == null) {
+            return false;
+        }
+        apply(text, edit.mStart, edit.mRemoved.length(), edit.mInserted);
+        mUndo.addLast(edit);
+        return true;
+    }
+
+    // Replaces a span of the text, without recording it. Undoing or redoing seals the latest
+    // edit, so that typing afterwards starts a new one.
+    private void apply(Editable text, int start, int length, CharSequence replacement) {
+        boolean recording = mRecording;
+        mRecording = false;
+        try {
+            text.replace(start, start + length, replacement);
+        } finally {
+            mRecording = recording;
+        }
+        Selection.setSelection(text, start + replacement.length());
+        mSealed = true;
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        // Copies the characters only, without the spans of the text
+        mRemoved = mRecording && count > 0 ? TextUtils.substring(s, start, start + count) : "";
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+        if (mRecording && (before > 0 || count > 0)) {
+            record(start, mRemoved, TextUtils.substring(s, start, start + count),
+                    SystemClock.uptimeMillis());
+        }
+        mRemoved = null;
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+    }
+
+    /*
+     * Records a change: the text removed at an offset and the text inserted in its place. A new
+     * change can't be redone past, so it drops the edits that could be redone.
+     */
+    private void record(int start, CharSequence removed, CharSequence inserted, long time) {
+        while (!mRedo.isEmpty()) {
+            mSizeBytes -= mRedo.pollLast().size();
+        }
+
+        Edit last = mUndo.peekLast();
+        int lastSize = last != null ? last.size() : 0;
+        if (last != null && !mSealed && time - last.mTime <= MERGE_WINDOW_MILLIS
+                && merge(last, start, removed, inserted)) {
+            last.mTime = time;
+            mSizeBytes += last.size() - lastSize;
+
+            // Typing and then backspacing over it leaves nothing to undo
+            if (last.mRemoved.length() == 0 && last.mInserted.length() == 0) {
+                mSizeBytes -= mUndo.pollLast().size();
+            }
+        } else {
+            Edit edit = new Edit(start, removed, inserted, time);
+            mUndo.addLast(edit);
+            mSizeBytes += edit.size();
+        }
+        mSealed = endsRun(inserted);
+
+        trim();
+    }
+
+    /*
+     * Merges a change into the previous edit, if it continues a typing run: a change within the
+     * text the edit inserted, such as typing right after it, backspacing over it or an input
+     * method replacing the word being composed; or, after a delete, backspacing right before the
+     * removed text or deleting forward at the same offset.
+     */
+    private static boolean merge(Edit last, int start, CharSequence removed,
+            CharSequence inserted) {
+        int offset = start - last.mStart;
+        int insertedLength = last.mInserted.length();
+        if (insertedLength > 0 && offset >= 0 && offset + removed.length() <= insertedLength) {
+            last.mInserted.replace(offset, offset + removed.length(), inserted.toString());
+            return true;
+        }
+        if (insertedLength == 0 && inserted.length() == 0) {
+            if (start + removed.length() == last.mStart) {
+                last.mRemoved.insert(0, removed);
+                last.mStart = start;
+                return true;
+            }
+            if (start == last.mStart) {
+                last.mRemoved.append(removed);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // A line break ends a typing run.
+    private static boolean endsRun(CharSequence inserted) {
+        int length = inserted.length();
+        return length > 0 && inserted.charAt(length - 1) == '\n';
+    }
+
+    // Drops the oldest edits until the history fits in its budget.
+    private void trim() {
+        while (mSizeBytes > mBudgetBytes && !mUndo.isEmpty()) {
+            mSizeBytes -= mUndo.pollFirst().size();
+        }
+    }
+}
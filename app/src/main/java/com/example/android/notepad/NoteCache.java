@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.AbstractCursor;
+import android.os.Bundle;
+import android.util.LruCache;
+
+/**
+ * A cache of recently read notes, keyed by note ID. Each entry holds a note's whole row, as
+ * the provider returns it by default, so that any projection of those columns can be served
+ * from it. The cache is bounded by the estimated size of its rows in bytes, and evicts the
+ * least recently read notes first.
+ *
+ * Reads race with writes: a reader that started before a write may get the old row after the
+ * write has invalidated the cache. Every invalidation therefore starts a new generation, and a
+ * row is only added if no invalidation happened since its reader took the generation.
+ *
+ * Cached notes are returned in a {@link RowCursor}, whose requery() reads the note again, as
+ * requery() of a database cursor does.
+ */
+final class NoteCache {
+
+    // The estimated overhead, in bytes, of each object that a row holds
+    private static final int OBJECT_OVERHEAD = 16;
+
+    // The columns of the rows that the cache holds
+    private final String[] mColumns;
+
+    // The largest row size that is cached, so that one large note doesn't evict all the others
+    private final int mMaxRowSize;
+
+    private final LruCache<Long, Object[]> mRows;
+
+    // Incremented by every invalidation
+    private long mGeneration;
+
+    /**
+     * @param columns The columns of the cached rows.
+     * @param maxSize The maximum estimated size of all the cached rows, in bytes.
+     */
+    NoteCache(String[] columns, int maxSize) {
+        mColumns = columns;
+        mMaxRowSize = maxSize / 8;
+        mRows = new LruCache<Long, Object[]>(maxSize) {
+            @Override
+            protected int sizeOf(Long noteId, Object[] row) {
+                return estimateSize(row);
+            }
+        };
+    }
+
+    // Estimates the memory that a row takes, in bytes.
+    private static int estimateSize(Object[] row) {
+        int size = OBJECT_OVERHEAD + row.length * 4;
+        for (Object value : row) {
+            if (value instanceof String) {
+                size += OBJECT_OVERHEAD + ((String) value).length() * 2;
+            } else if (value instanceof byte[]) {
+                size += OBJECT_OVERHEAD + ((byte[]) value).length;
+            } else if (value != null) {
+                size += OBJECT_OVERHEAD;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the positions in the cached rows of the given columns, or null if the rows don't
+     * have all of them. A null projection stands for all the cached columns.
+     */
+    int[] mapProjection(String[] projection) {
+        if (projection == null) {
+            projection = mColumns;
+        }
+        int[] indexes = new int[projection.length];
+        for (int index = 0; index < projection.length; index++) {
+            indexes[index] = -1;
+            for (int column = 0; column < mColumns.length; column++) {
+                if (mColumns[column].equals(projection[index])) {
+                    indexes[index] = column;
+                    break;
+                }
+            }
+            if (indexes[index] < 0) {
+                return null;
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Returns the columns of the cached rows.
+     */
+    String[] getColumns() {
+        return mColumns;
+    }
+
+    /**
+     * Returns the generation to pass to {@link #put} with a row read after this call.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Returns the cached row of a note, or null if it isn't cached. Counts a hit or a miss.
+     */
+    Object[] get(long noteId) {
+        return mRows.get(noteId);
+    }
+
+    /**
+     * Caches the row of a note, unless the cache was invalidated since the given generation was
+     * taken or the row is too large.
+     */
+    synchronized void put(long noteId, Object[] row, long generation) {
+        if (generation == mGeneration && estimateSize(row) <= mMaxRowSize) {
+            mRows.put(noteId, row);
+        }
+    }
+
+    /**
+     * Drops the cached row of a note.
+     */
+    synchronized void invalidate(long noteId) {
+        mGeneration++;
+        mRows.remove(noteId);
+    }
+
+    /**
+     * Drops every cached row.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mRows.evictAll();
+    }
+
+    /**
+     * Returns the cache's hit and miss counters and its size.
+     */
+    Bundle getStats() {
+        Bundle stats = new Bundle();
+        stats.putInt(NotePad.Methods.KEY_CACHE_HITS, mRows.hitCount());
+        stats.putInt(NotePad.Methods.KEY_CACHE_MISSES, mRows.missCount());
+        stats.putInt(NotePad.Methods.KEY_CACHE_EVICTIONS, mRows.evictionCount());
+        stats.putInt(NotePad.Methods.KEY_CACHE_SIZE, mRows.size());
+        stats.putInt(NotePad.Methods.KEY_CACHE_MAX_SIZE, mRows.maxSize());
+        return stats;
+    }
+
+    /**
+     * Reads the row of a note, from the cache or the database.
+     */
+    interface RowSource {
+        /**
+         * @return The note's row, or null if there is no such note.
+         */
+        Object[] load();
+    }
+
+    /**
+     * A cursor over the row of a single note, or over no rows if the note doesn't exist, which
+     * returns the given columns of the row. The row is shared with the cache and never modified.
+     */
+    static final class RowCursor extends AbstractCursor {
+
+        private final String[] mColumns;
+        private final int[] mIndexes;
+        private final RowSource mSource;
+        private Object[] mRow;
+
+        /**
+         * @param indexes The positions of the columns in the row, from {@link #mapProjection}.
+         */
+        RowCursor(Object[] row, String[] columns, int[] indexes, RowSource source) {
+            mRow = row;
+            mColumns = columns;
+            mIndexes = indexes;
+            mSource = source;
+        }
+
+        // Returns the value of a column in the current row.
+        private Object get(int column) {
+            checkPosition();
+            return mRow[mIndexes[column]];
+        }
+
+        @Override
+        public int getCount() {
+            return mRow != null ? 1 : 0;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumns;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = get(column);
+            return value != null ? value.toString() : null;
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = get(column);
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            return value != null ? Long.parseLong(value.toString()) : 0;
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = get(column);
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            return value != null ? Double.parseDouble(value.toString()) : 0;
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            return (byte[]) get(column);
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            } else if (value instanceof byte[]) {
+                return FIELD_TYPE_BLOB;
+            } else if (value instanceof Float || value instanceof Double) {
+                return FIELD_TYPE_FLOAT;
+            } else if (value instanceof Number) {
+                return FIELD_TYPE_INTEGER;
+            }
+            return FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return get(column) == null;
+        }
+
+        @Override
+        public boolean requery() {
+            mRow = mSource.load();
+            mPos = -1;
+            return super.requery();
+        }
+    }
+}
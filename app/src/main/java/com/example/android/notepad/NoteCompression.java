@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses the bodies of large notes. A note whose text is longer than
+ * {@link #COMPRESSION_THRESHOLD} characters is stored with a null note column and its text,
+ * encoded in UTF-8 and deflated, in {@link #COLUMN_NAME_COMPRESSED}. Shorter notes are stored as
+ * they are, since deflating a few kilobytes saves little and costs a decompression on every read.
+ *
+ * Compression stays inside the provider: queries that return the note column read the compressed
+ * column as well, and wrap their cursor in a {@link DecompressingCursor}, which returns the text.
+ */
+final class NoteCompression {
+
+    /**
+     * The length, in characters, above which a note's text is stored compressed
+     */
+    static final int COMPRESSION_THRESHOLD = 16 * 1024;
+
+    /**
+     * The column holding the deflated text of a compressed note
+     * <P>Type: BLOB</P>
+     */
+    static final String COLUMN_NAME_COMPRESSED = "note_compressed";
+
+    // The size of the buffers used to stream text in and out of the compressor
+    private static final int BUFFER_SIZE = 8192;
+
+    // This class cannot be instantiated
+    private NoteCompression() {
+    }
+
+    /**
+     * Tests whether the values of an insert or update set a note text long enough to compress.
+     */
+    static boolean isLarge(ContentValues values) {
+        String text = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        return text != null && text.length() > COMPRESSION_THRESHOLD;
+    }
+
+    /**
+     * Replaces the note text in the values of an insert or update by its compressed form, if it
+     * is long enough to compress. Otherwise clears the compressed column, so that the text
+     * replaces any compressed text that the note had.
+     *
+     * @return The text, if it was compressed, or null.
+     */
+    static String compressValues(ContentValues values) {
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            return null;
+        }
+        if (!isLarge(values)) {
+            values.putNull(COLUMN_NAME_COMPRESSED);
+            return null;
+        }
+        String text = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        values.putNull(NotePad.Notes.COLUMN_NAME_NOTE);
+        values.put(COLUMN_NAME_COMPRESSED, compress(text));
+        return text;
+    }
+
+    /**
+     * Deflates a text, encoded in UTF-8.
+     */
+    static byte[] compress(String text) {
+        Compressor compressor = new Compressor(text.length());
+        try {
+            compressor.write(text);
+            return compressor.finish();
+        } finally {
+            compressor.release();
+        }
+    }
+
+    /**
+     * Deflates a text that is written to it in slices, encoded in UTF-8, so that a text can be
+     * compressed without ever being held whole. Must be released once it is no longer needed,
+     * whether or not it was finished.
+     */
+    static final class Compressor {
+
+        private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+        private final ByteArrayOutputStream mBytes;
+        private final Writer mOut;
+
+        /**
+         * Creates a compressor for a text of about the given length, in characters.
+         */
+        Compressor(long length) {
+            mBytes = new ByteArrayOutputStream((int) Math.min(length / 4, Integer.MAX_VALUE));
+            try {
+                mOut = new OutputStreamWriter(new DeflaterOutputStream(mBytes, mDeflater,
+                        BUFFER_SIZE), "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Compresses the next slice of the text.
+         */
+        void write(String slice) {
+            try {
+                mOut.write(slice);
+            } catch (IOException e) {
+                // Writing to memory doesn't fail
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Compresses the rest of the text, and returns the compressed text.
+         */
+        byte[] finish() {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return mBytes.toByteArray();
+        }
+
+        /**
+         * Frees the native memory of the compressor.
+         */
+        void release() {
+            mDeflater.end();
+        }
+    }
+
+    /**
+     * Returns a reader of the text of a compressed note, which inflates it as it is read.
+     */
+    static Reader openReader(byte[] compressed) {
+        try {
+            return new InputStreamReader(new InflaterInputStream(
+                    new ByteArrayInputStream(compressed), new Inflater(),
+                    BUFFER_SIZE), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Inflates the text of a compressed note.
+     *
+     * @throws IllegalStateException if the compressed text is corrupt.
+     */
+    static String decompress(byte[] compressed) {
+        Reader reader = openReader(compressed);
+        try {
+            StringBuilder text = new StringBuilder(compressed.length * 4);
+            char[] buffer = new char[BUFFER_SIZE];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, count);
+            }
+            return text.toString();
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt compressed note", e);
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // Nothing to release but memory
+            }
+        }
+    }
+
+    /**
+     * Adds the compressed column after the given columns, if they include the note column.
+     */
+    static String[] withCompressedColumn(String[] columns) {
+        for (String column : columns) {
+            if (NotePad.Notes.COLUMN_NAME_NOTE.equals(column)) {
+                String[] expanded = new String[columns.length + 1];
+                System.arraycopy(columns, 0, expanded, 0, columns.length);
+                expanded[columns.length] = COLUMN_NAME_COMPRESSED;
+                return expanded;
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Wraps the cursor of a query whose columns went through {@link #withCompressedColumn}, so
+     * that it returns the text of compressed notes. The compressed column is at the given
+     * position, and is hidden from the caller.
+     */
+    static Cursor wrap(Cursor c, String[] columns, int compressedIndex) {
+        if (compressedIndex >= columns.length
+                || !COLUMN_NAME_COMPRESSED.equals(columns[compressedIndex])) {
+            return c;
+        }
+        int noteIndex = -1;
+        for (int index = 0; index < columns.length; index++) {
+            if (NotePad.Notes.COLUMN_NAME_NOTE.equals(columns[index])) {
+                noteIndex = index;
+                break;
+            }
+        }
+        return new DecompressingCursor(c, noteIndex, compressedIndex);
+    }
+
+    /**
+     * A cursor that returns the text of compressed notes in the note column, and hides the
+     * compressed column. The text of the current row is inflated when it is first read.
+     */
+    static final class DecompressingCursor extends CursorWrapper {
+
+        private final int mNoteIndex;
+        private final int mCompressedIndex;
+        private final String[] mColumnNames;
+
+        // The text inflated for the row at mTextPosition
+        private String mText;
+        private int mTextPosition = -1;
+
+        DecompressingCursor(Cursor cursor, int noteIndex, int compressedIndex) {
+            super(cursor);
+            mNoteIndex = noteIndex;
+            mCompressedIndex = compressedIndex;
+
+            String[] names = cursor.getColumnNames();
+            mColumnNames = new String[names.length - 1];
+            System.arraycopy(names, 0, mColumnNames, 0, compressedIndex);
+            System.arraycopy(names, compressedIndex + 1, mColumnNames, compressedIndex,
+                    names.length - compressedIndex - 1);
+        }
+
+        // Maps a column index of this cursor to the wrapped one.
+        private int wrapped(int columnIndex) {
+            return columnIndex < mCompressedIndex ? columnIndex : columnIndex + 1;
+        }
+
+        /**
+         * Tests whether the current row's text is compressed.
+         */
+        boolean isNoteCompressed() {
+            return super.isNull(mNoteIndex) && !super.isNull(mCompressedIndex);
+        }
+
+        /**
+         * Returns a reader of the current row's note text, which inflates it as it is read, or
+         * null if the text isn't compressed.
+         */
+        Reader openNoteReader() {
+            return isNoteCompressed() ? openReader(super.getBlob(mCompressedIndex)) : null;
+        }
+
+        @Override
+        public int getColumnCount() {
+            return mColumnNames.length;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumnNames.clone();
+        }
+
+        @Override
+        public String getColumnName(int columnIndex) {
+            return mColumnNames[columnIndex];
+        }
+
+        @Override
+        public int getColumnIndex(String columnName) {
+            for (int index = 0; index < mColumnNames.length; index++) {
+                if (mColumnNames[index].equalsIgnoreCase(columnName)) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public int getColumnIndexOrThrow(String columnName) {
+            int index = getColumnIndex(columnName);
+            if (index < 0) {
+                throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+            }
+            return index;
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            if (columnIndex == mNoteIndex && isNoteCompressed()) {
+                if (mTextPosition != getPosition()) {
+                    mText = decompress(super.getBlob(mCompressedIndex));
+                    mTextPosition = getPosition();
+                }
+                return mText;
+            }
+            return super.getString(wrapped(columnIndex));
+        }
+
+        @Override
+        public boolean isNull(int columnIndex) {
+            if (columnIndex == mNoteIndex && isNoteCompressed()) {
+                return false;
+            }
+            return super.isNull(wrapped(columnIndex));
+        }
+
+        @Override
+        public int getType(int columnIndex) {
+            if (columnIndex == mNoteIndex && isNoteCompressed()) {
+                return FIELD_TYPE_STRING;
+            }
+            return super.getType(wrapped(columnIndex));
+        }
+
+        @Override
+        public byte[] getBlob(int columnIndex) {
+            return super.getBlob(wrapped(columnIndex));
+        }
+
+        @Override
+        public short getShort(int columnIndex) {
+            return super.getShort(wrapped(columnIndex));
+        }
+
+        @Override
+        public int getInt(int columnIndex) {
+            return super.getInt(wrapped(columnIndex));
+        }
+
+        @Override
+        public long getLong(int columnIndex) {
+            return super.getLong(wrapped(columnIndex));
+        }
+
+        @Override
+        public float getFloat(int columnIndex) {
+            return super.getFloat(wrapped(columnIndex));
+        }
+
+        @Override
+        public double getDouble(int columnIndex) {
+            return super.getDouble(wrapped(columnIndex));
+        }
+
+        @Override
+        public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+            if (columnIndex == mNoteIndex && isNoteCompressed()) {
+                char[] text = getString(columnIndex).toCharArray();
+                buffer.data = text;
+                buffer.sizeCopied = text.length;
+                return;
+            }
+            super.copyStringToBuffer(wrapped(columnIndex), buffer);
+        }
+    }
+}
@@ -30,15 +30,24 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.text.Editable;
+import android.text.Layout;
+import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.widget.AdapterView;
 import android.widget.EditText;
+import android.widget.SimpleCursorAdapter;
 import android.widget.Spinner;
-import android.widget.ArrayAdapter;
+import android.widget.SpinnerAdapter;
 
 /**
  * This Activity handles "editing" a note, where editing is responding to
@@ -46,7 +55,12 @@ import android.widget.ArrayAdapter;
  * {@link Intent#ACTION_EDIT}, create a note {@link Intent#ACTION_INSERT}, or
  * create a new note from the current contents of the clipboard {@link Intent#ACTION_PASTE}.
  *
- * NOTE: Notice that the provider operations in this Activity are taking place on the UI thread.
+ * The note is loaded by a {@link NoteLoadTask} on a background thread, so that the editor is
+ * drawn right away and the text filled in when it arrives. Saves are handed to the
+ * {@link NoteSaveQueue}, which writes them on a background thread, so that leaving the editor
+ * never waits for the database.
+ *
+ * NOTE: Notice that creating a note, and pasting one, still query the provider on the UI thread.
  * This is not a good practice. It is only done here to make the code more readable. A real
  * application should use the {@link android.content.AsyncQueryHandler}
  * or {@link android.os.AsyncTask} object to perform operations asynchronously on a separate thread.
@@ -63,7 +77,7 @@ public class NoteEditor extends Activity {
                     NotePad.Notes._ID,
                     NotePad.Notes.COLUMN_NAME_TITLE,
                     NotePad.Notes.COLUMN_NAME_NOTE,
-                    NotePad.Notes.COLUMN_NAME_CATEGORY  // 添加分类字段
+                    NotePad.Notes.COLUMN_NAME_CATEGORY_ID  // 分类ID
             };
 
     // A label for the saved state of the activity
@@ -77,25 +91,48 @@ public class NoteEditor extends Activity {
     // Global mutable variables
     private int mState;
     private Uri mUri;
-    private Cursor mCursor;
+    private boolean mLoaded;
+    private NoteLoadTask mLoadTask;
+    private SimpleCursorAdapter mCategoryAdapter;
     private EditText mText;
     private Spinner mCategorySpinner;
     private String mOriginalContent;
-    private String mOriginalCategory;
+    private long mOriginalCategoryId = AdapterView.INVALID_ROW_ID;
+
+    /*
+     * Dirty tracking. Every change to the text increments the text generation, so that a save
+     * can tell whether the text changed since the note was loaded or last saved without
+     * comparing the whole text. The category is a single ID, and is compared directly.
+     */
+    private int mTextGeneration;
+    private int mSavedTextGeneration;
+    private long mSavedCategoryId = AdapterView.INVALID_ROW_ID;
+
+    // The most memory the undo history of the text may hold. Older edits are dropped past it.
+    private static final int EDIT_HISTORY_BUDGET_BYTES = 256 * 1024;
+
+    // The edits made to the text since the note was loaded, to undo and redo them
+    private final EditHistory mHistory = new EditHistory(EDIT_HISTORY_BUDGET_BYTES);
 
     /**
      * Defines a custom EditText View that draws lines between each line of text that is displayed.
      */
     public static class LinedEditText extends EditText {
         private Rect mRect;
+        private Rect mClip;
         private Paint mPaint;
 
+        // The end points of the lines to draw, four floats per line. Reused from frame to frame,
+        // and only grown when more lines are visible than ever before.
+        private float[] mLines = new float[0];
+
         // This constructor is used by LayoutInflater
         public LinedEditText(Context context, AttributeSet attrs) {
             super(context, attrs);
 
             // Creates a Rect and a Paint object, and sets the style and color of the Paint object.
             mRect = new Rect();
+            mClip = new Rect();
             mPaint = new Paint();
             mPaint.setStyle(Paint.Style.STROKE);
             mPaint.setColor(0x802196F3); // 使用主题蓝色，半透明
@@ -105,33 +142,59 @@ public class NoteEditor extends Activity {
         }
 
         /**
-         * This is called to draw the LinedEditText object
+         * This is called to draw the LinedEditText object. Only the lines of text that
+         * intersect the canvas's clip bounds are underlined, since the others can't show, and
+         * they are drawn with a single drawLines() call. Scrolling a long note thus costs the
+         * same as scrolling a short one.
          * @param canvas The canvas on which the background is drawn.
          */
         @Override
         protected void onDraw(Canvas canvas) {
 
-            // Gets the number of lines of text in the View.
-            int count = getLineCount();
-
-            // Gets the global Rect and Paint objects
+            // Gets the global Rects and Paint objects
             Rect r = mRect;
+            Rect clip = mClip;
             Paint paint = mPaint;
+            Layout layout = getLayout();
 
-            /*
-             * Draws one line in the rectangle for every line of text in the EditText
-             */
-            for (int i = 0; i < count; i++) {
+            // Gets the visible part of the View, in the same coordinates as the line bounds.
+            // There is nothing to draw before the text is laid out, or if nothing is visible.
+            if (layout != null && canvas.getClipBounds(clip)) {
+
+                /*
+                 * The bounds of the first line give the offset of the layout's lines in the
+                 * View, which includes the padding and the gravity, and the horizontal extent
+                 * of every line.
+                 */
+                int offset = getLineBounds(0, r) - layout.getLineBaseline(0);
+
+                // Finds the lines of text that intersect the clip bounds
+                int first = layout.getLineForVertical(clip.top - offset);
+                int last = layout.getLineForVertical(clip.bottom - offset);
 
-                // Gets the baseline coordinates for the current line of text
-                int baseline = getLineBounds(i, r);
+                float[] lines = mLines;
+                int length = (last - first + 1) * 4;
+                if (lines.length < length) {
+                    lines = new float[length];
+                    mLines = lines;
+                }
 
                 /*
-                 * Draws a line in the background from the left of the rectangle to the right,
-                 * at a vertical position one dip below the baseline, using the "paint" object
-                 * for details.
+                 * Adds one line to the array for every visible line of text. Each line goes from
+                 * the left of the rectangle to the right, at a vertical position one dip below
+                 * the baseline of the text.
                  */
-                canvas.drawLine(r.left, baseline + 1, r.right, baseline + 1, paint);
+                int index = 0;
+                for (int i = first; i <= last; i++) {
+                    float y = layout.getLineBaseline(i) + offset + 1;
+                    lines[index++] = r.left;
+                    lines[index++] = y;
+                    lines[index++] = r.right;
+                    lines[index++] = y;
+                }
+
+                // Draws all the lines at once, using the "paint" object for details.
+                canvas.drawLines(lines, 0, index, paint);
             }
 
             // Finishes up by calling the parent method
@@ -205,24 +268,8 @@ public class NoteEditor extends Activity {
             return;
         }
 
-        /*
-         * Using the URI passed in with the triggering Intent, gets the note or notes in
-         * the provider.
-         * Note: This is being done on the UI thread. It will block the thread until the query
-         * completes. In a sample app, going against a simple provider based on a local database,
-         * the block will be momentary, but in a real app you should use
-         * android.content.AsyncQueryHandler or android.os.AsyncTask.
-         */
-        mCursor = managedQuery(
-                mUri,         // The URI that gets multiple notes from the provider.
-                PROJECTION,   // A projection that returns the note ID, note content and category for each note.
-                null,         // No "where" clause selection criteria.
-                null,         // No "where" clause selection values.
-                null          // Use the default sort order (modification date, descending)
-        );
-
-        // For a paste, initializes the data from clipboard.
-        // (Must be done after mCursor is initialized.)
+        // For a paste, initializes the data from clipboard. The paste is queued like any
+        // save, and the note is loaded once it has been written.
         if (Intent.ACTION_PASTE.equals(action)) {
             // Does the paste
             performPaste();
@@ -230,23 +277,46 @@ public class NoteEditor extends Activity {
             mState = STATE_EDIT;
         }
 
-        // Sets the layout for this Activity. See res/layout/note_editor.xml
+        // Sets the layout for this Activity. See res/layout/note_editor.xml. It is drawn right
+        // away, and the note is filled in by the load that onResume() starts.
         setContentView(R.layout.note_editor);
 
         // Gets a handle to the EditText in the the layout.
         mText = (EditText) findViewById(R.id.note);
 
+        // Counts the changes to the text
+        mText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                mTextGeneration++;
+            }
+        });
+
+        // Records the edits to the text, to undo them
+        mText.addTextChangedListener(mHistory);
+
         // 初始化分类选择器
         mCategorySpinner = (Spinner) findViewById(R.id.category_spinner);
 
-        // 设置分类选择器的适配器
-        ArrayAdapter<CharSequence> adapter = ArrayAdapter.createFromResource(
+        // 设置分类选择器的适配器，分类和笔记一起在后台读取
+        mCategoryAdapter = new SimpleCursorAdapter(
                 this,
-                R.array.categories_array,
-                android.R.layout.simple_spinner_item
+                android.R.layout.simple_spinner_item,
+                null,
+                new String[] { NotePad.Categories.COLUMN_NAME_NAME },
+                new int[] { android.R.id.text1 },
+                0
         );
-        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-        mCategorySpinner.setAdapter(adapter);
+        mCategoryAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        mCategorySpinner.setAdapter(mCategoryAdapter);
 
         /*
          * If this Activity had stopped previously, its state was written the ORIGINAL_CONTENT
@@ -261,85 +331,225 @@ public class NoteEditor extends Activity {
      * This method is called when the Activity is about to come to the foreground. This happens
      * when the Activity comes to the top of the task stack, OR when it is first starting.
      *
-     * Moves to the first note in the list, sets an appropriate title for the action chosen by
-     * the user, puts the note contents into the TextView, and saves the original text as a
-     * backup.
+     * Starts loading the note, in case something changed while paused (such as the title). The
+     * note is shown by {@link #onNoteLoaded} when the load finishes.
      */
     @Override
     protected void onResume() {
         super.onResume();
 
-        /*
-         * mCursor is initialized, since onCreate() always precedes onResume for any running
-         * process. This tests that it's not null, since it should always contain data.
+        if (mLoadTask != null) {
+            mLoadTask.cancel();
+        }
+        mLoadTask = new NoteLoadTask(mTextGeneration);
+        mLoadTask.execute();
+    }
+
+    /**
+     * Loads the note and the categories on a background thread, once the queued saves have been
+     * written. The note's fields are copied out of its cursor there too, so that the UI thread
+     * never reads the database. Cancelling the task also cancels a query that is still running.
+     */
+    private class NoteLoadTask extends AsyncTask<Void, Void, Cursor> {
+
+        private final CancellationSignal mCancellation = new CancellationSignal();
+
+        // The text generation when the load started
+        private final int mGeneration;
+
+        // Whether the queued saves were written before the load
+        private boolean mSaved;
+
+        // The loaded fields of the note. mFound is false if the note doesn't exist.
+        private boolean mFound;
+        private String mTitle;
+        private String mNote;
+        private long mCategoryId;
+
+        NoteLoadTask(int generation) {
+            mGeneration = generation;
+        }
+
+        /**
+         * Cancels the load, and the query that is running, if any.
          */
-        if (mCursor != null) {
-            // Requery in case something changed while paused (such as the title)
-            mCursor.requery();
-
-            /* Moves to the first record. Always call moveToFirst() before accessing data in
-             * a Cursor for the first time. The semantics of using a Cursor are that when it is
-             * created, its internal index is pointing to a "place" immediately before the first
-             * record.
-             */
-            mCursor.moveToFirst();
+        void cancel() {
+            cancel(false);
+            mCancellation.cancel();
+        }
 
-            // Modifies the window title for the Activity according to the current Activity state.
-            if (mState == STATE_EDIT) {
-                // Set the title of the Activity to include the note title
-                int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
-                String title = mCursor.getString(colTitleIndex);
-                Resources res = getResources();
-                String text = String.format(res.getString(R.string.title_edit), title);
-                setTitle(text);
-                // Sets the title to "create" for inserts
-            } else if (mState == STATE_INSERT) {
-                setTitle(getText(R.string.title_create));
-            }
+        /**
+         * @return The categories, for the category spinner, or null if the load was cancelled.
+         */
+        @Override
+        protected Cursor doInBackground(Void... params) {
+            mSaved = NoteSaveQueue.getInstance(NoteEditor.this).flush();
+            ContentResolver resolver = getContentResolver();
+            try {
+                Cursor note = resolver.query(
+                        mUri,         // The URI of the note.
+                        PROJECTION,   // The note ID, note content and category.
+                        null,         // No "where" clause selection criteria.
+                        null,         // No "where" clause selection values.
+                        null,         // No sort order is needed for a single note.
+                        mCancellation
+                );
+                if (note != null) {
+                    try {
+                        if (note.moveToFirst()) {
+                            mTitle = note.getString(
+                                    note.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE));
+                            mNote = note.getString(
+                                    note.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE));
+                            mCategoryId = note.getLong(
+                                    note.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY_ID));
+                            mFound = true;
+                        }
+                    } finally {
+                        note.close();
+                    }
+                }
 
-            /*
-             * onResume() may have been called after the Activity lost focus (was paused).
-             * The user was either editing or creating a note when the Activity paused.
-             * The Activity should re-display the text that had been retrieved previously, but
-             * it should not move the cursor. This helps the user to continue editing or entering.
-             */
+                Cursor categories = resolver.query(
+                        NotePad.Categories.CONTENT_URI,
+                        new String[] {
+                                NotePad.Categories._ID, NotePad.Categories.COLUMN_NAME_NAME
+                        },
+                        null,
+                        null,
+                        NotePad.Categories.DEFAULT_SORT_ORDER,
+                        mCancellation
+                );
 
-            // Gets the note text from the Cursor and puts it in the TextView, but doesn't change
-            // the text cursor's position.
-            int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-            String note = mCursor.getString(colNoteIndex);
-            mText.setTextKeepState(note);
-
-            // 获取分类信息并设置分类选择器
-            int colCategoryIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY);
-            String category = mCursor.getString(colCategoryIndex);
-            if (category != null) {
-                setSpinnerSelection(mCategorySpinner, category);
+                // Runs the query here rather than when the spinner first reads it
+                if (categories != null) {
+                    categories.getCount();
+                }
+                return categories;
+            } catch (OperationCanceledException e) {
+                return null;
             }
+        }
 
-            // Stores the original note text, to allow the user to revert changes.
-            if (mOriginalContent == null) {
-                mOriginalContent = note;
-                mOriginalCategory = category;
+        @Override
+        protected void onCancelled(Cursor categories) {
+            if (categories != null) {
+                categories.close();
             }
+        }
 
-            /*
-             * Something is wrong. The Cursor should always contain data. Report an error in the
-             * note.
-             */
-        } else {
+        @Override
+        protected void onPostExecute(Cursor categories) {
+            if (mLoadTask == this) {
+                mLoadTask = null;
+            }
+            onNoteLoaded(this, categories);
+        }
+    }
+
+    /**
+     * Shows a loaded note: sets an appropriate title for the action chosen by the user, puts the
+     * note contents into the TextView, and saves the original text as a backup.
+     */
+    private void onNoteLoaded(NoteLoadTask load, Cursor categories) {
+        // Replaces the categories, closing the previous ones
+        mCategoryAdapter.changeCursor(categories);
+
+        /*
+         * Something is wrong. The note should always exist. Report an error in the note. Since
+         * the note isn't loaded, nothing is saved.
+         */
+        if (!load.mFound) {
             setTitle(getText(R.string.error_title));
-            mText.setText(getText(R.string.error_message));
+            setTextWithoutHistory(getText(R.string.error_message));
+            return;
+        }
+
+        // Modifies the window title for the Activity according to the current Activity state.
+        if (mState == STATE_EDIT) {
+            // Set the title of the Activity to include the note title
+            Resources res = getResources();
+            String text = String.format(res.getString(R.string.title_edit), load.mTitle);
+            setTitle(text);
+            // Sets the title to "create" for inserts
+        } else if (mState == STATE_INSERT) {
+            setTitle(getText(R.string.title_create));
+        }
+
+        /*
+         * This may be a reload after the Activity lost focus (was paused). The user was either
+         * editing or creating a note when the Activity paused. The Activity should re-display
+         * the text, but it should not move the cursor. This helps the user to continue editing
+         * or entering. If the user typed while the reload ran, their text is kept. If the note
+         * still holds the text that the editor last saved, the text is left as it is, so that
+         * the edits made before the pause can still be undone. So is the text, and the
+         * category, if the saves failed to be written, since the note doesn't hold them yet;
+         * they stay queued for a retry.
+         */
+        if (!mLoaded || mTextGeneration == load.mGeneration) {
+            boolean unchanged = mLoaded && mTextGeneration == mSavedTextGeneration
+                    && (!load.mSaved || TextUtils.equals(load.mNote, mText.getText()));
+            if (!unchanged) {
+                setTextWithoutHistory(load.mNote);
+            }
+            mSavedTextGeneration = mTextGeneration;
+        }
+
+        // 获取分类ID并设置分类选择器
+        if (!mLoaded || load.mSaved) {
+            setSpinnerSelection(mCategorySpinner, load.mCategoryId);
+            mSavedCategoryId = load.mCategoryId;
+        }
+
+        // Stores the original note text, to allow the user to revert changes.
+        if (mOriginalContent == null) {
+            mOriginalContent = load.mNote;
+            mOriginalCategoryId = load.mCategoryId;
+        }
+
+        // The note is now fully shown the first time
+        if (!mLoaded) {
+            mLoaded = true;
+            reportFullyDrawn();
+        }
+    }
+
+    /*
+     * Replaces the whole text, keeping the cursor, without recording the change. The edits made
+     * before can't be undone on the new text, so they are dropped.
+     */
+    private void setTextWithoutHistory(CharSequence text) {
+        mHistory.setRecording(false);
+        try {
+            mText.setTextKeepState(text);
+        } finally {
+            mHistory.setRecording(true);
         }
+        mHistory.clear();
+    }
+
+    /**
+     * Tests whether the note is still being loaded. Set to package visibility for testing
+     * purposes.
+     */
+    boolean isLoading() {
+        return mLoadTask != null;
+    }
+
+    /**
+     * Returns the undo history of the text. Set to package visibility for testing purposes.
+     */
+    EditHistory getHistoryForTest() {
+        return mHistory;
     }
 
     /**
      * 设置分类选择器的选中项
      */
-    private void setSpinnerSelection(Spinner spinner, String value) {
-        ArrayAdapter<CharSequence> adapter = (ArrayAdapter<CharSequence>) spinner.getAdapter();
+    private void setSpinnerSelection(Spinner spinner, long categoryId) {
+        SpinnerAdapter adapter = spinner.getAdapter();
         for (int i = 0; i < adapter.getCount(); i++) {
-            if (adapter.getItem(i).equals(value)) {
+            if (adapter.getItemId(i) == categoryId) {
                 spinner.setSelection(i);
                 break;
             }
@@ -377,17 +587,20 @@ public class NoteEditor extends Activity {
     protected void onPause() {
         super.onPause();
 
+        // Stops a load that is still running
+        if (mLoadTask != null) {
+            mLoadTask.cancel();
+            mLoadTask = null;
+        }
+
         /*
-         * Tests to see that the query operation didn't fail (see onCreate()). The Cursor object
-         * will exist, even if no records were returned, unless the query failed because of some
-         * exception or error.
-         *
+         * Tests to see that the note was loaded (see onNoteLoaded()). Until it is, the editor
+         * doesn't hold the note, and saving it would overwrite or delete the note.
          */
-        if (mCursor != null) {
+        if (mLoaded) {
 
-            // Get the current note text.
-            String text = mText.getText().toString();
-            int length = text.length();
+            // Get the length of the current note text, without copying it.
+            int length = mText.length();
 
             /*
              * If the Activity is in the midst of finishing and there is no text in the current
@@ -406,15 +619,35 @@ public class NoteEditor extends Activity {
                  * that is being edited.
                  */
             } else if (mState == STATE_EDIT) {
-                // Creates a map to contain the new values for the columns
-                updateNote(text, null);
+                // Writes whatever was edited, if anything
+                updateNote(getChangedText(), null);
             } else if (mState == STATE_INSERT) {
+                // The new note gets its title from the text once there is some
+                String text = getChangedText();
                 updateNote(text, text);
-                mState = STATE_EDIT;
+                if (text != null) {
+                    mState = STATE_EDIT;
+                }
             }
         }
     }
 
+    /**
+     * This method is called when the Activity is destroyed. Cancels the load, if it is still
+     * running, and closes the categories.
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mLoadTask != null) {
+            mLoadTask.cancel();
+            mLoadTask = null;
+        }
+        if (mCategoryAdapter != null) {
+            mCategoryAdapter.changeCursor(null);
+        }
+    }
+
     /**
      * This method is called when the user clicks the device's Menu button the first time for
      * this Activity. Android passes in a Menu object that is populated with items.
@@ -449,17 +682,12 @@ public class NoteEditor extends Activity {
 
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
-        // Check if note has changed and enable/disable the revert option
-        if (mCursor != null) {
-            int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-            String savedNote = mCursor.getString(colNoteIndex);
-            String currentNote = mText.getText().toString();
-            if (savedNote.equals(currentNote)) {
-                menu.findItem(R.id.menu_revert).setVisible(false);
-            } else {
-                menu.findItem(R.id.menu_revert).setVisible(true);
-            }
+        // Check if note has changed since it was saved and enable/disable the revert option
+        if (mLoaded) {
+            menu.findItem(R.id.menu_revert).setVisible(mTextGeneration != mSavedTextGeneration);
         }
+        menu.findItem(R.id.menu_undo).setVisible(mLoaded && mHistory.canUndo());
+        menu.findItem(R.id.menu_redo).setVisible(mLoaded && mHistory.canRedo());
         return super.onPrepareOptionsMenu(menu);
     }
 
@@ -477,14 +705,17 @@ public class NoteEditor extends Activity {
         // Handle all of the possible menu actions.
         int id = item.getItemId();
         if (id == R.id.menu_save) {
-            String text = mText.getText().toString();
-            updateNote(text, null);
+            updateNote(getChangedText(), null);
             finish();
         } else if (id == R.id.menu_delete) {
             deleteNote();
             finish();
         } else if (id == R.id.menu_revert) {
             cancelNote();
+        } else if (id == R.id.menu_undo) {
+            mHistory.undo(mText.getText());
+        } else if (id == R.id.menu_redo) {
+            mHistory.redo(mText.getText());
         }
         return super.onOptionsItemSelected(item);
     }
@@ -557,22 +788,36 @@ public class NoteEditor extends Activity {
 //END_INCLUDE(paste)
 
     /**
-     * Replaces the current note contents with the text and title provided as arguments.
-     * @param text The new note contents to use.
+     * Returns the text of the note if it changed since the note was loaded or last saved, or
+     * null if it didn't.
+     */
+    private String getChangedText() {
+        return mTextGeneration != mSavedTextGeneration ? mText.getText().toString() : null;
+    }
+
+    /**
+     * Replaces the current note contents with the text and title provided as arguments, and
+     * saves the category if another one was selected. Only the fields that changed are written,
+     * and nothing at all if none did, so that observers aren't told of a change that didn't
+     * happen.
+     * @param text The new note contents to use, or null if they didn't change.
      * @param title The new note title to use
      */
     private final void updateNote(String text, String title) {
 
         // Sets up a map to contain values to be updated in the provider.
         ContentValues values = new ContentValues();
-        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
 
-        // 获取选择的分类
-        String selectedCategory = mCategorySpinner.getSelectedItem().toString();
-        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, selectedCategory);
+        // 只有分类改变时才写入分类
+        long selectedCategoryId = mCategorySpinner != null
+                ? mCategorySpinner.getSelectedItemId() : AdapterView.INVALID_ROW_ID;
+        if (selectedCategoryId != AdapterView.INVALID_ROW_ID
+                && selectedCategoryId != mSavedCategoryId) {
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, selectedCategoryId);
+        }
 
         // If the action is to insert a new note, this creates an initial title for it.
-        if (mState == STATE_INSERT) {
+        if (mState == STATE_INSERT && text != null) {
 
             // If no title was provided as an argument, create one from the note text.
             if (title == null) {
@@ -600,26 +845,33 @@ public class NoteEditor extends Activity {
             values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
         }
 
-        // This puts the desired notes text into the map.
-        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        // This puts the desired notes text into the map, if it changed.
+        if (text != null) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        }
+
+        // Nothing changed, so there is nothing to write.
+        if (values.size() == 0) {
+            return;
+        }
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
 
         /*
-         * Updates the provider with the new values in the map. The ListView is updated
-         * automatically. The provider sets this up by setting the notification URI for
-         * query Cursor objects to the incoming URI. The content resolver is thus
-         * automatically notified when the Cursor for the URI changes, and the UI is
+         * Queues the update of the provider with the new values in the map. The ListView is
+         * updated automatically once it is written. The provider sets this up by setting the
+         * notification URI for query Cursor objects to the incoming URI. The content resolver
+         * is thus automatically notified when the Cursor for the URI changes, and the UI is
          * updated.
-         * Note: This is being done on the UI thread. It will block the thread until the
-         * update completes. In a sample app, going against a simple provider based on a
-         * local database, the block will be momentary, but in a real app you should use
-         * android.content.AsyncQueryHandler or android.os.AsyncTask.
+         * Note: The update is written on a background thread, so this doesn't block the UI
+         * thread. A later save of the same note before it is written replaces it.
          */
-        getContentResolver().update(
-                mUri,    // The URI for the record to update.
-                values,  // The map of column names and new values to apply to them.
-                null,    // No selection criteria are used, so no where columns are necessary.
-                null     // No where columns are used, so no where arguments are necessary.
-        );
+        NoteSaveQueue.getInstance(this).save(mUri, values);
+
+        // What was just saved is no longer dirty
+        mSavedTextGeneration = mTextGeneration;
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY_ID)) {
+            mSavedCategoryId = selectedCategoryId;
+        }
     }
 
     /**
@@ -627,17 +879,16 @@ public class NoteEditor extends Activity {
      * newly created, or reverts to the original text of the note i
      */
     private final void cancelNote() {
-        if (mCursor != null) {
+        if (mLoaded) {
             if (mState == STATE_EDIT) {
-                // Put the original note text back into the database
-                mCursor.close();
-                mCursor = null;
+                // Put the original note text back into the database, and nothing else
+                mLoaded = false;
                 ContentValues values = new ContentValues();
                 values.put(NotePad.Notes.COLUMN_NAME_NOTE, mOriginalContent);
-                if (mOriginalCategory != null) {
-                    values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, mOriginalCategory);
+                if (mOriginalCategoryId != AdapterView.INVALID_ROW_ID) {
+                    values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, mOriginalCategoryId);
                 }
-                getContentResolver().update(mUri, values, null, null);
+                NoteSaveQueue.getInstance(this).save(mUri, values);
             } else if (mState == STATE_INSERT) {
                 // We inserted an empty note, make sure to delete it
                 deleteNote();
@@ -651,11 +902,10 @@ public class NoteEditor extends Activity {
      * Take care of deleting a note.  Simply deletes the entry.
      */
     private final void deleteNote() {
-        if (mCursor != null) {
-            mCursor.close();
-            mCursor = null;
-            getContentResolver().delete(mUri, null, null);
-            mText.setText("");
+        if (mLoaded) {
+            mLoaded = false;
+            NoteSaveQueue.getInstance(this).delete(mUri);
+            setTextWithoutHistory("");
         }
     }
 }
\ No newline at end of file
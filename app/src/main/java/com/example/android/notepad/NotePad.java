@@ -78,6 +78,17 @@ public final class NotePad {
          */
         private static final String PATH_LIVE_FOLDER = "/live_folders/notes";
 
+        /**
+         * Path part for the full-text search URI
+         */
+        private static final String PATH_SEARCH = "/notes/search";
+
+        /**
+         * Path part for the trash URI. It isn't below {@link #PATH_NOTES}, so that emptying the
+         * trash doesn't notify observers of the notes list.
+         */
+        private static final String PATH_TRASH = "/trash";
+
         /**
          * The content:// style URL for this table
          */
@@ -103,6 +114,57 @@ public final class NotePad {
         public static final Uri LIVE_FOLDER_URI
             = Uri.parse(SCHEME + AUTHORITY + PATH_LIVE_FOLDER);
 
+        /**
+         * The content:// style URL for full-text searches of the notes table. Callers must
+         * supply the search terms in the {@link #QUERY_PARAMETER_QUERY} query parameter. Unless
+         * a sort order is given, matching notes are returned best match first.
+         */
+        public static final Uri SEARCH_URI = Uri.parse(SCHEME + AUTHORITY + PATH_SEARCH);
+
+        /**
+         * The content:// style URL for the notes in the trash. Deleting a note through
+         * {@link #CONTENT_URI} only moves it here; notes are removed for good when they are
+         * deleted through this URI, or by the provider once they have been in the trash for
+         * {@link #TRASH_RETENTION_MILLIS}. A note is restored by updating it through this URI
+         * with {@link #COLUMN_NAME_DELETED} set to 0.
+         */
+        public static final Uri TRASH_URI = Uri.parse(SCHEME + AUTHORITY + PATH_TRASH);
+
+        /**
+         * The content URI base for a single note in the trash. Callers must append a numeric
+         * note id to this Uri.
+         */
+        public static final Uri TRASH_ID_URI_BASE = Uri.parse(SCHEME + AUTHORITY + PATH_TRASH + "/");
+
+        /**
+         * How long a deleted note stays in the trash before the provider purges it: 30 days
+         */
+        public static final long TRASH_RETENTION_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+        /**
+         * Query parameter of {@link #SEARCH_URI} holding the search terms
+         */
+        public static final String QUERY_PARAMETER_QUERY = "q";
+
+        /**
+         * Query parameter holding the maximum number of notes to return. Accepted by
+         * {@link #CONTENT_URI} and {@link #SEARCH_URI}. A paged query of {@link #CONTENT_URI}
+         * is always sorted by {@link #PAGE_SORT_ORDER}.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameter of {@link #CONTENT_URI} holding a page token, built by
+         * {@link #buildPageToken(long, long)} from the last note of the previous page. Only
+         * notes that come after that note in {@link #PAGE_SORT_ORDER} are returned.
+         */
+        public static final String QUERY_PARAMETER_AFTER = "after";
+
+        /**
+         * Query parameter of {@link #SEARCH_URI} holding the number of results to skip
+         */
+        public static final String QUERY_PARAMETER_OFFSET = "offset";
+
         /*
          * MIME type definitions
          */
@@ -123,6 +185,20 @@ public final class NotePad {
          */
         public static final String DEFAULT_SORT_ORDER = "modified DESC";
 
+        /**
+         * The sort order of paged queries. Notes saved in the same millisecond are ordered by ID,
+         * so that every note has exactly one position.
+         */
+        public static final String PAGE_SORT_ORDER = "modified DESC, _id";
+
+        /**
+         * Builds the {@link #QUERY_PARAMETER_AFTER} value that continues a paged query after
+         * the note with the given modification date and ID.
+         */
+        public static String buildPageToken(long modified, long id) {
+            return modified + "," + id;
+        }
+
         /*
          * Column definitions
          */
@@ -152,9 +228,469 @@ public final class NotePad {
         public static final String COLUMN_NAME_MODIFICATION_DATE = "modified";
 
         /**
-         * Column name for the note category
+         * Column name for the ID of the note's category, a row of {@link Categories}
+         * <P>Type: INTEGER (defaults to {@link Categories#UNCATEGORIZED_ID})</P>
+         */
+        public static final String COLUMN_NAME_CATEGORY_ID = "category_id";
+
+        /**
+         * Column name for the name of the note's category. Read from the category table; for
+         * compatibility, a note's category can also be set by name on insert and update.
          * <P>Type: TEXT</P>
          */
         public static final String COLUMN_NAME_CATEGORY = "category";
+
+        /**
+         * Column name for the color of the note's category. Read-only.
+         * <P>Type: INTEGER (an ARGB color)</P>
+         */
+        public static final String COLUMN_NAME_CATEGORY_COLOR = "category_color";
+
+        /**
+         * Column name for the icon of the note's category. Read-only.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_CATEGORY_ICON = "category_icon";
+
+        /**
+         * Column name for the time the note was moved to the trash, or 0 if it wasn't.
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_DELETED = "deleted";
+    }
+
+    /**
+     * Change log contract. Every insert, update and delete of a note is recorded with a sequence
+     * number that only grows, so that a client can ask for the changes after the last one it
+     * processed instead of reading every note again.
+     *
+     * The log is compacted as it grows: only the latest change of each note is kept, and the
+     * oldest changes are dropped once there are too many. A client whose last sequence number
+     * is older than the oldest change kept gets a single {@link #OPERATION_RESET} row instead.
+     */
+    public static final class Changes implements BaseColumns {
+
+        // This class cannot be instantiated
+        private Changes() {}
+
+        /**
+         * The table name offered by this provider
+         */
+        public static final String TABLE_NAME = "note_changes";
+
+        /**
+         * The content:// style URL for the change log. Callers should supply the sequence
+         * number of the last change they processed in {@link #QUERY_PARAMETER_SINCE}; changes
+         * are returned in sequence order.
+         */
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/notes/changes");
+
+        /**
+         * Query parameter of {@link #CONTENT_URI} holding the sequence number of the last change
+         * that the caller processed, or 0 to get every change in the log
+         */
+        public static final String QUERY_PARAMETER_SINCE = "since";
+
+        /**
+         * The MIME type of {@link #CONTENT_URI} providing a directory of changes.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.note.change";
+
+        /*
+         * Column definitions. The _ID column holds the sequence number of the change.
+         */
+
+        /**
+         * Column name for the ID of the changed note, or null in an {@link #OPERATION_RESET} row
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_ID = "note_id";
+
+        /**
+         * Column name for the kind of change, one of the OPERATION constants
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_OPERATION = "operation";
+
+        /**
+         * The note was inserted
+         */
+        public static final int OPERATION_INSERT = 1;
+
+        /**
+         * The note was updated. A client that doesn't know the note yet should treat it as an
+         * insert, since compaction may have dropped the insert.
+         */
+        public static final int OPERATION_UPDATE = 2;
+
+        /**
+         * The note was deleted, or moved to the trash. A note restored from the trash is
+         * logged as an update.
+         */
+        public static final int OPERATION_DELETE = 3;
+
+        /**
+         * The changes since the requested sequence number are no longer in the log. The client
+         * has to read every note again, and continue from the sequence number of this row.
+         */
+        public static final int OPERATION_RESET = 4;
+    }
+
+    /**
+     * Revision history contract. Every save that changes a note's text adds a revision, numbered
+     * from 1 for the oldest text that the history holds. Only the latest hundred or so revisions
+     * of a note are kept; older ones are dropped, and their numbers aren't reused. Revisions are
+     * read through the note's URI, and are deleted with the note.
+     */
+    public static final class Revisions implements BaseColumns {
+
+        // This class cannot be instantiated
+        private Revisions() {}
+
+        /**
+         * The table name offered by this provider
+         */
+        public static final String TABLE_NAME = "note_revisions";
+
+        /**
+         * Path segment appended to a note's URI for its revisions
+         */
+        public static final String PATH_REVISIONS = "revisions";
+
+        /**
+         * Builds the content:// style URL for the revisions of a note, latest first. Append a
+         * revision number to the URI for a single revision.
+         */
+        public static Uri buildRevisionsUri(long noteId) {
+            return Notes.CONTENT_ID_URI_BASE.buildUpon()
+                    .appendPath(Long.toString(noteId))
+                    .appendPath(PATH_REVISIONS)
+                    .build();
+        }
+
+        /**
+         * The MIME type of a note's revisions URI providing a directory of revisions.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.note.revision";
+
+        /**
+         * The MIME type of a single revision.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/vnd.google.note.revision";
+
+        /*
+         * Column definitions
+         */
+
+        /**
+         * Column name for the ID of the note that the revision belongs to
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_ID = "note_id";
+
+        /**
+         * Column name for the number of the revision within its note
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_REVISION = "revision";
+
+        /**
+         * Column name for the time that the revision was saved
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_SAVED = "saved";
+
+        /**
+         * Column name for the text of the note at the revision. Only stored in full every few
+         * revisions, so rebuilding it costs more than reading the other columns. It can only be
+         * read through the URI of a single revision, and isn't in the default projection.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_NOTE = "note";
+    }
+
+    /**
+     * Categories table contract
+     */
+    public static final class Categories implements BaseColumns {
+
+        // This class cannot be instantiated
+        private Categories() {}
+
+        /**
+         * The table name offered by this provider
+         */
+        public static final String TABLE_NAME = "categories";
+
+        /*
+         * URI definitions
+         */
+
+        /**
+         * The content:// style URL for this table
+         */
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/categories");
+
+        /**
+         * The content URI base for a single category. Callers must
+         * append a numeric category id to this Uri to retrieve a category
+         */
+        public static final Uri CONTENT_ID_URI_BASE
+            = Uri.parse("content://" + AUTHORITY + "/categories/");
+
+        /**
+         * 0-relative position of a category ID segment in the path part of a category ID URI
+         */
+        public static final int CATEGORY_ID_PATH_POSITION = 1;
+
+        /**
+         * The content:// style URL for the note counts of every category. Each row holds the
+         * columns of a category, plus {@link #COLUMN_NAME_NOTE_COUNT} and
+         * {@link #COLUMN_NAME_LATEST_MODIFIED}. The counts are kept up to date as notes change,
+         * so reading them doesn't count the notes.
+         */
+        public static final Uri COUNTS_URI
+            = Uri.parse("content://" + AUTHORITY + "/categories/counts");
+
+        /*
+         * MIME type definitions
+         */
+
+        /**
+         * The MIME type of {@link #CONTENT_URI} providing a directory of categories.
+         */
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/vnd.google.note.category";
+
+        /**
+         * The MIME type of a {@link #CONTENT_URI} sub-directory of a single category.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/vnd.google.note.category";
+
+        /**
+         * The default sort order for this table
+         */
+        public static final String DEFAULT_SORT_ORDER = "_id";
+
+        /**
+         * The ID of the category that notes belong to unless they are given another one. This
+         * category can't be deleted; deleting any other category moves its notes here.
+         */
+        public static final long UNCATEGORIZED_ID = 1;
+
+        /*
+         * Column definitions
+         */
+
+        /**
+         * Column name for the name of the category, unique among categories
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_NAME = "name";
+
+        /**
+         * Column name for the color of the category
+         * <P>Type: INTEGER (an ARGB color)</P>
+         */
+        public static final String COLUMN_NAME_COLOR = "color";
+
+        /**
+         * Column name for the icon of the category, a short string such as an emoji
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_ICON = "icon";
+
+        /**
+         * Column name for the number of notes in the category. Only in {@link #COUNTS_URI}.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_COUNT = "note_count";
+
+        /**
+         * Column name for the latest modification date of a note in the category, or null if
+         * the category is empty. Only in {@link #COUNTS_URI}.
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_LATEST_MODIFIED = "latest_modified";
+    }
+
+    /**
+     * Provider methods contract. These are the methods that clients can invoke with
+     * {@link android.content.ContentResolver#call(Uri, String, String, android.os.Bundle)} on
+     * {@link Notes#CONTENT_URI}, and the keys of the bundles that they return.
+     */
+    public static final class Methods {
+
+        // This class cannot be instantiated
+        private Methods() {}
+
+        /**
+         * Returns the statistics of the provider's cache of recently read notes, under the
+         * KEY_CACHE_ keys.
+         */
+        public static final String METHOD_CACHE_STATS = "cache_stats";
+
+        /**
+         * The number of single-note queries served from the cache
+         * <P>Type: int</P>
+         */
+        public static final String KEY_CACHE_HITS = "hits";
+
+        /**
+         * The number of single-note queries that read the database
+         * <P>Type: int</P>
+         */
+        public static final String KEY_CACHE_MISSES = "misses";
+
+        /**
+         * The number of notes dropped from the cache, to make room or because they changed
+         * <P>Type: int</P>
+         */
+        public static final String KEY_CACHE_EVICTIONS = "evictions";
+
+        /**
+         * The estimated size of the cached notes, in bytes
+         * <P>Type: int</P>
+         */
+        public static final String KEY_CACHE_SIZE = "size";
+
+        /**
+         * The maximum estimated size of the cached notes, in bytes
+         * <P>Type: int</P>
+         */
+        public static final String KEY_CACHE_MAX_SIZE = "max_size";
+
+        /**
+         * Returns the operation metrics of the provider. The result holds a bundle for each
+         * operation and URI pattern that has been called, such as "query notes/#", with the
+         * KEY_METRIC_ keys. Latencies are measured inside the provider, in microseconds.
+         */
+        public static final String METHOD_METRICS = "metrics";
+
+        /**
+         * The number of calls of the operation
+         * <P>Type: long</P>
+         */
+        public static final String KEY_METRIC_CALLS = "calls";
+
+        /**
+         * The number of calls that threw an exception
+         * <P>Type: long</P>
+         */
+        public static final String KEY_METRIC_FAILURES = "failures";
+
+        /**
+         * The number of rows that the calls returned, inserted, updated or deleted. The latency
+         * of a query includes running it and counting its rows.
+         * <P>Type: long</P>
+         */
+        public static final String KEY_METRIC_ROWS = "rows";
+
+        /**
+         * The sum of the latencies of the calls
+         * <P>Type: long</P>
+         */
+        public static final String KEY_METRIC_TOTAL_MICROS = "total_us";
+
+        /**
+         * The largest latency of a call
+         * <P>Type: long</P>
+         */
+        public static final String KEY_METRIC_MAX_MICROS = "max_us";
+
+        /**
+         * The median latency of the calls, within 25%
+         * <P>Type: long</P>
+         */
+        public static final String KEY_METRIC_P50_MICROS = "p50_us";
+
+        /**
+         * The 90th percentile of the latencies of the calls, within 25%
+         * <P>Type: long</P>
+         */
+        public static final String KEY_METRIC_P90_MICROS = "p90_us";
+
+        /**
+         * The 99th percentile of the latencies of the calls, within 25%
+         * <P>Type: long</P>
+         */
+        public static final String KEY_METRIC_P99_MICROS = "p99_us";
+
+        /**
+         * The upper limits, exclusive, of the non-empty buckets of the latency histogram, in
+         * increasing order
+         * <P>Type: long[]</P>
+         */
+        public static final String KEY_METRIC_BUCKET_LIMITS = "bucket_limits_us";
+
+        /**
+         * The number of calls in each bucket of {@link #KEY_METRIC_BUCKET_LIMITS}
+         * <P>Type: long[]</P>
+         */
+        public static final String KEY_METRIC_BUCKET_COUNTS = "bucket_counts";
+
+        /**
+         * Sets the duration above which queries are logged as slow, and printed by
+         * "adb shell dumpsys activity provider NotePadProvider". The argument is the duration in
+         * milliseconds, a negative one to turn the log off, or null for the default. Only this
+         * application may call it. The result holds {@link #KEY_SLOW_QUERY_THRESHOLD_MILLIS}.
+         */
+        public static final String METHOD_SET_SLOW_QUERY_THRESHOLD = "set_slow_query_threshold";
+
+        /**
+         * The duration above which queries are logged as slow, or -1 if the log is off
+         * <P>Type: long</P>
+         */
+        public static final String KEY_SLOW_QUERY_THRESHOLD_MILLIS = "slow_query_threshold_ms";
+
+        /*
+         * The set-based methods below change every note that matches a filter, given in the
+         * extras with the KEY_FILTER_ keys, in a single statement, and notify observers of the
+         * notes once. Notes in the trash are never selected. At least one filter is required.
+         * Only this application may call them. The result holds {@link #KEY_COUNT}.
+         */
+
+        /**
+         * Moves the notes that match the filter to another category. The argument is the ID of
+         * the category. Notes already in that category aren't counted.
+         */
+        public static final String METHOD_RECATEGORIZE = "recategorize";
+
+        /**
+         * Moves the notes that match the filter to the trash, as deleting them does.
+         */
+        public static final String METHOD_DELETE_BY_FILTER = "delete_by_filter";
+
+        /**
+         * Sets the modification date of the notes that match the filter. The argument is the
+         * date, in milliseconds since the epoch, or null for the current time.
+         */
+        public static final String METHOD_TOUCH = "touch";
+
+        /**
+         * Selects the notes of a category, by category ID
+         * <P>Type: long</P>
+         */
+        public static final String KEY_FILTER_CATEGORY_ID = "filter_category_id";
+
+        /**
+         * Selects the notes last modified before a date, in milliseconds since the epoch
+         * <P>Type: long</P>
+         */
+        public static final String KEY_FILTER_MODIFIED_BEFORE = "filter_modified_before";
+
+        /**
+         * Selects the notes that match search terms, as {@link Notes#SEARCH_URI} does
+         * <P>Type: String</P>
+         */
+        public static final String KEY_FILTER_QUERY = "filter_query";
+
+        /**
+         * The number of notes that a set-based method changed
+         * <P>Type: int</P>
+         */
+        public static final String KEY_COUNT = "count";
     }
 }
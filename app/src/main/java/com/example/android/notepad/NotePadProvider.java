@@ -20,32 +20,63 @@ import com.example.android.notepad.NotePad;
 
 import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.ContentProvider.PipeDataWriter;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Binder;
 import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.LiveFolders;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LongSparseArray;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Provides access to a database of notes. Each note has a title, the note
@@ -63,18 +94,289 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     /**
      * The database version
      */
-    private static final int DATABASE_VERSION = 3;  // 从 2 改为 3，因为表结构改变了
+    private static final int DATABASE_VERSION = 14;
+
+    /**
+     * The full-text index over note titles and bodies. It is an external content FTS4 table
+     * whose docid is the _ID of the indexed note: it holds the index alone, not a copy of the
+     * notes. The provider keeps it in sync with the notes table, indexing the form of each
+     * note's title and text that {@link NoteTokenizer} segments.
+     */
+    private static final String FTS_TABLE_NAME = "notes_fts";
+
+    /**
+     * The content table of the full-text index, which it reads the indexed tokens from when a
+     * note is taken out of it. It is empty but while a note is being taken out.
+     */
+    private static final String FTS_SOURCE_TABLE_NAME = "notes_fts_source";
+
+    /**
+     * The table in which the full-text index keeps the length of each indexed note. It has a row
+     * for every note in the index, so it tells whether a note is indexed.
+     */
+    private static final String FTS_DOCSIZE_TABLE_NAME = "notes_fts_docsize";
+
+    /**
+     * The background migration task that creates the indexes behind the notes list
+     */
+    private static final String TASK_LIST_INDEXES = "list_indexes";
+
+    /**
+     * The background migration task that fills the note counts of each category
+     */
+    private static final String TASK_CATEGORY_COUNTS = "category_counts";
+
+    /**
+     * The number of categories that each chunk of the category counts backfill counts
+     */
+    private static final int CATEGORY_COUNTS_CHUNK_SIZE = 8;
+
+    /**
+     * The background migration task that fills the full-text index from existing notes
+     */
+    private static final String TASK_SEARCH_BACKFILL = "search_backfill";
+
+    /**
+     * The number of notes that each chunk of the full-text index backfill copies
+     */
+    private static final int SEARCH_BACKFILL_CHUNK_SIZE = 500;
+
+    /**
+     * The background migration task that compresses the large notes saved before compression
+     */
+    private static final String TASK_COMPRESS_NOTES = "compress_notes";
+
+    /**
+     * The number of notes that each chunk of the compression task compresses. The notes it
+     * selects are large, so chunks are small.
+     */
+    private static final int COMPRESS_NOTES_CHUNK_SIZE = 20;
+
+    /**
+     * The number of characters of a note's text, or bytes of its compressed text, that are read
+     * at a time when it is too long to read whole. Even encoded in UTF-8, a slice fits in a
+     * cursor window with room to spare.
+     */
+    private static final int NOTE_SLICE_LENGTH = 256 * 1024;
+
+    /**
+     * Reads a slice of a note's text, from a character position and of a length bound in that
+     * order, followed by the note ID
+     */
+    private static final String NOTE_SLICE_QUERY = "SELECT substr("
+            + NotePad.Notes.COLUMN_NAME_NOTE + ", ?, ?) FROM " + NotePad.Notes.TABLE_NAME
+            + " WHERE " + NotePad.Notes._ID + " = ?";
+
+    /**
+     * The columns that the text of a note is read from: the text and the compressed text, each
+     * only if it fits in one slice of {@link #NOTE_SLICE_LENGTH}, followed by the length of each.
+     */
+    private static final String[] NOTE_TEXT_COLUMNS = new String[] {
+            "CASE WHEN LENGTH(" + NotePad.Notes.COLUMN_NAME_NOTE + ") <= " + NOTE_SLICE_LENGTH
+                    + " THEN " + NotePad.Notes.COLUMN_NAME_NOTE + " END",
+            "CASE WHEN LENGTH(" + NoteCompression.COLUMN_NAME_COMPRESSED + ") <= "
+                    + NOTE_SLICE_LENGTH + " THEN " + NoteCompression.COLUMN_NAME_COMPRESSED
+                    + " END",
+            "LENGTH(" + NotePad.Notes.COLUMN_NAME_NOTE + ")",
+            "LENGTH(" + NoteCompression.COLUMN_NAME_COMPRESSED + ")"
+    };
 
     /**
      * A projection map used to select columns from the database
      */
     private static HashMap<String, String> sNotesProjectionMap;
 
+    /**
+     * The columns of the notes table that a query returns by default
+     */
+    private static String[] sNotesDefaultProjection;
+
     /**
      * A projection map used to select columns from the database
      */
     private static HashMap<String, String> sLiveFolderProjectionMap;
 
+    /**
+     * A projection map used to select columns from the notes table joined with its full-text
+     * index
+     */
+    private static HashMap<String, String> sSearchProjectionMap;
+
+    /**
+     * A projection map used to select columns from the categories table
+     */
+    private static HashMap<String, String> sCategoriesProjectionMap;
+
+    /**
+     * A projection map used to select columns from the categories table joined with their note
+     * counts
+     */
+    private static HashMap<String, String> sCountsProjectionMap;
+
+    /**
+     * The table holding the number of notes in each category, maintained by triggers
+     */
+    private static final String COUNTS_TABLE_NAME = "category_counts";
+
+    /**
+     * The URI that counts cursors watch. Counts change with both notes and categories, and a
+     * cursor watches a URI and its descendants, so it watches the root of the provider.
+     */
+    private static final Uri ROOT_URI = Uri.parse("content://" + NotePad.AUTHORITY);
+
+    /**
+     * The one-row table holding the lowest sequence number that the change log can still answer
+     * from. Compaction raises it when it drops the oldest changes.
+     */
+    private static final String CHANGES_FLOOR_TABLE_NAME = "note_changes_floor";
+
+    /**
+     * Selects the notes that aren't in the trash. Every query of live notes includes it verbatim,
+     * so that SQLite can use the partial list indexes, which only cover those notes.
+     */
+    private static final String LIVE_NOTES_WHERE = NotePad.Notes.COLUMN_NAME_DELETED + " = 0";
+
+    /**
+     * Selects the notes in the trash
+     */
+    private static final String TRASH_WHERE = NotePad.Notes.COLUMN_NAME_DELETED + " != 0";
+
+    /**
+     * Counts the notes outside the trash in each category, and finds the latest modification
+     * date among them, with the columns of the counts table. Fills the counts table, and stands
+     * in for it until it is filled. Ends before its GROUP BY clause.
+     */
+    private static final String COUNT_NOTES_QUERY = "SELECT "
+            + NotePad.Categories.TABLE_NAME + "." + NotePad.Categories._ID + " AS "
+            + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", COUNT("
+            + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + ") AS "
+            + NotePad.Categories.COLUMN_NAME_NOTE_COUNT + ", MAX("
+            + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+            + ") AS " + NotePad.Categories.COLUMN_NAME_LATEST_MODIFIED + " FROM "
+            + NotePad.Categories.TABLE_NAME + " LEFT JOIN " + NotePad.Notes.TABLE_NAME
+            + " ON (" + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID
+            + " = " + NotePad.Categories.TABLE_NAME + "." + NotePad.Categories._ID + " AND "
+            + NotePad.Notes.TABLE_NAME + "." + LIVE_NOTES_WHERE + ")";
+
+    /**
+     * Groups {@link #COUNT_NOTES_QUERY} by category
+     */
+    private static final String COUNT_NOTES_GROUP_BY = " GROUP BY "
+            + NotePad.Categories.TABLE_NAME + "." + NotePad.Categories._ID;
+
+    /**
+     * Selects the notes whose title or body contains a search term, bound twice, for the
+     * searches that the full-text index can't serve. Unclosed, so that
+     * {@link #SEARCH_INDEXED_WHERE} can be added as an alternative.
+     */
+    private static final String SEARCH_LIKE_WHERE = "(" + NotePad.Notes.COLUMN_NAME_TITLE
+            + " LIKE ? OR " + NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?";
+
+    /**
+     * Selects the notes that the full-text index matches with a MATCH expression, bound once
+     */
+    private static final String SEARCH_INDEXED_WHERE = NotePad.Notes._ID
+            + " IN (SELECT docid FROM " + FTS_TABLE_NAME + " WHERE " + FTS_TABLE_NAME
+            + " MATCH ?)";
+
+    /**
+     * The number of notes that are purged from the trash in one transaction
+     */
+    private static final int TRASH_PURGE_BATCH_SIZE = 200;
+
+    /**
+     * How long the purge pauses between batches, so that saves waiting for the database get a
+     * turn.
+     */
+    private static final long TRASH_PURGE_PAUSE_MILLIS = 10;
+
+    /**
+     * The number of changes that the change log keeps after it is compacted
+     */
+    private static final int CHANGE_LOG_LIMIT = 1000;
+
+    /**
+     * The number of logged changes after which the change log is compacted again
+     */
+    private static final int CHANGE_LOG_COMPACTION_INTERVAL = CHANGE_LOG_LIMIT / 4;
+
+    /**
+     * Columns of the change log, in the order that they are returned in
+     */
+    private static final String[] CHANGES_COLUMNS = new String[] {
+            NotePad.Changes._ID,
+            NotePad.Changes.COLUMN_NAME_NOTE_ID,
+            NotePad.Changes.COLUMN_NAME_OPERATION
+    };
+
+    /**
+     * Name of the hidden column carrying the FTS match statistics of each search result
+     */
+    private static final String SEARCH_MATCHINFO = "matchinfo";
+
+    /**
+     * Per-column weights for ranking search results: a hit in the title counts for more than a
+     * hit in the body. The order matches the column order of the full-text index.
+     */
+    private static final double[] SEARCH_COLUMN_WEIGHTS = { 2.0, 1.0 };
+
+    /**
+     * The number of ranked search results whose columns are read by one query
+     */
+    private static final int SEARCH_PAGE_BATCH_SIZE = 500;
+
+    /**
+     * Okapi BM25 tuning parameters
+     */
+    private static final double BM25_K1 = 1.2;
+    private static final double BM25_B = 0.75;
+
+    /**
+     * The columns that {@link #bulkInsert(Uri, ContentValues[])} writes with its compiled
+     * statement, in the order they are bound.
+     */
+    private static final String[] BULK_INSERT_COLUMNS = new String[] {
+            NotePad.Notes.COLUMN_NAME_TITLE,             // Binding position 1
+            NotePad.Notes.COLUMN_NAME_NOTE,              // Binding position 2
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,       // Binding position 3
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, // Binding position 4
+            NotePad.Notes.COLUMN_NAME_CATEGORY_ID,       // Binding position 5
+    };
+
+    /**
+     * The WHERE clause selecting a single note, with its ID as the only argument
+     */
+    private static final String NOTE_ID_WHERE = NotePad.Notes._ID + " = ?";
+
+    /**
+     * The WHERE clause selecting a single note outside the trash, with its ID as the only
+     * argument. Updates through a note's URI use it; notes in the trash are only updated through
+     * the trash URI.
+     */
+    private static final String LIVE_NOTE_ID_WHERE = NOTE_ID_WHERE + " AND " + LIVE_NOTES_WHERE;
+
+    /**
+     * The number of compiled single-note update statements to keep, one per set of updated
+     * columns. The editors only ever update a handful of column sets.
+     */
+    private static final int UPDATE_STATEMENT_CACHE_SIZE = 8;
+
+    /**
+     * The maximum estimated size, in bytes, of the notes kept in {@link #mNoteCache}. Enough for
+     * a few hundred typical notes; large notes are left out of it.
+     */
+    private static final int NOTE_CACHE_SIZE = 512 * 1024;
+
+    // Returned by loadNote() in place of the row of a compressed note
+    private static final Object[] COMPRESSED_NOTE = new Object[0];
+
+    /**
+     * The size of each connection's prepared statement cache. The default of 25 is shared by
+     * every query shape of the provider, including the per-projection single-note reads, the
+     * list pages and the search join, so it is raised to keep all of them compiled.
+     */
+    private static final int SQL_CACHE_SIZE = 50;
+
     /**
      * Standard projection for the interesting columns of a normal note.
      */
@@ -86,6 +388,9 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     private static final int READ_NOTE_NOTE_INDEX = 1;
     private static final int READ_NOTE_TITLE_INDEX = 2;
 
+    // The number of characters copied at a time when a compressed note is streamed
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
     /*
      * Constants used by the Uri matcher to choose an action based on the pattern
      * of the incoming URI
@@ -99,6 +404,53 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // The incoming URI matches the Live Folder URI pattern
     private static final int LIVE_FOLDER_NOTES = 3;
 
+    // The incoming URI matches the full-text search URI pattern
+    private static final int SEARCH = 4;
+
+    // The incoming URI matches the Categories URI pattern
+    private static final int CATEGORIES = 5;
+
+    // The incoming URI matches the Category ID URI pattern
+    private static final int CATEGORY_ID = 6;
+
+    // The incoming URI matches the category counts URI pattern
+    private static final int CATEGORY_COUNTS = 7;
+
+    // The incoming URI matches the change log URI pattern
+    private static final int CHANGES = 8;
+
+    // The incoming URI matches the trash URI pattern
+    private static final int TRASH = 9;
+
+    // The incoming URI matches the URI pattern of a note in the trash
+    private static final int TRASH_ID = 10;
+
+    // The incoming URI matches the revisions URI pattern
+    private static final int REVISIONS = 11;
+
+    // The incoming URI matches the URI pattern of a single revision
+    private static final int REVISION_ID = 12;
+
+    /**
+     * The URI patterns registered with the Uri matcher, by match code, as the operation metrics
+     * name them
+     */
+    private static final String[] URI_PATTERNS = new String[] {
+            null,
+            "notes",
+            "notes/#",
+            "live_folders/notes",
+            "notes/search",
+            "categories",
+            "categories/#",
+            "categories/counts",
+            "notes/changes",
+            "trash",
+            "trash/#",
+            "notes/#/revisions",
+            "notes/#/revisions/#"
+    };
+
     /**
      * A UriMatcher instance
      */
@@ -107,6 +459,71 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // Handle to a new DatabaseHelper.
     private DatabaseHelper mOpenHelper;
 
+    // The title given to new notes that don't have one.
+    private String mDefaultTitle;
+
+    // Runs the provider's background work, one task at a time, on a low priority thread.
+    private ExecutorService mMaintenance;
+
+    // Counts the changes logged since the change log was last compacted.
+    private final AtomicInteger mChangesSinceCompaction = new AtomicInteger();
+
+    // Set while a compaction of the change log is queued on mMaintenance.
+    private final AtomicBoolean mCompactionQueued = new AtomicBoolean();
+
+    /**
+     * The batch that the calling thread is applying, if any. While a batch is applied, its
+     * operations record that they changed data instead of notifying observers one by one.
+     */
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>();
+
+    /**
+     * Compiled "UPDATE notes SET ... WHERE _id = ?" statements, keyed by the sorted names of the
+     * columns they set. Saving a note then only binds and executes a statement, instead of
+     * building and compiling the same SQL again. Guarded by its own lock, which is also held
+     * while a statement is bound and executed, since a statement's bindings are not thread-safe.
+     */
+    private final Map<String, SQLiteStatement> mUpdateStatements =
+            new LinkedHashMap<String, SQLiteStatement>(UPDATE_STATEMENT_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+                    if (size() > UPDATE_STATEMENT_CACHE_SIZE) {
+                        eldest.getValue().close();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    /**
+     * The notes recently read through single-note URIs. The editors and the text stream read
+     * the same note again and again, every time they come to the foreground, and are served
+     * from memory. Every write that notifies observers of a change invalidates it.
+     */
+    private final NoteCache mNoteCache = new NoteCache(sNotesDefaultProjection, NOTE_CACHE_SIZE);
+
+    /**
+     * The counters and latency histograms of the provider's operations, per URI pattern
+     */
+    private final ProviderMetrics mMetrics = new ProviderMetrics(URI_PATTERNS);
+
+    /**
+     * The queries that took longer than a threshold, printed by {@link #dump}. Callers choose
+     * the selection and sort order of their queries, and this shows which ones are expensive.
+     */
+    private final SlowQueryLog mSlowQueries = new SlowQueryLog();
+
+    /**
+     * State of a batch of operations being applied by {@link #applyBatch(ArrayList)}
+     */
+    private static final class Batch {
+        // The URIs whose changes have been committed at yield points, and those changed since
+        // the last commit, in the order they were first changed. Each is notified once, when
+        // the batch ends.
+        final LinkedHashSet<Uri> committed = new LinkedHashSet<Uri>();
+        final LinkedHashSet<Uri> pending = new LinkedHashSet<Uri>();
+    }
+
 
     /**
      * A block that instantiates and sets static objects
@@ -130,6 +547,28 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // live folder operation
         sUriMatcher.addURI(NotePad.AUTHORITY, "live_folders/notes", LIVE_FOLDER_NOTES);
 
+        // Add a pattern that routes URIs terminated with notes/search to a full-text search
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/search", SEARCH);
+
+        // Add a pattern that routes URIs terminated with notes/changes to the change log
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/changes", CHANGES);
+
+        // Add patterns that route URIs terminated with trash to the deleted notes
+        sUriMatcher.addURI(NotePad.AUTHORITY, "trash", TRASH);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "trash/#", TRASH_ID);
+
+        // Add patterns that route URIs terminated with revisions to a note's revision history
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Revisions.PATH_REVISIONS,
+                REVISIONS);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Revisions.PATH_REVISIONS + "/#",
+                REVISION_ID);
+
+        // Add patterns that route URIs terminated with "categories", optionally followed by
+        // an integer, to category operations
+        sUriMatcher.addURI(NotePad.AUTHORITY, "categories", CATEGORIES);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "categories/#", CATEGORY_ID);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "categories/counts", CATEGORY_COUNTS);
+
         /*
          * Creates and initializes a projection map that returns all columns
          */
@@ -156,8 +595,36 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
                 NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
 
-        // 添加分类字段的映射
-        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY, NotePad.Notes.COLUMN_NAME_CATEGORY);
+        // Maps "category_id" to "category_id"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
+
+        // Maps "deleted" to "deleted"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_DELETED,
+                NotePad.Notes.COLUMN_NAME_DELETED);
+
+        /*
+         * Maps the category's name, color and icon to lookups in the categories table. They are
+         * scalar subqueries rather than a join, so that selections from callers can keep naming
+         * the note columns, including _ID, without qualifying them.
+         */
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY,
+                categoryLookup(NotePad.Categories.COLUMN_NAME_NAME, NotePad.Notes.COLUMN_NAME_CATEGORY));
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR,
+                categoryLookup(NotePad.Categories.COLUMN_NAME_COLOR,
+                        NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR));
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ICON,
+                categoryLookup(NotePad.Categories.COLUMN_NAME_ICON,
+                        NotePad.Notes.COLUMN_NAME_CATEGORY_ICON));
+
+        // The columns returned when the caller doesn't give a projection
+        sNotesDefaultProjection = sNotesProjectionMap.keySet().toArray(
+                new String[sNotesProjectionMap.size()]);
+
+        // Maps the compressed text of large notes, which the provider reads along with the note
+        // column and decompresses. It isn't part of the default projection.
+        sNotesProjectionMap.put(NoteCompression.COLUMN_NAME_COMPRESSED,
+                NoteCompression.COLUMN_NAME_COMPRESSED);
 
         /*
          * Creates an initializes a projection map for handling Live Folders
@@ -172,6 +639,62 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Maps "NAME" to "title AS NAME"
         sLiveFolderProjectionMap.put(LiveFolders.NAME, NotePad.Notes.COLUMN_NAME_TITLE + " AS " +
                 LiveFolders.NAME);
+
+        /*
+         * Creates and initializes a projection map for full-text searches. The notes table is
+         * joined with the index hits, so every column is qualified with its table name.
+         */
+        sSearchProjectionMap = new HashMap<String, String>();
+        for (Map.Entry<String, String> column : sNotesProjectionMap.entrySet()) {
+            if (column.getKey().equals(column.getValue())) {
+                sSearchProjectionMap.put(column.getKey(), NotePad.Notes.TABLE_NAME + "."
+                        + column.getKey() + " AS " + column.getKey());
+            } else {
+                // The category lookups are already qualified
+                sSearchProjectionMap.put(column.getKey(), column.getValue());
+            }
+        }
+
+        // Maps "matchinfo" to the statistics the provider uses to rank each match
+        sSearchProjectionMap.put(SEARCH_MATCHINFO, "hits." + SEARCH_MATCHINFO);
+
+        /*
+         * Creates and initializes a projection map for the categories table, which returns
+         * every column under its own name
+         */
+        sCategoriesProjectionMap = new HashMap<String, String>();
+        sCategoriesProjectionMap.put(NotePad.Categories._ID, NotePad.Categories._ID);
+        sCategoriesProjectionMap.put(NotePad.Categories.COLUMN_NAME_NAME,
+                NotePad.Categories.COLUMN_NAME_NAME);
+        sCategoriesProjectionMap.put(NotePad.Categories.COLUMN_NAME_COLOR,
+                NotePad.Categories.COLUMN_NAME_COLOR);
+        sCategoriesProjectionMap.put(NotePad.Categories.COLUMN_NAME_ICON,
+                NotePad.Categories.COLUMN_NAME_ICON);
+
+        /*
+         * Creates and initializes a projection map for the category counts, which qualifies the
+         * category columns with their table name
+         */
+        sCountsProjectionMap = new HashMap<String, String>();
+        for (String column : sCategoriesProjectionMap.keySet()) {
+            sCountsProjectionMap.put(column,
+                    NotePad.Categories.TABLE_NAME + "." + column + " AS " + column);
+        }
+        sCountsProjectionMap.put(NotePad.Categories.COLUMN_NAME_NOTE_COUNT,
+                NotePad.Categories.COLUMN_NAME_NOTE_COUNT);
+        sCountsProjectionMap.put(NotePad.Categories.COLUMN_NAME_LATEST_MODIFIED,
+                NotePad.Categories.COLUMN_NAME_LATEST_MODIFIED);
+    }
+
+    /**
+     * Returns a projection of a column of the note's category, looked up by the note's
+     * category ID.
+     */
+    private static String categoryLookup(String column, String alias) {
+        return "(SELECT " + column + " FROM " + NotePad.Categories.TABLE_NAME + " WHERE "
+                + NotePad.Categories.TABLE_NAME + "." + NotePad.Categories._ID + " = "
+                + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID
+                + ") AS " + alias;
     }
 
     /**
@@ -181,10 +704,322 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     static class DatabaseHelper extends SQLiteOpenHelper {
 
+        // The value of PRAGMA synchronous applied to the writer connection
+        private final String mSynchronous;
+
+        // The resources holding the names and colors of the default categories
+        private final Resources mResources;
+
+        // Cleared while the full-text index is still being filled from existing notes
+        private volatile boolean mSearchIndexReady = true;
+
+        // Cleared while the note counts of each category are still being filled
+        private volatile boolean mCategoryCountsReady = true;
+
+        /**
+         * The schema migrations, one step per version after 2. Version 1 databases are recreated
+         * instead; see {@link #onUpgrade}.
+         */
+        private final DatabaseMigrations.Step[] mSteps = new DatabaseMigrations.Step[] {
+
+            // 版本2升级到版本3，添加分类字段
+            new DatabaseMigrations.Step(3) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                            + NotePad.Notes.COLUMN_NAME_CATEGORY + " TEXT DEFAULT '未分类'");
+                }
+            },
+
+            // Version 4 adds the full-text index. Existing notes are copied into it in the
+            // background; new and changed notes are indexed by the provider right away.
+            new DatabaseMigrations.Step(4) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    createSearchIndex(db);
+                    DatabaseMigrations.schedule(db, TASK_SEARCH_BACKFILL);
+                }
+            },
+
+            // Version 5 added the indexes behind the sorted and category-filtered list queries.
+            // Version 6 rebuilds the notes table, which creates them again on the category ID,
+            // so they are left to its step.
+            new DatabaseMigrations.Step(5) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                }
+            },
+
+            // Version 6 moves categories into their own table and refers to them by ID.
+            new DatabaseMigrations.Step(6) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    upgradeToCategoryIds(db);
+                }
+            },
+
+            // Version 7 added the note counts of each category. Version 10 creates them again to
+            // count only the notes outside the trash, so they are left to its step.
+            new DatabaseMigrations.Step(7) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                }
+            },
+
+            // Version 8 records the progress of background migration tasks.
+            new DatabaseMigrations.Step(8) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    DatabaseMigrations.createProgressTable(db);
+                }
+            },
+
+            // Version 9 adds the change log. Changes made before it are not in the log.
+            new DatabaseMigrations.Step(9) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    createChangeLog(db);
+                }
+            },
+
+            // Version 10 adds the trash.
+            new DatabaseMigrations.Step(10) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    upgradeToTrash(db);
+                }
+            },
+
+            // Version 11 adds the revision history. A note's history starts at its first save
+            // after the upgrade.
+            new DatabaseMigrations.Step(11) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    NoteRevisions.createTable(db);
+                }
+            },
+
+            // Version 12 stores large notes compressed. Existing large notes are compressed in
+            // the background; until then they are read as they are.
+            new DatabaseMigrations.Step(12) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    if (!hasColumn(db, NotePad.Notes.TABLE_NAME,
+                            NoteCompression.COLUMN_NAME_COMPRESSED)) {
+                        db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                                + NoteCompression.COLUMN_NAME_COMPRESSED + " BLOB");
+                    }
+
+                    DatabaseMigrations.schedule(db, TASK_COMPRESS_NOTES);
+                }
+            },
+
+            // Version 13 stops the full-text index from keeping a copy of every note, which
+            // held the text of compressed notes as it is. The index is created again, empty,
+            // and filled from the notes in the background.
+            new DatabaseMigrations.Step(13) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    dropSearchTriggers(db);
+                    db.execSQL("DROP TABLE IF EXISTS " + FTS_TABLE_NAME);
+                    db.execSQL("DROP TABLE IF EXISTS " + FTS_SOURCE_TABLE_NAME);
+                    createSearchIndex(db);
+                    DatabaseMigrations.schedule(db, TASK_SEARCH_BACKFILL);
+                }
+            },
+
+            // Version 14 indexes the segmented form of every note, which makes CJK text
+            // searchable, in place of the text itself. The provider indexes notes from then on,
+            // instead of triggers, and the index is filled again in the background.
+            new DatabaseMigrations.Step(14) {
+                @Override
+                void upgrade(SQLiteDatabase db) {
+                    dropSearchTriggers(db);
+                    db.execSQL("DROP TABLE IF EXISTS " + FTS_TABLE_NAME);
+                    db.execSQL("DROP TABLE IF EXISTS " + FTS_SOURCE_TABLE_NAME);
+                    createSearchIndex(db);
+                    DatabaseMigrations.schedule(db, TASK_SEARCH_BACKFILL);
+                }
+            },
+        };
+
+        /**
+         * Creates the list indexes that an upgrade dropped. An index is built by a single
+         * statement, so this task has a single chunk; until it runs, the notes list is read
+         * without the indexes.
+         */
+        private final DatabaseMigrations.BackgroundTask mListIndexes =
+                new DatabaseMigrations.BackgroundTask(TASK_LIST_INDEXES) {
+                    @Override
+                    long runChunk(SQLiteDatabase db, long position) {
+                        createListIndexes(db);
+                        return DONE;
+                    }
+                };
+
+        /**
+         * Fills the note counts of each category, in order of category ID. Each chunk counts the
+         * notes of a few categories, and the triggers keep those counts up to date from then on,
+         * so the task can run while notes are being edited.
+         */
+        private final DatabaseMigrations.BackgroundTask mCategoryCounts =
+                new DatabaseMigrations.BackgroundTask(TASK_CATEGORY_COUNTS) {
+                    @Override
+                    long runChunk(SQLiteDatabase db, long position) {
+                        long end = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX("
+                                + NotePad.Categories._ID + "), " + DONE + ") FROM (SELECT "
+                                + NotePad.Categories._ID + " FROM "
+                                + NotePad.Categories.TABLE_NAME + " WHERE "
+                                + NotePad.Categories._ID + " > ? ORDER BY "
+                                + NotePad.Categories._ID + " LIMIT "
+                                + CATEGORY_COUNTS_CHUNK_SIZE + ")",
+                                new String[] { Long.toString(position) });
+                        if (end == DONE) {
+                            return DONE;
+                        }
+
+                        String category = NotePad.Categories.TABLE_NAME + "."
+                                + NotePad.Categories._ID;
+                        fillCategoryCounts(db, category + " > ? AND " + category + " <= ?",
+                                new String[] { Long.toString(position), Long.toString(end) });
+                        return end;
+                    }
+
+                    @Override
+                    void onDone() {
+                        mCategoryCountsReady = true;
+                    }
+                };
+
+        /**
+         * Copies the notes that the full-text index is missing into it, in order of note ID.
+         * Notes that the provider has already indexed are skipped, so the task can run while
+         * notes are being edited. Compressed notes are decompressed to be indexed.
+         */
+        private final DatabaseMigrations.BackgroundTask mSearchBackfill =
+                new DatabaseMigrations.BackgroundTask(TASK_SEARCH_BACKFILL) {
+                    @Override
+                    long runChunk(SQLiteDatabase db, long position) {
+                        String[] range = new String[] { Long.toString(position) };
+                        long end = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX("
+                                + NotePad.Notes._ID + "), " + DONE + ") FROM (SELECT "
+                                + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME
+                                + " WHERE " + NotePad.Notes._ID + " > ? ORDER BY "
+                                + NotePad.Notes._ID + " LIMIT " + SEARCH_BACKFILL_CHUNK_SIZE + ")",
+                                range);
+                        if (end == DONE) {
+                            return DONE;
+                        }
+
+                        String missing = NotePad.Notes._ID + " > ? AND " + NotePad.Notes._ID
+                                + " <= ? AND NOT EXISTS (SELECT 1 FROM " + FTS_DOCSIZE_TABLE_NAME
+                                + " WHERE docid = " + NotePad.Notes.TABLE_NAME + "."
+                                + NotePad.Notes._ID + ")";
+                        String[] args = new String[] {
+                                Long.toString(position), Long.toString(end)
+                        };
+                        Cursor notes = db.query(NotePad.Notes.TABLE_NAME,
+                                withNoteTextColumns(NotePad.Notes._ID,
+                                        NotePad.Notes.COLUMN_NAME_TITLE),
+                                missing, args, null, null, null);
+                        try {
+                            while (notes.moveToNext()) {
+                                long noteId = notes.getLong(0);
+                                indexNote(db, noteId, notes.getString(1),
+                                        readNoteText(db, notes, 2, noteId));
+                            }
+                        } finally {
+                            notes.close();
+                        }
+                        return end;
+                    }
+
+                    @Override
+                    void onDone() {
+                        mSearchIndexReady = true;
+                    }
+                };
+
+        /**
+         * Compresses the large notes that were saved before compression, in order of note ID.
+         * Compressing a note doesn't change its text, so the full-text index is left alone. A
+         * note that can't be read or compressed is left as it is and skipped, so that the task
+         * can finish.
+         */
+        private final DatabaseMigrations.BackgroundTask mCompressNotes =
+                new DatabaseMigrations.BackgroundTask(TASK_COMPRESS_NOTES) {
+                    @Override
+                    long runChunk(SQLiteDatabase db, long position) {
+                        Cursor notes = db.query(NotePad.Notes.TABLE_NAME, new String[] {
+                                NotePad.Notes._ID,
+                                "LENGTH(" + NotePad.Notes.COLUMN_NAME_NOTE + ")"
+                        }, NotePad.Notes._ID + " > ? AND LENGTH("
+                                + NotePad.Notes.COLUMN_NAME_NOTE + ") > "
+                                + NoteCompression.COMPRESSION_THRESHOLD,
+                                new String[] { Long.toString(position) }, null, null,
+                                NotePad.Notes._ID, Integer.toString(COMPRESS_NOTES_CHUNK_SIZE));
+                        try {
+                            if (!notes.moveToFirst()) {
+                                return DONE;
+                            }
+                            do {
+                                position = notes.getLong(0);
+                                try {
+                                    compressNote(db, position, notes.getLong(1));
+                                } catch (SQLiteException e) {
+                                    Log.w(TAG, "Leaving note " + position + " uncompressed", e);
+                                }
+                            } while (notes.moveToNext());
+                            return position;
+                        } finally {
+                            notes.close();
+                        }
+                    }
+                };
+
         DatabaseHelper(Context context) {
 
             // calls the super constructor, requesting the default cursor factory.
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+            /*
+             * Opens the database in write-ahead logging mode. Writers then append to the log
+             * instead of locking the database file, so readers keep running against the last
+             * committed state while a note is saved. It also lets the framework give readers
+             * their own pooled connections; the pool is sized by the platform
+             * (db_connection_pool_size), and there is no public API to size it per database.
+             */
+            setWriteAheadLoggingEnabled(true);
+
+            mSynchronous = getSynchronousMode(context.getString(R.string.config_notesDurability));
+            mResources = context.getResources();
+        }
+
+        /**
+         * Maps a durability profile, as configured by the config_notesDurability resource, to the
+         * value of PRAGMA synchronous that implements it.
+         *
+         * "full" syncs the write-ahead log on every commit, so a saved note survives a power
+         * loss. "normal" only syncs at checkpoints: commits are still atomic and survive a crash
+         * of the app, but the last few may be lost if the device loses power.
+         */
+        static String getSynchronousMode(String durability) {
+            if ("full".equals(durability)) {
+                return "FULL";
+            } else if ("normal".equals(durability)) {
+                return "NORMAL";
+            }
+            throw new IllegalArgumentException("Unknown durability profile " + durability);
+        }
+
+        /**
+         * Configures the database when it is opened, before it is created or upgraded. Applies
+         * the configured durability profile to the connection that performs all writes.
+         */
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            db.execSQL("PRAGMA synchronous = " + mSynchronous);
+            db.setMaxSqlCacheSize(SQL_CACHE_SIZE);
         }
 
         /**
@@ -194,44 +1029,599 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          */
         @Override
         public void onCreate(SQLiteDatabase db) {
-            db.execSQL("CREATE TABLE " + NotePad.Notes.TABLE_NAME + " ("
-                    + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
-                    + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
-                    + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
-                    + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
-                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
-                    + NotePad.Notes.COLUMN_NAME_CATEGORY + " TEXT DEFAULT '未分类'"  // 添加分类字段
-                    + ");");
+            createCategoriesTable(db);
+            createNotesTable(db, NotePad.Notes.TABLE_NAME);
+            createSearchIndex(db);
+            createListIndexes(db);
+            createCategoryCounts(db);
+            fillCategoryCounts(db, null, null);
+            DatabaseMigrations.createProgressTable(db);
+            createChangeLog(db);
+            createTrashChangeTrigger(db);
+            NoteRevisions.createTable(db);
         }
 
         /**
-         *
-         * Demonstrates that the provider must consider what happens when the
-         * underlying datastore is changed. In this sample, the database is upgraded the database
-         * by destroying the existing data.
-         * A real application should upgrade the database in place.
+         * Creates the change log and the triggers that record every insert, update and delete
+         * of a note in it. AUTOINCREMENT keeps sequence numbers from being reused after the
+         * latest changes are compacted away.
          */
-        @Override
-        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        static void createChangeLog(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + NotePad.Changes.TABLE_NAME + " ("
+                    + NotePad.Changes._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + NotePad.Changes.COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+                    + NotePad.Changes.COLUMN_NAME_OPERATION + " INTEGER NOT NULL"
+                    + ");");
 
-            // Logs that the database is being upgraded
-            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                    + newVersion + ", which will destroy all old data");
-
-            // 如果是版本2升级到版本3，添加分类字段
-            if (oldVersion == 2 && newVersion == 3) {
-                // 添加分类字段到现有表
-                db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME +
-                        " ADD COLUMN " + NotePad.Notes.COLUMN_NAME_CATEGORY + " TEXT DEFAULT '未分类'");
-                Log.w(TAG, "Database upgraded from version 2 to 3 successfully");
-            } else {
-                // 对于其他版本升级，使用原来的逻辑（删除重建）
-                // Kills the table and existing data
+            // Lets compaction find the earlier changes of each note
+            db.execSQL("CREATE INDEX note_changes_note_idx ON " + NotePad.Changes.TABLE_NAME
+                    + " (" + NotePad.Changes.COLUMN_NAME_NOTE_ID + ", " + NotePad.Changes._ID
+                    + ");");
+
+            db.execSQL("CREATE TABLE " + CHANGES_FLOOR_TABLE_NAME + " (floor INTEGER NOT NULL);");
+            db.execSQL("INSERT INTO " + CHANGES_FLOOR_TABLE_NAME + " (floor) VALUES (0);");
+
+            createChangeTrigger(db, "insert", "INSERT", "new", NotePad.Changes.OPERATION_INSERT);
+            createChangeTrigger(db, "update", "UPDATE", "new", NotePad.Changes.OPERATION_UPDATE);
+            createChangeTrigger(db, "delete", "DELETE", "old", NotePad.Changes.OPERATION_DELETE);
+        }
+
+        /**
+         * Creates the trigger that logs moving a note to the trash as a delete. The update
+         * trigger has logged the same change as an update just before, and compaction drops
+         * that entry.
+         */
+        static void createTrashChangeTrigger(SQLiteDatabase db) {
+            db.execSQL("CREATE TRIGGER " + NotePad.Changes.TABLE_NAME + "_trash AFTER UPDATE OF "
+                    + NotePad.Notes.COLUMN_NAME_DELETED + " ON " + NotePad.Notes.TABLE_NAME
+                    + " WHEN old." + NotePad.Notes.COLUMN_NAME_DELETED + " = 0 AND new."
+                    + NotePad.Notes.COLUMN_NAME_DELETED + " != 0 BEGIN "
+                    + "INSERT INTO " + NotePad.Changes.TABLE_NAME + " ("
+                    + NotePad.Changes.COLUMN_NAME_NOTE_ID + ", "
+                    + NotePad.Changes.COLUMN_NAME_OPERATION + ") VALUES (new."
+                    + NotePad.Notes._ID + ", " + NotePad.Changes.OPERATION_DELETE + "); END;");
+        }
+
+        // Creates a trigger that logs one kind of change to the notes table.
+        private static void createChangeTrigger(SQLiteDatabase db, String name, String event,
+                                                String row, int operation) {
+            db.execSQL("CREATE TRIGGER " + NotePad.Changes.TABLE_NAME + "_" + name + " AFTER "
+                    + event + " ON " + NotePad.Notes.TABLE_NAME + " BEGIN "
+                    + "INSERT INTO " + NotePad.Changes.TABLE_NAME + " ("
+                    + NotePad.Changes.COLUMN_NAME_NOTE_ID + ", "
+                    + NotePad.Changes.COLUMN_NAME_OPERATION + ") VALUES ("
+                    + row + "." + NotePad.Notes._ID + ", " + operation + "); END;");
+        }
+
+        /**
+         * Checks whether background migrations are still filling the full-text index or the
+         * category counts, each time the database is opened.
+         */
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            mSearchIndexReady = !DatabaseMigrations.isPending(db, TASK_SEARCH_BACKFILL);
+            mCategoryCountsReady = !DatabaseMigrations.isPending(db, TASK_CATEGORY_COUNTS);
+        }
+
+        /**
+         * Tests whether the full-text index holds every note. Until it does, searches have to
+         * scan the notes instead. Only valid once the database is open.
+         */
+        boolean isSearchIndexReady() {
+            return mSearchIndexReady;
+        }
+
+        /**
+         * Tests whether the counts table holds the count of every category. Until it does, the
+         * notes have to be counted on each query instead. Only valid once the database is open.
+         */
+        boolean isCategoryCountsReady() {
+            return mCategoryCountsReady;
+        }
+
+        /**
+         * Opens the database, upgrading it if needed, and runs the background migration tasks
+         * that are pending until they are done. Blocks for as long as that takes, so it must not
+         * be called on the main thread.
+         */
+        void runPendingMigrations() {
+            DatabaseMigrations.runPending(getWritableDatabase(),
+                    new DatabaseMigrations.BackgroundTask[] {
+                            mListIndexes, mCategoryCounts, mSearchBackfill, mCompressNotes
+                    });
+        }
+
+        /**
+         * Runs one chunk of the full-text index backfill, if it is pending. Set to package
+         * visibility for testing purposes.
+         *
+         * @return true if the backfill is still pending afterwards.
+         */
+        boolean runSearchBackfillChunk(SQLiteDatabase db) {
+            return DatabaseMigrations.runNextChunk(db, mSearchBackfill);
+        }
+
+        /**
+         * Runs one chunk of the category counts backfill, if it is pending. Set to package
+         * visibility for testing purposes.
+         *
+         * @return true if the backfill is still pending afterwards.
+         */
+        boolean runCategoryCountsChunk(SQLiteDatabase db) {
+            return DatabaseMigrations.runNextChunk(db, mCategoryCounts);
+        }
+
+        /**
+         * Runs one chunk of the compression of large notes, if it is pending. Set to package
+         * visibility for testing purposes.
+         *
+         * @return true if the compression is still pending afterwards.
+         */
+        boolean runCompressNotesChunk(SQLiteDatabase db) {
+            return DatabaseMigrations.runNextChunk(db, mCompressNotes);
+        }
+
+        /**
+         * Creates a notes table with the given name. Each note refers to its category by ID.
+         */
+        static void createNotesTable(SQLiteDatabase db, String table) {
+            db.execSQL("CREATE TABLE " + table + " ("
+                    + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
+                    + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
+                    + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " INTEGER NOT NULL DEFAULT "
+                    + NotePad.Categories.UNCATEGORIZED_ID + " REFERENCES "
+                    + NotePad.Categories.TABLE_NAME + "(" + NotePad.Categories._ID + "),"
+                    + NotePad.Notes.COLUMN_NAME_DELETED + " INTEGER NOT NULL DEFAULT 0,"
+                    + NoteCompression.COLUMN_NAME_COMPRESSED + " BLOB"
+                    + ");");
+        }
+
+        /**
+         * Creates the categories table and fills it with the default categories. "未分类" is
+         * created first, so that it gets {@link NotePad.Categories#UNCATEGORIZED_ID}.
+         */
+        void createCategoriesTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + NotePad.Categories.TABLE_NAME + " ("
+                    + NotePad.Categories._ID + " INTEGER PRIMARY KEY,"
+                    + NotePad.Categories.COLUMN_NAME_NAME + " TEXT NOT NULL UNIQUE,"
+                    + NotePad.Categories.COLUMN_NAME_COLOR + " INTEGER NOT NULL,"
+                    + NotePad.Categories.COLUMN_NAME_ICON + " TEXT"
+                    + ");");
+
+            // 默认分类：名称、颜色、图标
+            insertCategory(db, R.string.category_uncategorized, R.color.category_uncategorized, "📝");
+            insertCategory(db, R.string.category_work, R.color.category_work, "💼");
+            insertCategory(db, R.string.category_personal, R.color.category_personal, "👤");
+            insertCategory(db, R.string.category_ideas, R.color.category_ideas, "💡");
+            insertCategory(db, R.string.category_study, R.color.category_study, "📚");
+            insertCategory(db, R.string.category_todo, R.color.category_todo, "✓");
+        }
+
+        private void insertCategory(SQLiteDatabase db, int name, int color, String icon) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Categories.COLUMN_NAME_NAME, mResources.getString(name));
+            values.put(NotePad.Categories.COLUMN_NAME_COLOR, mResources.getColor(color));
+            values.put(NotePad.Categories.COLUMN_NAME_ICON, icon);
+            db.insertOrThrow(NotePad.Categories.TABLE_NAME, null, values);
+        }
+
+        /**
+         * Creates the indexes that serve the notes list. Every list query is sorted by
+         * modification date, optionally filtered by category, so each index leads with the
+         * filter column and then the sort columns, ending with _ID as a stable tie-breaker.
+         * The list never shows the trash, so these are partial indexes of the other notes;
+         * moving a note to the trash takes it out of them. A separate partial index finds the
+         * notes in the trash, oldest first, for the trash listing and the purge.
+         */
+        static void createListIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS notes_category_modified_idx ON "
+                    + NotePad.Notes.TABLE_NAME + " ("
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC, "
+                    + NotePad.Notes._ID + ") WHERE " + LIVE_NOTES_WHERE + ";");
+
+            db.execSQL("CREATE INDEX IF NOT EXISTS notes_modified_idx ON "
+                    + NotePad.Notes.TABLE_NAME + " ("
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC, "
+                    + NotePad.Notes._ID + ") WHERE " + LIVE_NOTES_WHERE + ";");
+
+            db.execSQL("CREATE INDEX IF NOT EXISTS notes_trash_idx ON "
+                    + NotePad.Notes.TABLE_NAME + " ("
+                    + NotePad.Notes.COLUMN_NAME_DELETED + ") WHERE " + TRASH_WHERE + ";");
+        }
+
+        /**
+         * Adds the trash. Notes get a deletion time, the list indexes are created again as
+         * partial indexes of the notes outside the trash, and so are the category counts, which
+         * stop counting notes in the trash. Both are filled in the background; until then, lists
+         * are read without the indexes and counts are counted on each query. A notes table
+         * rebuilt by an earlier step of the same upgrade already has the deletion time.
+         */
+        void upgradeToTrash(SQLiteDatabase db) {
+            if (!hasColumn(db, NotePad.Notes.TABLE_NAME, NotePad.Notes.COLUMN_NAME_DELETED)) {
+                db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                        + NotePad.Notes.COLUMN_NAME_DELETED + " INTEGER NOT NULL DEFAULT 0");
+            }
+
+            db.execSQL("DROP INDEX IF EXISTS notes_category_modified_idx");
+            db.execSQL("DROP INDEX IF EXISTS notes_modified_idx");
+            DatabaseMigrations.schedule(db, TASK_LIST_INDEXES);
+
+            dropCategoryCounts(db);
+            createCategoryCounts(db);
+            DatabaseMigrations.schedule(db, TASK_CATEGORY_COUNTS);
+
+            createTrashChangeTrigger(db);
+        }
+
+        /**
+         * Puts a note into the full-text index, with the segmented form of its title and text
+         * that {@link NoteTokenizer} makes searchable. The note must not be in the index; a note
+         * is taken out of it with {@link #unindexNote} before its title or text changes.
+         */
+        static void indexNote(SQLiteDatabase db, long noteId, String title, String text) {
+            db.execSQL("INSERT INTO " + FTS_TABLE_NAME + " (docid, "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                    + ") VALUES (?, ?, ?)", new Object[] {
+                            noteId, NoteTokenizer.segment(title), NoteTokenizer.segment(text)
+                    });
+        }
+
+        /**
+         * Takes a note out of the full-text index, before its title or text changes or it is
+         * deleted. The index reads the tokens to remove from its content table, so the segmented
+         * title and text that were indexed are put there just for the delete. Does nothing if
+         * the note isn't indexed yet.
+         */
+        static void unindexNote(SQLiteDatabase db, long noteId, String title, String text) {
+            db.execSQL("INSERT INTO " + FTS_SOURCE_TABLE_NAME + " (docid, "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                    + ") SELECT ?, ?, ? WHERE EXISTS (SELECT 1 FROM " + FTS_DOCSIZE_TABLE_NAME
+                    + " WHERE docid = ?)", new Object[] {
+                            noteId, NoteTokenizer.segment(title), NoteTokenizer.segment(text),
+                            noteId
+                    });
+            db.execSQL("DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = ?",
+                    new Object[] { noteId });
+            db.execSQL("DELETE FROM " + FTS_SOURCE_TABLE_NAME + " WHERE docid = ?",
+                    new Object[] { noteId });
+        }
+
+        /**
+         * Compresses the text of a note that was saved before compression. The text is read in
+         * slices and streamed into the compressor, so that a text too long for a cursor window
+         * is compressed without being held whole.
+         *
+         * @param length The length of the text, in characters.
+         */
+        static void compressNote(SQLiteDatabase db, long noteId, long length) {
+            NoteCompression.Compressor compressor = new NoteCompression.Compressor(length);
+            try {
+                String[] args = new String[] {
+                        null, Integer.toString(NOTE_SLICE_LENGTH), Long.toString(noteId)
+                };
+                for (long start = 1; start <= length; start += NOTE_SLICE_LENGTH) {
+                    args[0] = Long.toString(start);
+                    compressor.write(DatabaseUtils.stringForQuery(db, NOTE_SLICE_QUERY, args));
+                }
+
+                ContentValues values = new ContentValues();
+                values.putNull(NotePad.Notes.COLUMN_NAME_NOTE);
+                values.put(NoteCompression.COLUMN_NAME_COMPRESSED, compressor.finish());
+                db.update(NotePad.Notes.TABLE_NAME, values, NOTE_ID_WHERE,
+                        new String[] { Long.toString(noteId) });
+            } finally {
+                compressor.release();
+            }
+        }
+
+        /**
+         * Returns the given columns followed by {@link #NOTE_TEXT_COLUMNS}, for a query of notes
+         * whose text is read with {@link #readNoteText}.
+         */
+        static String[] withNoteTextColumns(String... columns) {
+            String[] expanded = new String[columns.length + NOTE_TEXT_COLUMNS.length];
+            System.arraycopy(columns, 0, expanded, 0, columns.length);
+            System.arraycopy(NOTE_TEXT_COLUMNS, 0, expanded, columns.length,
+                    NOTE_TEXT_COLUMNS.length);
+            return expanded;
+        }
+
+        /**
+         * Returns the text of a note from a row that selected {@link #NOTE_TEXT_COLUMNS},
+         * starting at the given column, decompressing it if it is compressed. A text or compressed
+         * text too long to be selected whole is read in slices instead, since a cursor window
+         * can't hold it.
+         *
+         * @return The text, or null if the note has none.
+         */
+        static String readNoteText(SQLiteDatabase db, Cursor c, int index, long noteId) {
+            if (!c.isNull(index + 1)) {
+                return NoteCompression.decompress(c.getBlob(index + 1));
+            } else if (!c.isNull(index + 3)) {
+                return NoteCompression.decompress(readCompressedSlices(db, noteId,
+                        c.getLong(index + 3)));
+            } else if (!c.isNull(index)) {
+                return c.getString(index);
+            } else if (!c.isNull(index + 2)) {
+                StringBuilder text = new StringBuilder((int) c.getLong(index + 2));
+                String[] args = new String[] {
+                        null, Integer.toString(NOTE_SLICE_LENGTH), Long.toString(noteId)
+                };
+                for (long start = 1; start <= c.getLong(index + 2); start += NOTE_SLICE_LENGTH) {
+                    args[0] = Long.toString(start);
+                    text.append(DatabaseUtils.stringForQuery(db, NOTE_SLICE_QUERY, args));
+                }
+                return text.toString();
+            }
+            return null;
+        }
+
+        // Reads the compressed text of a note in slices.
+        private static byte[] readCompressedSlices(SQLiteDatabase db, long noteId, long length) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) length);
+            String[] args = new String[] {
+                    null, Integer.toString(NOTE_SLICE_LENGTH), Long.toString(noteId)
+            };
+            for (long start = 1; start <= length; start += NOTE_SLICE_LENGTH) {
+                args[0] = Long.toString(start);
+                Cursor slice = db.rawQuery("SELECT substr("
+                        + NoteCompression.COLUMN_NAME_COMPRESSED + ", ?, ?) FROM "
+                        + NotePad.Notes.TABLE_NAME + " WHERE " + NOTE_ID_WHERE, args);
+                try {
+                    if (slice.moveToFirst()) {
+                        byte[] data = slice.getBlob(0);
+                        bytes.write(data, 0, data.length);
+                    }
+                } finally {
+                    slice.close();
+                }
+            }
+            return bytes.toByteArray();
+        }
+
+        // Tests whether a table has a column with the given name.
+        private static boolean hasColumn(SQLiteDatabase db, String table, String column) {
+            Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+            try {
+                int nameIndex = cursor.getColumnIndexOrThrow("name");
+                while (cursor.moveToNext()) {
+                    if (column.equals(cursor.getString(nameIndex))) {
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /**
+         * Creates the full-text index of the notes table. The provider keeps it in sync with
+         * every insert, update and delete of a note, with {@link #indexNote} and
+         * {@link #unindexNote}: it indexes a segmented form of the text that triggers couldn't
+         * produce, and the text of compressed notes, which triggers couldn't read.
+         *
+         * The index is an external content FTS4 table, which stores no copy of the indexed text.
+         * Its content table is {@link #FTS_SOURCE_TABLE_NAME} rather than the notes table, so
+         * that the indexed form of a note can be put there while the note is taken out of the
+         * index; it is empty otherwise. Searches only read the docid and matchinfo() of the
+         * index, which don't need the content.
+         */
+        static void createSearchIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + FTS_SOURCE_TABLE_NAME + " ("
+                    + "docid INTEGER PRIMARY KEY,"
+                    + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT"
+                    + ");");
+            db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts4("
+                    + "content=\"" + FTS_SOURCE_TABLE_NAME + "\", "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ","
+                    + NotePad.Notes.COLUMN_NAME_NOTE
+                    + ");");
+        }
+
+        // Drops the triggers that kept the full-text index in sync before version 14.
+        static void dropSearchTriggers(SQLiteDatabase db) {
+            db.execSQL("DROP TRIGGER IF EXISTS " + FTS_TABLE_NAME + "_insert");
+            db.execSQL("DROP TRIGGER IF EXISTS " + FTS_TABLE_NAME + "_unindex");
+            db.execSQL("DROP TRIGGER IF EXISTS " + FTS_TABLE_NAME + "_update");
+            db.execSQL("DROP TRIGGER IF EXISTS " + FTS_TABLE_NAME + "_delete");
+        }
+
+        /**
+         *
+         * Demonstrates that the provider must consider what happens when the
+         * underlying datastore is changed. Each schema version after 2 is reached by its own
+         * in-place step in {@link #mSteps}, applied in order starting from the version found on
+         * disk. Steps leave heavy work to background tasks, which {@link #runPendingMigrations()}
+         * runs after the upgrade. Only version 1 databases are upgraded by destroying the
+         * existing data.
+         */
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+
+            // Logs that the database is being upgraded
+            Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+
+            // Version 1 databases predate this provider's schema and can't be upgraded in place.
+            if (oldVersion < 2) {
+                Log.w(TAG, "Version " + oldVersion + " is too old to upgrade, destroying all old data");
+
+                // Kills the table and existing data
                 db.execSQL("DROP TABLE IF EXISTS notes");
 
                 // Recreates the database with a new version
                 onCreate(db);
+                return;
             }
+
+            // Applies the steps from the version found on disk, in order.
+            DatabaseMigrations.upgrade(db, mSteps, oldVersion, newVersion);
+        }
+
+        /**
+         * Creates the table of note counts per category, empty, and the triggers that keep it up
+         * to date; {@link #fillCategoryCounts} fills it. Notes in the trash aren't counted. A
+         * category gets its row when it is created or filled, and the triggers leave categories
+         * without a row alone. A note's insert, delete, move, trashing or restoring adds or subtracts
+         * one; the latest modification date is updated in place when it grows, and otherwise
+         * looked up again in the category and modification date index.
+         */
+        static void createCategoryCounts(SQLiteDatabase db) {
+            final String COUNTS = COUNTS_TABLE_NAME;
+            final String CATEGORY_ID = NotePad.Notes.COLUMN_NAME_CATEGORY_ID;
+            final String COUNT = NotePad.Categories.COLUMN_NAME_NOTE_COUNT;
+            final String LATEST = NotePad.Categories.COLUMN_NAME_LATEST_MODIFIED;
+            final String MODIFIED = NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE;
+            final String DELETED = NotePad.Notes.COLUMN_NAME_DELETED;
+
+            db.execSQL("CREATE TABLE " + COUNTS + " ("
+                    + CATEGORY_ID + " INTEGER PRIMARY KEY,"
+                    + COUNT + " INTEGER NOT NULL DEFAULT 0,"
+                    + LATEST + " INTEGER"
+                    + ");");
+
+            // Looks up the latest modification date of a category with the list index
+            String latestOf = "(SELECT MAX(" + MODIFIED + ") FROM " + NotePad.Notes.TABLE_NAME
+                    + " WHERE " + CATEGORY_ID + " = " + COUNTS + "." + CATEGORY_ID + " AND "
+                    + LIVE_NOTES_WHERE + ")";
+
+            // Adds a note to the counts of its category
+            String add = "UPDATE " + COUNTS + " SET " + COUNT + " = " + COUNT + " + 1, "
+                    + LATEST + " = CASE WHEN " + LATEST + " IS NULL OR new." + MODIFIED + " > "
+                    + LATEST + " THEN new." + MODIFIED + " ELSE " + LATEST + " END"
+                    + " WHERE " + CATEGORY_ID + " = new." + CATEGORY_ID + "; ";
+
+            // Takes a note out of the counts of the category it had
+            String subtract = "UPDATE " + COUNTS + " SET " + COUNT + " = " + COUNT + " - 1, "
+                    + LATEST + " = " + latestOf
+                    + " WHERE " + CATEGORY_ID + " = old." + CATEGORY_ID + "; ";
+
+            db.execSQL("CREATE TRIGGER " + COUNTS + "_note_insert AFTER INSERT ON "
+                    + NotePad.Notes.TABLE_NAME
+                    + " WHEN new." + DELETED + " = 0 BEGIN " + add + "END;");
+
+            db.execSQL("CREATE TRIGGER " + COUNTS + "_note_delete AFTER DELETE ON "
+                    + NotePad.Notes.TABLE_NAME
+                    + " WHEN old." + DELETED + " = 0 BEGIN " + subtract + "END;");
+
+            db.execSQL("CREATE TRIGGER " + COUNTS + "_note_trash AFTER UPDATE OF " + DELETED
+                    + " ON " + NotePad.Notes.TABLE_NAME
+                    + " WHEN old." + DELETED + " = 0 AND new." + DELETED + " != 0 BEGIN "
+                    + subtract + "END;");
+
+            db.execSQL("CREATE TRIGGER " + COUNTS + "_note_restore AFTER UPDATE OF " + DELETED
+                    + " ON " + NotePad.Notes.TABLE_NAME
+                    + " WHEN old." + DELETED + " != 0 AND new." + DELETED + " = 0 BEGIN "
+                    + add + "END;");
+
+            db.execSQL("CREATE TRIGGER " + COUNTS + "_note_move AFTER UPDATE OF " + CATEGORY_ID
+                    + " ON " + NotePad.Notes.TABLE_NAME
+                    + " WHEN old." + CATEGORY_ID + " != new." + CATEGORY_ID
+                    + " AND old." + DELETED + " = 0 AND new." + DELETED + " = 0 BEGIN "
+                    + subtract
+                    + "UPDATE " + COUNTS + " SET " + COUNT + " = " + COUNT + " + 1, "
+                    + LATEST + " = " + latestOf
+                    + " WHERE " + CATEGORY_ID + " = new." + CATEGORY_ID + "; END;");
+
+            // Saving a note within its category only moves the latest date, usually forwards
+            db.execSQL("CREATE TRIGGER " + COUNTS + "_note_modified AFTER UPDATE OF " + MODIFIED
+                    + " ON " + NotePad.Notes.TABLE_NAME
+                    + " WHEN old." + CATEGORY_ID + " = new." + CATEGORY_ID
+                    + " AND old." + DELETED + " = 0 AND new." + DELETED + " = 0 BEGIN "
+                    + "UPDATE " + COUNTS + " SET " + LATEST + " = CASE WHEN new." + MODIFIED
+                    + " >= " + LATEST + " THEN new." + MODIFIED + " ELSE " + latestOf + " END"
+                    + " WHERE " + CATEGORY_ID + " = new." + CATEGORY_ID + "; END;");
+
+            db.execSQL("CREATE TRIGGER " + COUNTS + "_category_insert AFTER INSERT ON "
+                    + NotePad.Categories.TABLE_NAME + " BEGIN "
+                    + "INSERT INTO " + COUNTS + " (" + CATEGORY_ID + ") VALUES (new."
+                    + NotePad.Categories._ID + "); END;");
+
+            db.execSQL("CREATE TRIGGER " + COUNTS + "_category_delete AFTER DELETE ON "
+                    + NotePad.Categories.TABLE_NAME + " BEGIN "
+                    + "DELETE FROM " + COUNTS + " WHERE " + CATEGORY_ID + " = old."
+                    + NotePad.Categories._ID + "; END;");
+        }
+
+        /**
+         * Counts the notes of the selected categories into the counts table, replacing the rows
+         * they have. Counts in a single statement, so that the triggers keep the counts up to
+         * date from then on.
+         *
+         * @param where A selection of categories, or null for all of them.
+         */
+        static void fillCategoryCounts(SQLiteDatabase db, String where, String[] whereArgs) {
+            db.execSQL("INSERT OR REPLACE INTO " + COUNTS_TABLE_NAME + " ("
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", "
+                    + NotePad.Categories.COLUMN_NAME_NOTE_COUNT + ", "
+                    + NotePad.Categories.COLUMN_NAME_LATEST_MODIFIED + ") " + COUNT_NOTES_QUERY
+                    + (where != null ? " WHERE " + where : "") + COUNT_NOTES_GROUP_BY,
+                    whereArgs != null ? whereArgs : new String[0]);
+        }
+
+        /**
+         * Drops the table of note counts per category, if it exists, along with its triggers.
+         */
+        static void dropCategoryCounts(SQLiteDatabase db) {
+            db.execSQL("DROP TABLE IF EXISTS " + COUNTS_TABLE_NAME);
+            for (String trigger : new String[] { "note_insert", "note_delete", "note_trash",
+                    "note_restore", "note_move", "note_modified", "category_insert",
+                    "category_delete" }) {
+                db.execSQL("DROP TRIGGER IF EXISTS " + COUNTS_TABLE_NAME + "_" + trigger);
+            }
+        }
+
+        /**
+         * Moves the category names stored in each note into the categories table, and rebuilds
+         * the notes table with a category ID in place of the name. Names that aren't among the
+         * default categories become new categories, with the uncategorized color and icon.
+         * Notes keep their IDs, so the full-text index stays valid. The list indexes, which are
+         * dropped with the old table, are created again in the background.
+         *
+         * The table itself is copied within the upgrade, since notes can't be read by category
+         * ID until it is.
+         */
+        void upgradeToCategoryIds(SQLiteDatabase db) {
+            createCategoriesTable(db);
+
+            db.execSQL("INSERT OR IGNORE INTO " + NotePad.Categories.TABLE_NAME + " ("
+                    + NotePad.Categories.COLUMN_NAME_NAME + ", "
+                    + NotePad.Categories.COLUMN_NAME_COLOR + ", "
+                    + NotePad.Categories.COLUMN_NAME_ICON + ") SELECT DISTINCT "
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY + ", "
+                    + mResources.getColor(R.color.category_uncategorized) + ", '📝' FROM "
+                    + NotePad.Notes.TABLE_NAME + " WHERE "
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY + " IS NOT NULL");
+
+            createNotesTable(db, "notes_v6");
+            db.execSQL("INSERT INTO notes_v6 ("
+                    + NotePad.Notes._ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + ", "
+                    + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ") SELECT "
+                    + NotePad.Notes._ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + ", "
+                    + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                    + "IFNULL((SELECT " + NotePad.Categories._ID + " FROM "
+                    + NotePad.Categories.TABLE_NAME + " WHERE "
+                    + NotePad.Categories.COLUMN_NAME_NAME + " = "
+                    + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_CATEGORY + "), "
+                    + NotePad.Categories.UNCATEGORIZED_ID + ") FROM "
+                    + NotePad.Notes.TABLE_NAME);
+
+            db.execSQL("DROP TABLE " + NotePad.Notes.TABLE_NAME);
+            db.execSQL("ALTER TABLE notes_v6 RENAME TO " + NotePad.Notes.TABLE_NAME);
+
+            DatabaseMigrations.schedule(db, TASK_LIST_INDEXES);
         }
     }
 
@@ -248,6 +1638,53 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // something tries to access it, and it's only created if it doesn't already exist.
         mOpenHelper = new DatabaseHelper(getContext());
 
+        // Looks up the default title of new notes once, rather than on every insert.
+        mDefaultTitle = Resources.getSystem().getString(android.R.string.untitled);
+
+        // Creates the thread that does the provider's background work.
+        mMaintenance = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread("NotePadMaintenance") {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                };
+            }
+        });
+
+        /*
+         * Opens the database on the background thread, so that any upgrade runs there rather than
+         * in the first query, which may come from the main thread. The thread then finishes any
+         * background migration work, such as filling the full-text index.
+         */
+        mMaintenance.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mOpenHelper.runPendingMigrations();
+                } catch (SQLiteException e) {
+                    // The pending work is resumed the next time the provider starts.
+                    Log.e(TAG, "Background migration failed", e);
+                }
+            }
+        });
+
+        // Then reclaims the space of the notes that have been in the trash for too long.
+        mMaintenance.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    purgeTrash(System.currentTimeMillis() - NotePad.Notes.TRASH_RETENTION_MILLIS);
+                } catch (SQLiteException e) {
+                    // The notes are purged the next time the provider starts.
+                    Log.e(TAG, "Trash purge failed", e);
+                }
+            }
+        });
+
         // Assumes that any failures will be reported by a thrown exception.
         return true;
     }
@@ -264,11 +1701,86 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        long start = ProviderMetrics.start();
+        long rows = -1;
+        try {
+            Cursor c = queryInternal(uri, projection, selection, selectionArgs, sortOrder);
+
+            /*
+             * Counts the rows, which runs the query: a database cursor only runs it when it is
+             * first read, and its cost would otherwise not be measured. The binder transport
+             * counts the rows of a cursor returned to another process right away, and loaders
+             * do so on their own threads, so this only moves the work, it doesn't add any.
+             */
+            try {
+                rows = c != null ? c.getCount() : 0;
+            } catch (RuntimeException e) {
+                c.close();
+                throw e;
+            }
+            return c;
+        } finally {
+            int match = sUriMatcher.match(uri);
+            mMetrics.record(ProviderMetrics.QUERY, match, start, rows);
+
+            long duration = SystemClock.elapsedRealtimeNanos() - start;
+            if (mSlowQueries.isSlow(duration)) {
+                mSlowQueries.add(match >= 0 && match < URI_PATTERNS.length
+                                ? URI_PATTERNS[match] : null,
+                        projection, selection, selectionArgs, sortOrder, duration, rows,
+                        getCallingPackage());
+            }
+        }
+    }
+
+    /**
+     * Performs a query for {@link #query}.
+     */
+    private Cursor queryInternal(Uri uri, String[] projection, String selection,
+                                 String[] selectionArgs, String sortOrder) {
+
+        // Full-text searches join the notes table with its index, so they are built separately.
+        if (sUriMatcher.match(uri) == SEARCH) {
+            return querySearch(uri, projection, selection, selectionArgs, sortOrder);
+        }
+
+        // The change log answers a sequence number rather than a selection.
+        if (sUriMatcher.match(uri) == CHANGES) {
+            return queryChanges(uri);
+        }
+
+        // Revisions are rebuilt from their deltas rather than read as they are stored.
+        if (sUriMatcher.match(uri) == REVISIONS || sUriMatcher.match(uri) == REVISION_ID) {
+            return queryRevisions(uri, projection);
+        }
+
+        // Single notes are read through the cache, unless the caller narrows the selection or
+        // asks for columns that the cache doesn't hold.
+        if (sUriMatcher.match(uri) == NOTE_ID && TextUtils.isEmpty(selection)) {
+            int[] indexes = mNoteCache.mapProjection(projection);
+            Cursor c = indexes != null ? queryCachedNote(uri, projection, indexes) : null;
+            if (c != null) {
+                return c;
+            }
+        }
 
         // Constructs a new query builder and sets its table name
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         qb.setTables(NotePad.Notes.TABLE_NAME);
 
+        // The page of the notes list to return, if the caller asked for one
+        String limit = null;
+        boolean paged = false;
+
+        // The order of the results if the caller doesn't give one
+        String defaultOrder = NotePad.Notes.DEFAULT_SORT_ORDER;
+
+        // The URI whose changes the results follow
+        Uri notificationUri = uri;
+
+        // Whether the results are notes, whose text may be stored compressed
+        boolean notes = false;
+
         /**
          * Choose the projection and adjust the "where" clause based on URI pattern-matching.
          */
@@ -276,24 +1788,90 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             // If the incoming URI is for notes, chooses the Notes projection
             case NOTES:
                 qb.setProjectionMap(sNotesProjectionMap);
+                qb.appendWhere(LIVE_NOTES_WHERE);
+
+                /*
+                 * If the caller is paging through the notes, continues after the note that the
+                 * page token identifies. The comparison is on the same columns, in the same order,
+                 * as the paged sort order. The leading "modified <= ?" term is implied by the rest,
+                 * but lets SQLite seek straight to the start of the page in the modification date
+                 * indexes instead of stepping over the earlier pages.
+                 */
+                String after = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER);
+                if (after != null) {
+                    String[] token = parsePageToken(after);
+                    qb.appendWhere(" AND "
+                            + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " <= ? AND ("
+                            + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " < ? OR ("
+                            + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " = ? AND "
+                            + NotePad.Notes._ID + " > ?))");
+
+                    // The builder puts its own WHERE clause before the caller's selection
+                    selectionArgs = prependArgs(
+                            new String[] { token[0], token[0], token[0], token[1] },
+                            selectionArgs);
+                }
+                limit = getLimitParameter(uri);
+                paged = after != null || limit != null;
+                notes = true;
                 break;
 
             /* If the incoming URI is for a single note identified by its ID, chooses the
-             * note ID projection, and appends "_ID = <noteID>" to the where clause, so that
-             * it selects that single note
+             * note ID projection, and appends "_ID = ?" to the where clause, so that
+             * it selects that single note. The ID is bound rather than written into the SQL, so
+             * that reading any note reuses the same compiled statement.
              */
             case NOTE_ID:
                 qb.setProjectionMap(sNotesProjectionMap);
-                qb.appendWhere(
-                        NotePad.Notes._ID +    // the name of the ID column
-                                "=" +
-                                // the position of the note ID itself in the incoming URI
-                                uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+                qb.appendWhere(NOTE_ID_WHERE + " AND " + LIVE_NOTES_WHERE);
+                selectionArgs = prependArgs(new String[] { getNoteId(uri) }, selectionArgs);
+                notes = true;
                 break;
 
             case LIVE_FOLDER_NOTES:
                 // If the incoming URI is from a live folder, chooses the live folder projection.
                 qb.setProjectionMap(sLiveFolderProjectionMap);
+                qb.appendWhere(LIVE_NOTES_WHERE);
+                break;
+
+            // If the incoming URI is for the trash, selects the notes in it, latest first
+            case TRASH_ID:
+                qb.appendWhere(NOTE_ID_WHERE + " AND ");
+                selectionArgs = prependArgs(new String[] { getNoteId(uri) }, selectionArgs);
+                // Falls through to the settings shared by all trash queries
+            case TRASH:
+                qb.setProjectionMap(sNotesProjectionMap);
+                qb.appendWhere(TRASH_WHERE);
+                defaultOrder = NotePad.Notes.COLUMN_NAME_DELETED + " DESC";
+                notes = true;
+                break;
+
+            // If the incoming URI is for categories, queries the categories table instead
+            case CATEGORY_ID:
+                qb.appendWhere(NotePad.Categories._ID + " = ?");
+                selectionArgs = prependArgs(
+                        new String[] { getCategoryId(uri) }, selectionArgs);
+                // Falls through to the settings shared by all category queries
+            case CATEGORIES:
+                qb.setTables(NotePad.Categories.TABLE_NAME);
+                qb.setProjectionMap(sCategoriesProjectionMap);
+                defaultOrder = NotePad.Categories.DEFAULT_SORT_ORDER;
+                break;
+
+            // If the incoming URI is for category counts, reads the maintained counts, or counts
+            // the notes while the counts are still being filled
+            case CATEGORY_COUNTS:
+                String counts = COUNTS_TABLE_NAME;
+                if (!mOpenHelper.isCategoryCountsReady()) {
+                    counts = "(" + COUNT_NOTES_QUERY + COUNT_NOTES_GROUP_BY + ") AS "
+                            + COUNTS_TABLE_NAME;
+                }
+                qb.setTables(NotePad.Categories.TABLE_NAME + " JOIN " + counts + " ON ("
+                        + COUNTS_TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = "
+                        + NotePad.Categories.TABLE_NAME + "." + NotePad.Categories._ID + ")");
+                qb.setProjectionMap(sCountsProjectionMap);
+                defaultOrder = NotePad.Categories.TABLE_NAME + "." + NotePad.Categories._ID;
+                notificationUri = ROOT_URI;
                 break;
 
             default:
@@ -303,14 +1881,34 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
 
         String orderBy;
+        // Pages are always in the paged sort order, since page tokens are positions in it
+        if (paged) {
+            if (!TextUtils.isEmpty(sortOrder) && !NotePad.Notes.PAGE_SORT_ORDER.equals(sortOrder)) {
+                throw new IllegalArgumentException("Paged queries can't be sorted by " + sortOrder);
+            }
+            orderBy = NotePad.Notes.PAGE_SORT_ORDER;
         // If no sort order is specified, uses the default
-        if (TextUtils.isEmpty(sortOrder)) {
-            orderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
+        } else if (TextUtils.isEmpty(sortOrder)) {
+            orderBy = defaultOrder;
         } else {
             // otherwise, uses the incoming sort order
             orderBy = sortOrder;
         }
 
+        /*
+         * Reads the compressed text of notes along with their note column, so that the cursor
+         * can return the text of compressed notes in its place.
+         */
+        String[] columns = projection;
+        int compressedIndex = -1;
+        if (notes) {
+            if (columns == null) {
+                columns = sNotesDefaultProjection;
+            }
+            compressedIndex = columns.length;
+            columns = NoteCompression.withCompressedColumn(columns);
+        }
+
         // Opens the database object in "read" mode, since no writes need to be done.
         SQLiteDatabase db = mOpenHelper.getReadableDatabase();
 
@@ -321,19 +1919,616 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          */
         Cursor c = qb.query(
                 db,            // The database to query
-                projection,    // The columns to return from the query
+                columns,       // The columns to return from the query
                 selection,     // The columns for the where clause
                 selectionArgs, // The values for the where clause
                 null,          // don't group the rows
                 null,          // don't filter by row groups
-                orderBy        // The sort order
+                orderBy,       // The sort order
+                limit          // The page size, or null for all rows
         );
+        if (notes) {
+            c = NoteCompression.wrap(c, columns, compressedIndex);
+        }
 
         // Tells the Cursor what URI to watch, so it knows when its source data changes
+        c.setNotificationUri(getContext().getContentResolver(), notificationUri);
+        return c;
+    }
+
+    /**
+     * Returns a single note from {@link #mNoteCache}, reading its whole row into the cache first
+     * if it isn't there.
+     *
+     * @param indexes The positions in the cached rows of the projected columns.
+     * @return The note, or null if it is compressed and has to be read from the database.
+     */
+    private Cursor queryCachedNote(Uri uri, String[] projection, int[] indexes) {
+        final String noteId = getNoteId(uri);
+        Object[] row = loadNote(noteId, false);
+        if (row == COMPRESSED_NOTE) {
+            return null;
+        }
+
+        Cursor c = new NoteCache.RowCursor(row,
+                projection != null ? projection : mNoteCache.getColumns(), indexes,
+                new NoteCache.RowSource() {
+                    @Override
+                    public Object[] load() {
+                        return loadNote(noteId, true);
+                    }
+                });
+        c.setNotificationUri(getContext().getContentResolver(), uri);
+        return c;
+    }
+
+    /**
+     * Returns the whole row of a note from {@link #mNoteCache}, reading it into the cache first
+     * if it isn't there. Notes that don't exist or are in the trash are not cached. Nor are
+     * compressed notes, which would take far more memory inflated than they do in the database.
+     *
+     * @param inflate Whether to inflate the text of a compressed note, or return
+     * {@link #COMPRESSED_NOTE} instead.
+     * @return The note's row, or null if there is no such note.
+     */
+    private Object[] loadNote(String noteId, boolean inflate) {
+        Object[] row = mNoteCache.get(Long.parseLong(noteId));
+        if (row != null) {
+            return row;
+        }
+
+        // Takes the generation before reading, so that a write that races the read wins
+        long generation = mNoteCache.getGeneration();
+
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables(NotePad.Notes.TABLE_NAME);
+        qb.setProjectionMap(sNotesProjectionMap);
+        qb.appendWhere(NOTE_ID_WHERE + " AND " + LIVE_NOTES_WHERE);
+        String[] columns = NoteCompression.withCompressedColumn(mNoteCache.getColumns());
+        Cursor c = NoteCompression.wrap(qb.query(mOpenHelper.getReadableDatabase(), columns,
+                null, new String[] { noteId }, null, null, null),
+                columns, mNoteCache.getColumns().length);
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            boolean compressed = c instanceof NoteCompression.DecompressingCursor
+                    && ((NoteCompression.DecompressingCursor) c).isNoteCompressed();
+            if (compressed && !inflate) {
+                return COMPRESSED_NOTE;
+            }
+
+            row = new Object[c.getColumnCount()];
+            for (int index = 0; index < row.length; index++) {
+                row[index] = getValue(c, index);
+            }
+            if (!compressed) {
+                mNoteCache.put(Long.parseLong(noteId), row, generation);
+            }
+            return row;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Splits a page token built by {@link NotePad.Notes#buildPageToken(long, long)} into its
+     * modification date and note ID.
+     *
+     * @throws IllegalArgumentException if the token is malformed.
+     */
+    static String[] parsePageToken(String token) {
+        String[] parts = token.split(",");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Invalid page token " + token);
+        }
+        try {
+            // Normalizes both numbers, so that only digits reach the query
+            parts[0] = Long.toString(Long.parseLong(parts[0].trim()));
+            parts[1] = Long.toString(Long.parseLong(parts[1].trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid page token " + token);
+        }
+        return parts;
+    }
+
+    /**
+     * Returns the page size requested by a URI's limit parameter, or null if there is none.
+     *
+     * @throws IllegalArgumentException if the limit isn't a positive number.
+     */
+    static String getLimitParameter(Uri uri) {
+        String limit = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT);
+        if (limit == null) {
+            return null;
+        }
+        try {
+            int rows = Integer.parseInt(limit.trim());
+            if (rows > 0) {
+                return Integer.toString(rows);
+            }
+        } catch (NumberFormatException e) {
+            // Falls through to the exception below
+        }
+        throw new IllegalArgumentException("Invalid limit " + limit);
+    }
+
+    /**
+     * Handles a query against {@link NotePad.Changes#CONTENT_URI}. Returns the changes after the
+     * sequence number in the since parameter, oldest first, or a single reset row if the log no
+     * longer holds all of them.
+     *
+     * @throws IllegalArgumentException if the since parameter isn't a sequence number.
+     */
+    private Cursor queryChanges(Uri uri) {
+        long since = 0;
+        String sinceParameter = uri.getQueryParameter(NotePad.Changes.QUERY_PARAMETER_SINCE);
+        if (sinceParameter != null) {
+            try {
+                since = Long.parseLong(sinceParameter.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid sequence number " + sinceParameter);
+            }
+        }
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        long[] bounds = readChangeBounds(db);
+        Cursor c = null;
+
+        /*
+         * Changes up to the floor have been dropped, and a sequence number beyond the last
+         * one comes from another copy of the database. Either way the caller has to start
+         * over.
+         */
+        if (since >= bounds[0] && since <= bounds[1]) {
+            c = db.query(NotePad.Changes.TABLE_NAME, CHANGES_COLUMNS,
+                    NotePad.Changes._ID + " > ?", new String[] { Long.toString(since) },
+                    null, null, NotePad.Changes._ID, getLimitParameter(uri));
+
+            // Fills the cursor, and then checks that compaction hasn't dropped changes after
+            // the since parameter in the meantime. No transaction is taken, so that reading
+            // the log never waits for a writer, nor makes one wait.
+            c.getCount();
+            bounds = readChangeBounds(db);
+            if (since < bounds[0]) {
+                c.close();
+                c = null;
+            }
+        }
+        if (c == null) {
+            MatrixCursor reset = new MatrixCursor(CHANGES_COLUMNS, 1);
+            reset.addRow(new Object[] { bounds[1], null, NotePad.Changes.OPERATION_RESET });
+            c = reset;
+        }
+
+        c.setNotificationUri(getContext().getContentResolver(), NotePad.Notes.CONTENT_URI);
+        return c;
+    }
+
+    /**
+     * Reads the floor of the change log and the sequence number of the last change, in one
+     * statement so that they are consistent with each other.
+     *
+     * @return The floor, then the last sequence number.
+     */
+    private static long[] readChangeBounds(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("SELECT (SELECT floor FROM " + CHANGES_FLOOR_TABLE_NAME + "),"
+                + " IFNULL((SELECT seq FROM sqlite_sequence WHERE name = ?), 0)",
+                new String[] { NotePad.Changes.TABLE_NAME });
+        try {
+            c.moveToFirst();
+            return new long[] { c.getLong(0), c.getLong(1) };
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Handles a query against a note's revisions URI. Selections and sort orders aren't
+     * supported; revisions are always returned latest first.
+     *
+     * @throws IllegalArgumentException if the projection names an unknown column.
+     */
+    private Cursor queryRevisions(Uri uri, String[] projection) {
+        List<String> segments = uri.getPathSegments();
+        long noteId = Long.parseLong(segments.get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+        long revision = sUriMatcher.match(uri) == REVISION_ID
+                ? Long.parseLong(segments.get(segments.size() - 1)) : -1;
+
+        Cursor c = NoteRevisions.query(mOpenHelper.getReadableDatabase(), noteId, revision,
+                projection);
+
+        // Saving the note adds a revision, and notifies the note's URI and those below it
         c.setNotificationUri(getContext().getContentResolver(), uri);
         return c;
     }
 
+    /**
+     * Records a save of the text of the given notes in their revision histories. Must be called
+     * in the transaction of the save, before the notes are updated.
+     */
+    private static void recordRevisions(SQLiteDatabase db, ArrayList<SavedNote> notes,
+                                        ContentValues values) {
+        String text = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        Long saved = values.getAsLong(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+        if (saved == null) {
+            saved = System.currentTimeMillis();
+        }
+        for (SavedNote note : notes) {
+            NoteRevisions.record(db, note.id, note.text, note.modified, text, saved);
+        }
+    }
+
+    /**
+     * Compacts the change log. First drops every change of a note but the latest, since a client
+     * that reads the latest change reads the note as it is now. Then, if more than
+     * {@link #CHANGE_LOG_LIMIT} changes are left, drops the oldest and raises the floor, so
+     * that clients that haven't read them are told to start over. Set to package visibility
+     * for testing purposes.
+     *
+     * @return The number of changes dropped.
+     */
+    int compactChangeLog() {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int dropped;
+        db.beginTransaction();
+        try {
+            dropped = db.delete(NotePad.Changes.TABLE_NAME,
+                    NotePad.Changes._ID + " < (SELECT MAX(newer." + NotePad.Changes._ID
+                            + ") FROM " + NotePad.Changes.TABLE_NAME + " AS newer WHERE newer."
+                            + NotePad.Changes.COLUMN_NAME_NOTE_ID + " = "
+                            + NotePad.Changes.TABLE_NAME + "."
+                            + NotePad.Changes.COLUMN_NAME_NOTE_ID + ")",
+                    null);
+
+            if (DatabaseUtils.queryNumEntries(db, NotePad.Changes.TABLE_NAME) > CHANGE_LOG_LIMIT) {
+                // The newest change that is dropped becomes the floor
+                long floor = DatabaseUtils.longForQuery(db, "SELECT " + NotePad.Changes._ID
+                        + " FROM " + NotePad.Changes.TABLE_NAME + " ORDER BY "
+                        + NotePad.Changes._ID + " DESC LIMIT 1 OFFSET " + CHANGE_LOG_LIMIT, null);
+                dropped += db.delete(NotePad.Changes.TABLE_NAME,
+                        NotePad.Changes._ID + " <= ?", new String[] { Long.toString(floor) });
+                db.execSQL("UPDATE " + CHANGES_FLOOR_TABLE_NAME + " SET floor = ?",
+                        new Object[] { floor });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        mChangesSinceCompaction.set(0);
+        return dropped;
+    }
+
+    /**
+     * Counts changes that the triggers have logged, and queues a compaction of the change log
+     * once enough of them have accumulated.
+     */
+    private void onChangesLogged(int count) {
+        if (count <= 0
+                || mChangesSinceCompaction.addAndGet(count) < CHANGE_LOG_COMPACTION_INTERVAL
+                || !mCompactionQueued.compareAndSet(false, true)) {
+            return;
+        }
+        mMaintenance.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCompactionQueued.set(false);
+                try {
+                    compactChangeLog();
+                } catch (SQLiteException e) {
+                    // The log is compacted again after more changes.
+                    Log.e(TAG, "Change log compaction failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Handles a query against {@link NotePad.Notes#SEARCH_URI}. The search terms are matched
+     * against the full-text index, so that no note body is scanned. The caller's selection is
+     * applied to the matching notes as usual.
+     *
+     * If no sort order is given, the matches are ranked with Okapi BM25, computed from the
+     * index's matchinfo() statistics, and returned best match first. Ranking reads only the ID
+     * and statistics of each match; the requested columns are then read for the requested page
+     * of matches alone.
+     *
+     * The results can be paged with the limit and offset parameters. Ranked results have no
+     * stable key to seek to, so they are paged by position instead of by page token.
+     *
+     * @return A cursor containing the matching notes.
+     */
+    private Cursor querySearch(Uri uri, String[] projection, String selection,
+                               String[] selectionArgs, String sortOrder) {
+
+        String terms = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_QUERY);
+
+        // Opening the database first tells whether the full-text index is complete yet
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        String match = mOpenHelper.isSearchIndexReady()
+                ? NoteTokenizer.buildMatchQuery(terms) : null;
+
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+
+        if (match != null) {
+            /*
+             * Joins the notes with the index hits in a subquery, so that only the notes table
+             * contributes column names to the caller's selection.
+             */
+            qb.setTables(NotePad.Notes.TABLE_NAME + " JOIN (SELECT docid, matchinfo("
+                    + FTS_TABLE_NAME + ", 'pcnalx') AS " + SEARCH_MATCHINFO + " FROM "
+                    + FTS_TABLE_NAME + " WHERE " + FTS_TABLE_NAME + " MATCH ?) AS hits ON ("
+                    + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " = hits.docid)");
+            qb.setProjectionMap(sSearchProjectionMap);
+            qb.appendWhere(NotePad.Notes.TABLE_NAME + "." + LIVE_NOTES_WHERE);
+
+            // The MATCH argument comes first, because the subquery precedes the selection
+            selectionArgs = prependArgs(new String[] { match }, selectionArgs);
+
+        } else {
+            /*
+             * Searches fall back to LIKE while an upgrade is still filling the index, and for
+             * terms without letters or digits, which the index has no tokens for. Compressed
+             * notes are still only matched through the index.
+             */
+            qb.setTables(NotePad.Notes.TABLE_NAME);
+            qb.setProjectionMap(sNotesProjectionMap);
+            qb.appendWhere(LIVE_NOTES_WHERE);
+            if (!TextUtils.isEmpty(terms) && !TextUtils.isEmpty(terms.trim())) {
+                ArrayList<String> likeArgs = new ArrayList<String>();
+                qb.appendWhere(" AND " + buildLikeWhere(terms, likeArgs));
+                selectionArgs = prependArgs(likeArgs.toArray(new String[likeArgs.size()]),
+                        selectionArgs);
+            }
+        }
+
+        // Without an explicit sort order, FTS matches are ranked here rather than by SQLite
+        boolean rank = match != null && TextUtils.isEmpty(sortOrder);
+
+        String limit = getLimitParameter(uri);
+        int offset = getOffsetParameter(uri);
+
+        String[] columns = projection;
+        if (columns == null) {
+            columns = sNotesDefaultProjection;
+        }
+
+        Cursor c;
+        if (rank) {
+            Cursor hits = qb.query(db, new String[] { NotePad.Notes._ID, SEARCH_MATCHINFO },
+                    selection, selectionArgs, null, null, null);
+            long[] page = rankSearchResults(hits, offset,
+                    limit != null ? Integer.parseInt(limit) : Integer.MAX_VALUE);
+            c = readSearchPage(db, columns, page);
+        } else {
+            String orderBy = TextUtils.isEmpty(sortOrder)
+                    ? NotePad.Notes.DEFAULT_SORT_ORDER : sortOrder;
+            String sqlLimit = null;
+            if (limit != null) {
+                sqlLimit = offset + "," + limit;
+            } else if (offset > 0) {
+                sqlLimit = offset + ",-1";
+            }
+
+            // The compressed text is read after the caller's columns, and hidden from them
+            String[] queryColumns = NoteCompression.withCompressedColumn(columns);
+            c = qb.query(db, queryColumns, selection, selectionArgs, null, null, orderBy,
+                    sqlLimit);
+            c = NoteCompression.wrap(c, queryColumns, columns.length);
+        }
+
+        // Search results change whenever any note changes, so watch the whole notes URI
+        c.setNotificationUri(getContext().getContentResolver(), NotePad.Notes.CONTENT_URI);
+        return c;
+    }
+
+    /**
+     * Builds the selection of the notes whose title or body contains the search terms, for the
+     * searches that the full-text index can't serve, and adds its arguments to args. SQLite can't
+     * read the text of compressed notes, so they are matched through the index instead, as far as
+     * it is filled and the terms have tokens to match; no note is decompressed to be searched.
+     */
+    private static String buildLikeWhere(String terms, ArrayList<String> args) {
+        String like = "%" + terms.trim() + "%";
+        args.add(like);
+        args.add(like);
+
+        String match = NoteTokenizer.buildMatchQuery(terms);
+        if (match == null) {
+            return SEARCH_LIKE_WHERE + ")";
+        }
+        args.add(match);
+        return SEARCH_LIKE_WHERE + " OR " + SEARCH_INDEXED_WHERE + ")";
+    }
+
+    /**
+     * Returns the number of results to skip requested by a URI's offset parameter, or 0.
+     *
+     * @throws IllegalArgumentException if the offset is negative or not a number.
+     */
+    static int getOffsetParameter(Uri uri) {
+        String offset = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_OFFSET);
+        if (offset == null) {
+            return 0;
+        }
+        try {
+            int rows = Integer.parseInt(offset.trim());
+            if (rows >= 0) {
+                return rows;
+            }
+        } catch (NumberFormatException e) {
+            // Falls through to the exception below
+        }
+        throw new IllegalArgumentException("Invalid offset " + offset);
+    }
+
+    /**
+     * Scores every match of a search with Okapi BM25, reading the matches in order, and returns
+     * the IDs of the requested page of them, best match first. The incoming cursor must hold the
+     * note ID and the matchinfo('pcnalx') blob of each match, and is closed.
+     */
+    private static long[] rankSearchResults(Cursor hits, int offset, int limit) {
+        try {
+            int count = hits.getCount();
+            long[] ids = new long[count];
+            double[] scores = new double[count];
+            Integer[] order = new Integer[count];
+
+            for (int row = 0; hits.moveToNext(); row++) {
+                ids[row] = hits.getLong(0);
+                scores[row] = bm25(hits.getBlob(1));
+                order[row] = row;
+            }
+
+            final double[] s = scores;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Double.compare(s[b], s[a]);
+                }
+            });
+
+            int end = (int) Math.min(count, (long) offset + limit);
+            long[] page = new long[Math.max(0, end - offset)];
+            for (int rank = offset; rank < end; rank++) {
+                page[rank - offset] = ids[order[rank]];
+            }
+            return page;
+        } finally {
+            hits.close();
+        }
+    }
+
+    /**
+     * Reads the requested columns of a page of ranked search results, a batch of notes per
+     * query, into a cursor that returns them in rank order. Notes that were deleted or moved to
+     * the trash since they were ranked are left out.
+     */
+    private static Cursor readSearchPage(SQLiteDatabase db, String[] columns, long[] ids) {
+
+        // The compressed text is read after the caller's columns, and the note ID after it
+        String[] textColumns = NoteCompression.withCompressedColumn(columns);
+        String[] queryColumns = new String[textColumns.length + 1];
+        System.arraycopy(textColumns, 0, queryColumns, 0, textColumns.length);
+        queryColumns[textColumns.length] = NotePad.Notes._ID;
+
+        LongSparseArray<Object[]> rows = new LongSparseArray<Object[]>(ids.length);
+        for (int start = 0; start < ids.length; start += SEARCH_PAGE_BATCH_SIZE) {
+            int end = Math.min(ids.length, start + SEARCH_PAGE_BATCH_SIZE);
+            StringBuilder where = new StringBuilder(LIVE_NOTES_WHERE)
+                    .append(" AND ").append(NotePad.Notes._ID).append(" IN (");
+            for (int i = start; i < end; i++) {
+                where.append(i > start ? ", " : "").append(ids[i]);
+            }
+            where.append(')');
+
+            SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+            qb.setTables(NotePad.Notes.TABLE_NAME);
+            qb.setProjectionMap(sNotesProjectionMap);
+            qb.appendWhere(where);
+
+            // Hides the compressed column, which puts the note ID right after the caller's
+            Cursor c = NoteCompression.wrap(qb.query(db, queryColumns, null, null, null, null,
+                    null), queryColumns, columns.length);
+            try {
+                while (c.moveToNext()) {
+                    Object[] values = new Object[columns.length];
+                    for (int i = 0; i < columns.length; i++) {
+                        values[i] = getValue(c, i);
+                    }
+                    rows.put(c.getLong(columns.length), values);
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        MatrixCursor ranked = new MatrixCursor(columns, rows.size());
+        for (long id : ids) {
+            Object[] values = rows.get(id);
+            if (values != null) {
+                ranked.addRow(values);
+            }
+        }
+        return ranked;
+    }
+
+    /**
+     * Computes the Okapi BM25 score of one search match from its FTS4 matchinfo('pcnalx') blob,
+     * which holds 32-bit integers in the native byte order:
+     * <ul>
+     *   <li>p: the number of phrases in the query</li>
+     *   <li>c: the number of indexed columns</li>
+     *   <li>n: the number of indexed rows</li>
+     *   <li>a: for each column, the average number of tokens in that column</li>
+     *   <li>l: for each column, the number of tokens in that column of this row</li>
+     *   <li>x: for each phrase and column, the hits in this row, the hits in all rows and the
+     *   number of rows with at least one hit</li>
+     * </ul>
+     */
+    static double bm25(byte[] matchinfo) {
+        IntBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+
+        int phrases = info.get(0);
+        int cols = info.get(1);
+        long rows = info.get(2) & 0xffffffffL;
+        int avgOffset = 3;
+        int lengthOffset = avgOffset + cols;
+        int hitsOffset = lengthOffset + cols;
+
+        double score = 0;
+        for (int p = 0; p < phrases; p++) {
+            for (int col = 0; col < cols && col < SEARCH_COLUMN_WEIGHTS.length; col++) {
+                int x = hitsOffset + 3 * (p * cols + col);
+                long hits = info.get(x) & 0xffffffffL;
+                if (hits == 0) {
+                    continue;
+                }
+                long docsWithHits = info.get(x + 2) & 0xffffffffL;
+                double avgLength = Math.max(1, info.get(avgOffset + col) & 0xffffffffL);
+                double length = info.get(lengthOffset + col) & 0xffffffffL;
+
+                double idf = Math.log(1 + (rows - docsWithHits + 0.5) / (docsWithHits + 0.5));
+                double tf = (hits * (BM25_K1 + 1))
+                        / (hits + BM25_K1 * (1 - BM25_B + BM25_B * length / avgLength));
+                score += SEARCH_COLUMN_WEIGHTS[col] * idf * tf;
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Returns the value of a cursor column as the object type SQLite stored it with.
+     */
+    private static Object getValue(Cursor c, int column) {
+        switch (c.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return c.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return c.getDouble(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return c.getBlob(column);
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            default:
+                return c.getString(column);
+        }
+    }
+
+    /**
+     * Returns the arguments of a WHERE clause that precedes a caller's selection, followed by the
+     * caller's selection arguments.
+     */
+    static String[] prependArgs(String[] first, String[] rest) {
+        if (rest == null || rest.length == 0) {
+            return first;
+        }
+        String[] args = new String[first.length + rest.length];
+        System.arraycopy(first, 0, args, 0, first.length);
+        System.arraycopy(rest, 0, args, first.length, rest.length);
+        return args;
+    }
+
     /**
      * This is called when a client calls {@link android.content.ContentResolver#getType(Uri)}.
      * Returns the MIME data type of the URI given as a parameter.
@@ -350,15 +2545,37 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          */
         switch (sUriMatcher.match(uri)) {
 
-            // If the pattern is for notes or live folders, returns the general content type.
+            // If the pattern is for notes, live folders or searches, returns the general
+            // content type.
             case NOTES:
             case LIVE_FOLDER_NOTES:
+            case SEARCH:
+            case TRASH:
                 return NotePad.Notes.CONTENT_TYPE;
 
             // If the pattern is for note IDs, returns the note ID content type.
             case NOTE_ID:
+            case TRASH_ID:
                 return NotePad.Notes.CONTENT_ITEM_TYPE;
 
+            // If the pattern is for revisions, returns the revision types.
+            case REVISIONS:
+                return NotePad.Revisions.CONTENT_TYPE;
+
+            case REVISION_ID:
+                return NotePad.Revisions.CONTENT_ITEM_TYPE;
+
+            // If the pattern is for categories or a category ID, returns the category types.
+            case CATEGORIES:
+            case CATEGORY_COUNTS:
+                return NotePad.Categories.CONTENT_TYPE;
+
+            case CHANGES:
+                return NotePad.Changes.CONTENT_TYPE;
+
+            case CATEGORY_ID:
+                return NotePad.Categories.CONTENT_ITEM_TYPE;
+
             // If the URI pattern doesn't match any permitted patterns, throws an exception.
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
@@ -390,10 +2607,19 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          */
         switch (sUriMatcher.match(uri)) {
 
-            // If the pattern is for notes or live folders, return null. Data streams are not
-            // supported for this type of URI.
+            // If the pattern is for notes, live folders, searches or categories, return null.
+            // Data streams are not supported for this type of URI.
             case NOTES:
             case LIVE_FOLDER_NOTES:
+            case SEARCH:
+            case CATEGORIES:
+            case CATEGORY_ID:
+            case CATEGORY_COUNTS:
+            case CHANGES:
+            case TRASH:
+            case TRASH_ID:
+            case REVISIONS:
+            case REVISION_ID:
                 return null;
 
             // If the pattern is for note IDs and the MIME filter is text/plain, then return
@@ -425,6 +2651,24 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     @Override
     public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
             throws FileNotFoundException {
+        long start = ProviderMetrics.start();
+        long rows = -1;
+        try {
+            AssetFileDescriptor descriptor = openTypedAssetFileInternal(uri, mimeTypeFilter, opts);
+            rows = 0;
+            return descriptor;
+        } finally {
+            mMetrics.record(ProviderMetrics.OPEN_TYPED_ASSET_FILE, sUriMatcher.match(uri), start,
+                    rows);
+        }
+    }
+
+    /**
+     * Opens a stream for {@link #openTypedAssetFile}.
+     */
+    private AssetFileDescriptor openTypedAssetFileInternal(Uri uri, String mimeTypeFilter,
+                                                           Bundle opts)
+            throws FileNotFoundException {
 
         // Checks to see if the MIME type filter matches a supported MIME type.
         String[] mimeTypes = getStreamTypes(uri, mimeTypeFilter);
@@ -475,6 +2719,21 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     @Override
     public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
                                 Bundle opts, Cursor c) {
+        long start = ProviderMetrics.start();
+        long rows = -1;
+        try {
+            writeNoteToPipe(output, uri, c);
+            rows = 0;
+        } finally {
+            mMetrics.record(ProviderMetrics.WRITE_DATA_TO_PIPE, sUriMatcher.match(uri), start,
+                    rows);
+        }
+    }
+
+    /**
+     * Writes a note for {@link #writeDataToPipe}.
+     */
+    private void writeNoteToPipe(ParcelFileDescriptor output, Uri uri, Cursor c) {
         // We currently only support conversion-to-text from a single note entry,
         // so no need for cursor data type checking here.
         FileOutputStream fout = new FileOutputStream(output.getFileDescriptor());
@@ -483,9 +2742,29 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             pw = new PrintWriter(new OutputStreamWriter(fout, "UTF-8"));
             pw.println(c.getString(READ_NOTE_TITLE_INDEX));
             pw.println("");
-            pw.println(c.getString(READ_NOTE_NOTE_INDEX));
+
+            // Streams the text of a compressed note as it is inflated, instead of inflating all
+            // of it first
+            Reader text = c instanceof NoteCompression.DecompressingCursor
+                    ? ((NoteCompression.DecompressingCursor) c).openNoteReader() : null;
+            if (text != null) {
+                try {
+                    char[] buffer = new char[STREAM_BUFFER_SIZE];
+                    int count;
+                    while ((count = text.read(buffer)) != -1) {
+                        pw.write(buffer, 0, count);
+                    }
+                    pw.println();
+                } finally {
+                    text.close();
+                }
+            } else {
+                pw.println(c.getString(READ_NOTE_NOTE_INDEX));
+            }
         } catch (UnsupportedEncodingException e) {
             Log.w(TAG, "Ooops", e);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to inflate note " + uri, e);
         } finally {
             c.close();
             if (pw != null) {
@@ -510,6 +2789,34 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     @Override
     public Uri insert(Uri uri, ContentValues initialValues) {
+        int match = sUriMatcher.match(uri);
+        long start = ProviderMetrics.start();
+        long rows = -1;
+        try {
+            Uri inserted = insertInternal(uri, initialValues);
+            rows = 1;
+
+            // The change log has logged the new note
+            if (match == NOTES) {
+                onChangesLogged(1);
+            }
+            return inserted;
+        } finally {
+            mMetrics.record(ProviderMetrics.INSERT, match, start, rows);
+        }
+    }
+
+    /**
+     * Performs an insert for {@link #insert}, and for the rows of {@link #bulkInsert} that its
+     * compiled statement can't write. Neither records metrics nor counts logged changes; the
+     * callers do, once per call.
+     */
+    private Uri insertInternal(Uri uri, ContentValues initialValues) {
+
+        // Categories are inserted into their own table.
+        if (sUriMatcher.match(uri) == CATEGORIES) {
+            return insertCategory(initialValues);
+        }
 
         // Validates the incoming URI. Only the full provider URI is allowed for inserts.
         if (sUriMatcher.match(uri) != NOTES) {
@@ -544,8 +2851,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
         // If the values map doesn't contain a title, sets the value to the default title.
         if (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE) == false) {
-            Resources r = Resources.getSystem();
-            values.put(NotePad.Notes.COLUMN_NAME_TITLE, r.getString(android.R.string.untitled));
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, mDefaultTitle);
         }
 
         // If the values map doesn't contain note text, sets the value to an empty string.
@@ -553,22 +2859,34 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
         }
 
-        // 如果值映射不包含分类，设置默认分类为"未分类"
-        if (values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY) == false) {
-            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "未分类");
-        }
-
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
-        // Performs the insert and returns the ID of the new note.
-        long rowId = db.insert(
-                NotePad.Notes.TABLE_NAME,        // The table to insert into.
-                NotePad.Notes.COLUMN_NAME_NOTE,  // A hack, SQLite sets this column value to null
-                // if values is empty.
-                values                           // A map of column names, and the values to insert
-                // into the columns.
-        );
+        // 按名称指定的分类换成分类ID；未指定时由表的默认值设为"未分类"
+        putCategoryId(db, values);
+
+        // The note is indexed in the same transaction, from its text before any compression
+        String title = values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE);
+        String text = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        NoteCompression.compressValues(values);
+        long rowId;
+        db.beginTransaction();
+        try {
+            // Performs the insert and returns the ID of the new note.
+            rowId = db.insert(
+                    NotePad.Notes.TABLE_NAME,        // The table to insert into.
+                    NotePad.Notes.COLUMN_NAME_NOTE,  // A hack, SQLite sets this column value to null
+                    // if values is empty.
+                    values                           // A map of column names, and the values to insert
+                    // into the columns.
+            );
+            if (rowId > 0) {
+                DatabaseHelper.indexNote(db, rowId, title, text);
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            db.endTransaction();
+        }
 
         // If the insert succeeded, the row ID exists.
         if (rowId > 0) {
@@ -576,12 +2894,152 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
 
             // Notifies observers registered against this provider that the data changed.
-            getContext().getContentResolver().notifyChange(noteUri, null);
+            notifyChange(noteUri);
             return noteUri;
         }
 
-        // If the insert didn't succeed, then the rowID is <= 0. Throws an exception.
-        throw new SQLException("Failed to insert row into " + uri);
+        // If the insert didn't succeed, then the rowID is <= 0. Throws an exception.
+        throw new SQLException("Failed to insert row into " + uri);
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#bulkInsert(Uri, ContentValues[])}.
+     * Inserts all of the rows in a single transaction with one compiled INSERT statement, filling
+     * in the same defaults as {@link #insert(Uri, ContentValues)} without copying each row's
+     * values. Listeners are notified once, after all of the rows are inserted.
+     *
+     * Rows with columns that the compiled statement doesn't write, such as an explicit _ID, and
+     * rows with note text large enough to compress, are inserted the way
+     * {@link #insert(Uri, ContentValues)} inserts them, within the same transaction. The whole
+     * call is recorded in the metrics as one insert of all its rows.
+     *
+     * @return The number of rows inserted.
+     * @throws SQLException if any insertion fails. No rows are inserted in that case.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+
+        // Validates the incoming URI. Only the full provider URI is allowed for inserts.
+        if (sUriMatcher.match(uri) != NOTES) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+
+        long start = ProviderMetrics.start();
+        long rows = -1;
+        try {
+            int count = bulkInsertInternal(uri, values);
+            rows = count;
+            return count;
+        } finally {
+            mMetrics.record(ProviderMetrics.INSERT, NOTES, start, rows);
+        }
+    }
+
+    /**
+     * Performs a bulk insert for {@link #bulkInsert}.
+     */
+    private int bulkInsertInternal(Uri uri, ContentValues[] values) {
+
+        // Opens the database object in "write" mode.
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+        // Gets the current system time in milliseconds, shared by all of the new rows
+        long now = System.currentTimeMillis();
+
+        int count = 0;
+
+        // Defers the notifications of rows that take the insert() path until the end.
+        Batch batch = new Batch();
+        mBatch.set(batch);
+        db.beginTransaction();
+        try {
+            SQLiteStatement statement = db.compileStatement("INSERT INTO "
+                    + NotePad.Notes.TABLE_NAME + " ("
+                    + TextUtils.join(", ", BULK_INSERT_COLUMNS)
+                    + ") VALUES (?, ?, ?, ?, ?)");
+            try {
+                for (ContentValues row : values) {
+                    // Counted below with the other rows, in the metrics and the change log
+                    if (!hasOnlyBulkInsertColumns(row) || NoteCompression.isLarge(row)) {
+                        insertInternal(uri, row);
+                        count++;
+                        continue;
+                    }
+
+                    bindValue(statement, 1, row, NotePad.Notes.COLUMN_NAME_TITLE, mDefaultTitle);
+                    bindValue(statement, 2, row, NotePad.Notes.COLUMN_NAME_NOTE, "");
+                    bindValue(statement, 3, row, NotePad.Notes.COLUMN_NAME_CREATE_DATE, now);
+                    bindValue(statement, 4, row, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
+                    bindValue(statement, 5, row, NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+                            NotePad.Categories.UNCATEGORIZED_ID);
+
+                    long rowId = statement.executeInsert();
+                    if (rowId <= 0) {
+                        throw new SQLException("Failed to insert row into " + uri);
+                    }
+                    DatabaseHelper.indexNote(db, rowId,
+                            row.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)
+                                    ? row.getAsString(NotePad.Notes.COLUMN_NAME_TITLE)
+                                    : mDefaultTitle,
+                            row.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)
+                                    ? row.getAsString(NotePad.Notes.COLUMN_NAME_NOTE) : "");
+                    count++;
+                }
+            } finally {
+                statement.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatch.remove();
+        }
+
+        // Notifies observers registered against this provider that the data changed.
+        if (count > 0) {
+            notifyChange(uri);
+            onChangesLogged(count);
+        }
+        return count;
+    }
+
+    /**
+     * Tests whether every value of a row is written by the compiled bulk insert statement.
+     */
+    private static boolean hasOnlyBulkInsertColumns(ContentValues row) {
+        int known = 0;
+        for (String column : BULK_INSERT_COLUMNS) {
+            if (row.containsKey(column)) {
+                known++;
+            }
+        }
+        return known == row.size();
+    }
+
+    /**
+     * Binds a row's value for a column to a statement parameter, or the default value if the
+     * row doesn't contain the column.
+     */
+    private static void bindValue(SQLiteStatement statement, int index, ContentValues row,
+                                  String column, String defaultValue) {
+        if (row.containsKey(column)) {
+            DatabaseUtils.bindObjectToProgram(statement, index, row.get(column));
+        } else {
+            statement.bindString(index, defaultValue);
+        }
+    }
+
+    /**
+     * Binds a row's value for a column to a statement parameter, or the default value if the
+     * row doesn't contain the column.
+     */
+    private static void bindValue(SQLiteStatement statement, int index, ContentValues row,
+                                  String column, long defaultValue) {
+        if (row.containsKey(column)) {
+            DatabaseUtils.bindObjectToProgram(statement, index, row.get(column));
+        } else {
+            statement.bindLong(index, defaultValue);
+        }
     }
 
     /**
@@ -599,6 +3057,21 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     @Override
     public int delete(Uri uri, String where, String[] whereArgs) {
+        long start = ProviderMetrics.start();
+        long rows = -1;
+        try {
+            int count = deleteInternal(uri, where, whereArgs);
+            rows = count;
+            return count;
+        } finally {
+            mMetrics.record(ProviderMetrics.DELETE, sUriMatcher.match(uri), start, rows);
+        }
+    }
+
+    /**
+     * Performs a delete for {@link #delete}.
+     */
+    private int deleteInternal(Uri uri, String where, String[] whereArgs) {
 
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
@@ -609,43 +3082,50 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Does the delete based on the incoming URI pattern.
         switch (sUriMatcher.match(uri)) {
 
-            // If the incoming pattern matches the general pattern for notes, does a delete
-            // based on the incoming "where" columns and arguments.
+            // If the incoming pattern matches the general pattern for notes, moves the notes
+            // selected by the incoming "where" columns and arguments to the trash.
             case NOTES:
-                count = db.delete(
-                        NotePad.Notes.TABLE_NAME,  // The database table name
-                        where,                     // The incoming where clause column names
-                        whereArgs                  // The incoming where clause values
-                );
+                count = trashNotes(db, where, whereArgs);
                 break;
 
-            // If the incoming URI matches a single note ID, does the delete based on the
-            // incoming data, but modifies the where clause to restrict it to the
-            // particular note ID.
+            // If the incoming URI matches a single note ID, moves the note to the trash, but
+            // modifies the where clause to restrict it to the particular note ID.
             case NOTE_ID:
                 /*
                  * Starts a final WHERE clause by restricting it to the
-                 * desired note ID.
+                 * desired note ID, which is bound as the first argument.
                  */
-                finalWhere =
-                        NotePad.Notes._ID +                              // The ID column name
-                                " = " +                                          // test for equality
-                                uri.getPathSegments().                           // the incoming note ID
-                                        get(NotePad.Notes.NOTE_ID_PATH_POSITION)
-                ;
+                finalWhere = NOTE_ID_WHERE;
 
                 // If there were additional selection criteria, append them to the final
                 // WHERE clause
                 if (where != null) {
-                    finalWhere = finalWhere + " AND " + where;
+                    finalWhere = finalWhere + " AND (" + where + ")";
                 }
 
-                // Performs the delete.
-                count = db.delete(
-                        NotePad.Notes.TABLE_NAME,  // The database table name.
-                        finalWhere,                // The final WHERE clause
-                        whereArgs                  // The incoming where clause values.
-                );
+                // Moves the note to the trash.
+                count = trashNotes(db, finalWhere,
+                        // The note ID, followed by the incoming where clause values.
+                        prependArgs(new String[] { getNoteId(uri) }, whereArgs));
+                break;
+
+            // If the incoming URI is for the trash, deletes notes in the trash for good.
+            case TRASH_ID:
+                where = TextUtils.isEmpty(where) ? NOTE_ID_WHERE
+                        : NOTE_ID_WHERE + " AND (" + where + ")";
+                whereArgs = prependArgs(new String[] { getNoteId(uri) }, whereArgs);
+                // Falls through to the delete of the selected notes in the trash
+            case TRASH:
+                count = deleteNotes(db,
+                        TextUtils.isEmpty(where) ? TRASH_WHERE
+                                : TRASH_WHERE + " AND (" + where + ")",
+                        whereArgs);
+                break;
+
+            // If the incoming URI is for categories, deletes them and moves their notes.
+            case CATEGORIES:
+            case CATEGORY_ID:
+                count = deleteCategories(db, uri, where, whereArgs);
                 break;
 
             // If the incoming pattern is invalid, throws an exception.
@@ -657,12 +3137,66 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          * that the incoming URI changed. The object passes this along to the resolver framework,
          * and observers that have registered themselves for the provider are notified.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
+        onChangesLogged(count);
 
         // Returns the number of rows deleted.
         return count;
     }
 
+    /**
+     * Moves the selected notes that aren't in the trash yet to the trash, by setting their
+     * deletion time. This is a single-column update, and the notes' pages are reclaimed later,
+     * by {@link #purgeTrash(long)}.
+     *
+     * @return The number of notes moved to the trash.
+     */
+    private int trashNotes(SQLiteDatabase db, String where, String[] whereArgs) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_DELETED, System.currentTimeMillis());
+        int count = db.update(NotePad.Notes.TABLE_NAME, values,
+                TextUtils.isEmpty(where) ? LIVE_NOTES_WHERE
+                        : LIVE_NOTES_WHERE + " AND (" + where + ")",
+                whereArgs);
+
+        // The trash isn't below the notes URI, so its observers are told separately
+        if (count > 0) {
+            notifyChange(NotePad.Notes.TRASH_URI);
+        }
+        return count;
+    }
+
+    /**
+     * Deletes the notes that were moved to the trash before the given time, for good. The notes
+     * are deleted in batches of {@link #TRASH_PURGE_BATCH_SIZE}, each in its own short
+     * transaction, with a pause in between, so that a large purge doesn't hold up saves. Meant to
+     * be called on a background thread. Set to package visibility for testing purposes.
+     *
+     * @return The number of notes deleted.
+     */
+    int purgeTrash(long deletedBefore) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        String[] args = new String[] { Long.toString(deletedBefore) };
+        int total = 0;
+        int count;
+        do {
+            count = deleteNotes(db, NotePad.Notes._ID + " IN (SELECT "
+                    + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME + " WHERE "
+                    + TRASH_WHERE + " AND " + NotePad.Notes.COLUMN_NAME_DELETED + " < ? LIMIT "
+                    + TRASH_PURGE_BATCH_SIZE + ")", args);
+            total += count;
+            if (count == TRASH_PURGE_BATCH_SIZE) {
+                SystemClock.sleep(TRASH_PURGE_PAUSE_MILLIS);
+            }
+        } while (count == TRASH_PURGE_BATCH_SIZE);
+
+        if (total > 0) {
+            notifyChange(NotePad.Notes.TRASH_URI);
+            onChangesLogged(total);
+        }
+        return total;
+    }
+
     /**
      * This is called when a client calls
      * {@link android.content.ContentResolver#update(Uri,ContentValues,String,String[])}
@@ -680,17 +3214,40 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      * @param whereArgs An array of selection criteria. If the "where" param contains value
      * placeholders ("?"), then each placeholder is replaced by the corresponding element in the
      * array.
-     * @return The number of rows updated.
+     * @return The number of rows updated. An update that saves a single note's title or text,
+     * but would change nothing apart from its modification date, returns 1 without writing or
+     * notifying observers.
      * @throws IllegalArgumentException if the incoming URI pattern is invalid.
      */
     @Override
     public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
+        long start = ProviderMetrics.start();
+        long rows = -1;
+        try {
+            int count = updateInternal(uri, values, where, whereArgs);
+            rows = count;
+            return count;
+        } finally {
+            mMetrics.record(ProviderMetrics.UPDATE, sUriMatcher.match(uri), start, rows);
+        }
+    }
+
+    /**
+     * Performs an update for {@link #update}.
+     */
+    private int updateInternal(Uri uri, ContentValues values, String where, String[] whereArgs) {
 
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count;
         String finalWhere;
 
+        // 按名称指定的分类换成分类ID，不修改调用方的值
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY)) {
+            values = new ContentValues(values);
+            putCategoryId(db, values);
+        }
+
         // Does the update based on the incoming URI pattern
         switch (sUriMatcher.match(uri)) {
 
@@ -698,12 +3255,16 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             // the incoming data.
             case NOTES:
 
-                // Does the update and returns the number of rows updated.
-                count = db.update(
-                        NotePad.Notes.TABLE_NAME, // The database table name.
+                // Does the update and returns the number of rows updated. Notes in the trash are
+                // only updated through the trash URI.
+                count = updateNotes(
+                        db,
                         values,                   // A map of column names and new values to use.
-                        where,                    // The where clause column names.
-                        whereArgs                 // The where clause column values to select on.
+                        // The where clause column names, restricted to notes outside the trash.
+                        TextUtils.isEmpty(where) ? LIVE_NOTES_WHERE
+                                : LIVE_NOTES_WHERE + " AND (" + where + ")",
+                        whereArgs,                // The where clause column values to select on.
+                        null                      // No single note to use the cached statement for
                 );
                 break;
 
@@ -711,36 +3272,78 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             // data, but modifies the where clause to restrict it to the particular note ID.
             case NOTE_ID:
                 // From the incoming URI, get the note ID
-                String noteId = uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
+                String noteId = getNoteId(uri);
+
+                // Saving a note from an editor is the common case, so it has a cached statement.
+                if (where == null && values.size() > 0) {
+                    count = updateNotes(db, values, LIVE_NOTE_ID_WHERE, new String[] { noteId },
+                            noteId);
+
+                    // A save that changes nothing is neither written nor notified
+                    if (count == NOTE_UNCHANGED) {
+                        return 1;
+                    }
+                    break;
+                }
 
                 /*
                  * Starts creating the final WHERE clause by restricting it to the incoming
-                 * note ID.
+                 * note ID, which is bound as the first argument, outside the trash.
                  */
-                finalWhere =
-                        NotePad.Notes._ID +                              // The ID column name
-                                " = " +                                          // test for equality
-                                uri.getPathSegments().                           // the incoming note ID
-                                        get(NotePad.Notes.NOTE_ID_PATH_POSITION)
-                ;
+                finalWhere = LIVE_NOTE_ID_WHERE;
 
                 // If there were additional selection criteria, append them to the final WHERE
                 // clause
                 if (where !=null) {
-                    finalWhere = finalWhere + " AND " + where;
+                    finalWhere = finalWhere + " AND (" + where + ")";
                 }
 
 
                 // Does the update and returns the number of rows updated.
-                count = db.update(
-                        NotePad.Notes.TABLE_NAME, // The database table name.
+                count = updateNotes(
+                        db,
                         values,                   // A map of column names and new values to use.
                         finalWhere,               // The final WHERE clause to use
-                        // placeholders for whereArgs
-                        whereArgs                 // The where clause column values to select on, or
-                        // null if the values are in the where argument.
+                        // The note ID, followed by the where clause column values to select on
+                        prependArgs(new String[] { noteId }, whereArgs),
+                        null                      // The selection rules out the cached statement
                 );
                 break;
+
+            // If the incoming URI is for the trash, updates notes in the trash, typically to
+            // restore them by setting their deletion time to 0.
+            case TRASH_ID:
+                where = TextUtils.isEmpty(where) ? NOTE_ID_WHERE
+                        : NOTE_ID_WHERE + " AND (" + where + ")";
+                whereArgs = prependArgs(new String[] { getNoteId(uri) }, whereArgs);
+                // Falls through to the update of the selected notes in the trash
+            case TRASH:
+                count = updateNotes(db, values,
+                        TextUtils.isEmpty(where) ? TRASH_WHERE
+                                : TRASH_WHERE + " AND (" + where + ")",
+                        whereArgs, null);
+
+                // Restored notes return to the notes list
+                if (count > 0) {
+                    notifyChange(NotePad.Notes.CONTENT_URI);
+                }
+                break;
+
+            // If the incoming URI is for categories, updates the categories table. Renaming a
+            // category only rewrites its own row.
+            case CATEGORY_ID:
+                where = TextUtils.isEmpty(where) ? NotePad.Categories._ID + " = ?"
+                        : NotePad.Categories._ID + " = ? AND (" + where + ")";
+                whereArgs = prependArgs(new String[] { getCategoryId(uri) }, whereArgs);
+                // Falls through to the update of the selected categories
+            case CATEGORIES:
+                count = db.update(NotePad.Categories.TABLE_NAME, values, where, whereArgs);
+
+                // The notes list shows category names, so its observers are told as well
+                if (count > 0) {
+                    notifyChange(NotePad.Notes.CONTENT_URI);
+                }
+                break;
             // If the incoming pattern is invalid, throws an exception.
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
@@ -750,12 +3353,612 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          * that the incoming URI changed. The object passes this along to the resolver framework,
          * and observers that have registered themselves for the provider are notified.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
+        onChangesLogged(count);
 
         // Returns the number of rows updated.
         return count;
     }
 
+    /*
+     * Returned by updateNotes() instead of a count when the update of a single note would change
+     * nothing, and so wasn't written.
+     */
+    private static final int NOTE_UNCHANGED = -1;
+
+    /**
+     * Updates the selected notes. If the update changes their title or text, the notes are taken
+     * out of the full-text index first, and put back afterwards, in the same transaction; if it
+     * saves their text, the save is also recorded in their revision histories. If noteId isn't
+     * null, the selection must be that note alone, and the update uses a cached statement.
+     *
+     * @return The number of notes updated, or {@link #NOTE_UNCHANGED} if noteId isn't null and
+     * the update saves the note's title or text but would change nothing apart from its
+     * modification date (see {@link #isNoOpUpdate}).
+     */
+    private int updateNotes(SQLiteDatabase db, ContentValues values, String where,
+                            String[] whereArgs, String noteId) {
+        boolean savesTitle = values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE);
+        boolean savesText = values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE);
+        if (!savesTitle && !savesText) {
+            return noteId != null ? updateNote(db, noteId, values)
+                    : db.update(NotePad.Notes.TABLE_NAME, values, where, whereArgs);
+        }
+
+        String title = values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE);
+        String text = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+
+        // The other columns that the update of a single note sets, to tell whether it changes them
+        ArrayList<String> columns = null;
+        if (noteId != null) {
+            columns = new ArrayList<String>(values.keySet());
+            columns.remove(NotePad.Notes.COLUMN_NAME_TITLE);
+            columns.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+            columns.remove(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+        }
+        db.beginTransaction();
+        try {
+            ArrayList<SavedNote> notes = readSavedNotes(db, where, whereArgs, columns);
+            if (noteId != null && notes.size() == 1 && isNoOpUpdate(notes.get(0), values)) {
+                db.setTransactionSuccessful();
+                return NOTE_UNCHANGED;
+            }
+            for (SavedNote note : notes) {
+                DatabaseHelper.unindexNote(db, note.id, note.title, note.text);
+            }
+            if (savesText) {
+                recordRevisions(db, notes, values);
+
+                // Compresses a large text, without changing the caller's values
+                values = new ContentValues(values);
+                NoteCompression.compressValues(values);
+            }
+            int count = noteId != null ? updateNote(db, noteId, values)
+                    : db.update(NotePad.Notes.TABLE_NAME, values, where, whereArgs);
+
+            for (SavedNote note : notes) {
+                DatabaseHelper.indexNote(db, note.id, savesTitle ? title : note.title,
+                        savesText ? text : note.text);
+            }
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * A note as it is saved in the database, ahead of an update of its title or text, or of its
+     * deletion
+     */
+    private static final class SavedNote {
+        final long id;
+        final String title;
+        final String text;
+        final long modified;
+
+        // The other columns that were read, as strings
+        final ContentValues columns;
+
+        SavedNote(long id, String title, String text, long modified, ContentValues columns) {
+            this.id = id;
+            this.title = title;
+            this.text = text;
+            this.modified = modified;
+            this.columns = columns;
+        }
+    }
+
+    /**
+     * Reads the selected notes, decompressing the text of compressed ones, to take them out of
+     * the full-text index before they are changed or deleted. Must be called in the transaction
+     * of the change.
+     *
+     * @param columns Other columns to read, or null if there are none.
+     */
+    private static ArrayList<SavedNote> readSavedNotes(SQLiteDatabase db, String where,
+                                                       String[] whereArgs,
+                                                       List<String> columns) {
+        ArrayList<String> projection = new ArrayList<String>();
+        projection.add(NotePad.Notes._ID);
+        projection.add(NotePad.Notes.COLUMN_NAME_TITLE);
+        projection.add(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+        if (columns != null) {
+            projection.addAll(columns);
+        }
+        int textIndex = projection.size();
+
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, DatabaseHelper.withNoteTextColumns(
+                projection.toArray(new String[projection.size()])
+        ), where, whereArgs, null, null, null);
+        try {
+            ArrayList<SavedNote> notes = new ArrayList<SavedNote>(c.getCount());
+            while (c.moveToNext()) {
+                long noteId = c.getLong(0);
+                ContentValues saved = new ContentValues();
+                for (int index = 3; index < textIndex; index++) {
+                    saved.put(projection.get(index), c.getString(index));
+                }
+                notes.add(new SavedNote(noteId, c.getString(1),
+                        DatabaseHelper.readNoteText(db, c, textIndex, noteId), c.getLong(2),
+                        saved));
+            }
+            return notes;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Deletes the selected notes for good, taking them out of the full-text index in the same
+     * transaction.
+     *
+     * @return The number of notes deleted.
+     */
+    private static int deleteNotes(SQLiteDatabase db, String where, String[] whereArgs) {
+        db.beginTransaction();
+        try {
+            for (SavedNote note : readSavedNotes(db, where, whereArgs, null)) {
+                DatabaseHelper.unindexNote(db, note.id, note.title, note.text);
+            }
+            int count = db.delete(NotePad.Notes.TABLE_NAME, where, whereArgs);
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Updates a single note outside the trash with a compiled statement from
+     * {@link #mUpdateStatements}, compiling and caching one if no statement sets the same columns
+     * yet.
+     *
+     * @return The number of rows updated, 0 or 1.
+     */
+    private int updateNote(SQLiteDatabase db, String noteId, ContentValues values) {
+        // The key is independent of the order in which the caller put the values
+        TreeSet<String> columns = new TreeSet<String>(values.keySet());
+        String key = TextUtils.join(",", columns);
+
+        synchronized (mUpdateStatements) {
+            SQLiteStatement statement = mUpdateStatements.get(key);
+            if (statement == null) {
+                StringBuilder sql = new StringBuilder("UPDATE ")
+                        .append(NotePad.Notes.TABLE_NAME).append(" SET ");
+                String separator = "";
+                for (String column : columns) {
+                    sql.append(separator).append(column).append(" = ?");
+                    separator = ", ";
+                }
+                sql.append(" WHERE ").append(LIVE_NOTE_ID_WHERE);
+                statement = db.compileStatement(sql.toString());
+                mUpdateStatements.put(key, statement);
+            }
+
+            int index = 1;
+            for (String column : columns) {
+                DatabaseUtils.bindObjectToProgram(statement, index++, values.get(column));
+            }
+            statement.bindString(index, noteId);
+            try {
+                return statement.executeUpdateDelete();
+            } finally {
+                // Doesn't hold on to the note's text until the next update
+                statement.clearBindings();
+            }
+        }
+    }
+
+    /**
+     * Tests whether an update of a single note would leave every column as it is, apart from the
+     * modification date, which the editors set on every save. The text of a compressed note is
+     * compared once it is decompressed. Values are compared as strings.
+     *
+     * @param note The note as it is saved, with the other columns of the update read.
+     * @return True if the update would change nothing but the modification date.
+     */
+    private static boolean isNoOpUpdate(SavedNote note, ContentValues values) {
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE) && !TextUtils.equals(note.title,
+                values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE))) {
+            return false;
+        }
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE) && !TextUtils.equals(note.text,
+                values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE))) {
+            return false;
+        }
+        for (String column : note.columns.keySet()) {
+            if (!TextUtils.equals(note.columns.getAsString(column), values.getAsString(column))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the note ID of a note ID URI. The URI matcher has already checked that it is a
+     * number.
+     */
+    private static String getNoteId(Uri uri) {
+        return uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
+    }
+
+    /**
+     * Returns the category ID of a category ID URI. The URI matcher has already checked that it
+     * is a number.
+     */
+    private static String getCategoryId(Uri uri) {
+        return uri.getPathSegments().get(NotePad.Categories.CATEGORY_ID_PATH_POSITION);
+    }
+
+    /**
+     * Replaces a category name in a note's values with the ID of the category of that name.
+     * Does nothing if the values don't name a category.
+     *
+     * @throws IllegalArgumentException if there is no category of that name.
+     */
+    private static void putCategoryId(SQLiteDatabase db, ContentValues values) {
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY)) {
+            return;
+        }
+        String name = values.getAsString(NotePad.Notes.COLUMN_NAME_CATEGORY);
+        values.remove(NotePad.Notes.COLUMN_NAME_CATEGORY);
+        if (name == null) {
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, NotePad.Categories.UNCATEGORIZED_ID);
+            return;
+        }
+        try {
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, DatabaseUtils.longForQuery(db,
+                    "SELECT " + NotePad.Categories._ID + " FROM " + NotePad.Categories.TABLE_NAME
+                            + " WHERE " + NotePad.Categories.COLUMN_NAME_NAME + " = ?",
+                    new String[] { name }));
+        } catch (SQLiteDoneException e) {
+            throw new IllegalArgumentException("Unknown category " + name);
+        }
+    }
+
+    /**
+     * Inserts a category. A name is required; the color and icon default to those of
+     * "未分类".
+     *
+     * @return The URI of the new category.
+     */
+    private Uri insertCategory(ContentValues initialValues) {
+        ContentValues values = initialValues != null
+                ? new ContentValues(initialValues) : new ContentValues();
+        if (TextUtils.isEmpty(values.getAsString(NotePad.Categories.COLUMN_NAME_NAME))) {
+            throw new IllegalArgumentException("A category needs a name");
+        }
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        if (!values.containsKey(NotePad.Categories.COLUMN_NAME_COLOR)
+                || !values.containsKey(NotePad.Categories.COLUMN_NAME_ICON)) {
+            Cursor uncategorized = db.query(NotePad.Categories.TABLE_NAME, new String[] {
+                    NotePad.Categories.COLUMN_NAME_COLOR, NotePad.Categories.COLUMN_NAME_ICON
+            }, NotePad.Categories._ID + " = " + NotePad.Categories.UNCATEGORIZED_ID,
+                    null, null, null, null);
+            try {
+                if (uncategorized.moveToFirst()) {
+                    if (!values.containsKey(NotePad.Categories.COLUMN_NAME_COLOR)) {
+                        values.put(NotePad.Categories.COLUMN_NAME_COLOR, uncategorized.getInt(0));
+                    }
+                    if (!values.containsKey(NotePad.Categories.COLUMN_NAME_ICON)) {
+                        values.put(NotePad.Categories.COLUMN_NAME_ICON, uncategorized.getString(1));
+                    }
+                }
+            } finally {
+                uncategorized.close();
+            }
+        }
+
+        long rowId = db.insert(NotePad.Categories.TABLE_NAME, null, values);
+        if (rowId > 0) {
+            Uri categoryUri = ContentUris.withAppendedId(
+                    NotePad.Categories.CONTENT_ID_URI_BASE, rowId);
+            notifyChange(categoryUri);
+            return categoryUri;
+        }
+        throw new SQLException("Failed to insert row into " + NotePad.Categories.CONTENT_URI);
+    }
+
+    /**
+     * Deletes the categories selected by a categories or category ID URI and a selection. Their
+     * notes are moved to {@link NotePad.Categories#UNCATEGORIZED_ID}, which is never deleted.
+     *
+     * @return The number of categories deleted.
+     */
+    private int deleteCategories(SQLiteDatabase db, Uri uri, String where, String[] whereArgs) {
+        String finalWhere = NotePad.Categories._ID + " != " + NotePad.Categories.UNCATEGORIZED_ID;
+        if (sUriMatcher.match(uri) == CATEGORY_ID) {
+            finalWhere = finalWhere + " AND " + NotePad.Categories._ID + " = ?";
+            whereArgs = prependArgs(new String[] { getCategoryId(uri) }, whereArgs);
+        }
+        if (!TextUtils.isEmpty(where)) {
+            finalWhere = finalWhere + " AND (" + where + ")";
+        }
+
+        int count;
+        int moved;
+        db.beginTransaction();
+        try {
+            ContentValues uncategorized = new ContentValues();
+            uncategorized.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+                    NotePad.Categories.UNCATEGORIZED_ID);
+            moved = db.update(NotePad.Notes.TABLE_NAME, uncategorized,
+                    NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " IN (SELECT "
+                            + NotePad.Categories._ID + " FROM " + NotePad.Categories.TABLE_NAME
+                            + " WHERE " + finalWhere + ")",
+                    whereArgs);
+            count = db.delete(NotePad.Categories.TABLE_NAME, finalWhere, whereArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // The moved notes now show another category
+        if (moved > 0) {
+            notifyChange(NotePad.Notes.CONTENT_URI);
+        }
+        return count;
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#applyBatch(String, ArrayList)}.
+     * Applies all of the operations in a single database transaction, rather than one
+     * transaction per operation, and notifies observers once after the transaction ends instead
+     * of once per operation.
+     *
+     * Long batches should mark operations with
+     * {@link ContentProviderOperation.Builder#withYieldAllowed(boolean)}. At each such operation
+     * the transaction is committed and the database briefly released if another thread is
+     * waiting for it, so that a bulk import doesn't lock out readers for its whole duration.
+     *
+     * @return The results of the operations, in order.
+     * @throws OperationApplicationException if any operation fails. Operations applied since the
+     * last yield point are rolled back.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+
+        // Opens the database object in "write" mode.
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+        Batch batch = new Batch();
+        mBatch.set(batch);
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            final int count = operations.size();
+            ContentProviderResult[] results = new ContentProviderResult[count];
+            for (int i = 0; i < count; i++) {
+                ContentProviderOperation operation = operations.get(i);
+
+                // Commits the work done so far and lets waiting threads in, if the caller marked
+                // this operation as a yield point.
+                if (i > 0 && operation.isYieldAllowed() && db.yieldIfContendedSafely()) {
+                    batch.committed.addAll(batch.pending);
+                    batch.pending.clear();
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            mBatch.remove();
+
+            // Work committed at yield points stays committed even if a later operation failed,
+            // so its URIs are notified either way; the URIs changed after the last yield point
+            // only if the batch succeeded. The cache was invalidated as the operations ran, but
+            // readers may have cached rows from before the commit since.
+            if (successful) {
+                batch.committed.addAll(batch.pending);
+            }
+            if (!batch.committed.isEmpty()) {
+                mNoteCache.invalidateAll();
+                for (Uri uri : batch.committed) {
+                    getContext().getContentResolver().notifyChange(uri, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Notifies observers registered against the given URI that its data changed. Inside a batch,
+     * the notification is deferred until the batch ends, and made once however many operations
+     * changed the URI.
+     */
+    private void notifyChange(Uri uri) {
+        invalidateNoteCache(uri);
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            batch.pending.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Drops the notes whose data changed with the given URI from {@link #mNoteCache}: the note of
+     * a single-note URI, or every note for any other URI, since a change to a set of notes or to
+     * a category may affect any cached note.
+     */
+    private void invalidateNoteCache(Uri uri) {
+        switch (sUriMatcher.match(uri)) {
+            case NOTE_ID:
+            case TRASH_ID:
+                mNoteCache.invalidate(Long.parseLong(getNoteId(uri)));
+                break;
+            default:
+                mNoteCache.invalidateAll();
+                break;
+        }
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#call(Uri, String, String, Bundle)}.
+     * Supports {@link NotePad.Methods#METHOD_CACHE_STATS},
+     * {@link NotePad.Methods#METHOD_METRICS},
+     * {@link NotePad.Methods#METHOD_SET_SLOW_QUERY_THRESHOLD} and the set-based methods
+     * {@link NotePad.Methods#METHOD_RECATEGORIZE}, {@link NotePad.Methods#METHOD_DELETE_BY_FILTER}
+     * and {@link NotePad.Methods#METHOD_TOUCH}.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (NotePad.Methods.METHOD_CACHE_STATS.equals(method)) {
+            return mNoteCache.getStats();
+        }
+        if (NotePad.Methods.METHOD_METRICS.equals(method)) {
+            return mMetrics.snapshot();
+        }
+        if (NotePad.Methods.METHOD_RECATEGORIZE.equals(method)
+                || NotePad.Methods.METHOD_DELETE_BY_FILTER.equals(method)
+                || NotePad.Methods.METHOD_TOUCH.equals(method)) {
+            enforceCallerIsSelf(method);
+            return updateByFilter(method, arg, extras);
+        }
+        if (NotePad.Methods.METHOD_SET_SLOW_QUERY_THRESHOLD.equals(method)) {
+            enforceCallerIsSelf(method);
+            try {
+                mSlowQueries.setThresholdMillis(arg != null
+                        ? Long.parseLong(arg) : SlowQueryLog.DEFAULT_THRESHOLD_MILLIS);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid slow query threshold " + arg);
+            }
+            Bundle result = new Bundle();
+            result.putLong(NotePad.Methods.KEY_SLOW_QUERY_THRESHOLD_MILLIS,
+                    mSlowQueries.getThresholdMillis());
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Throws a SecurityException if the caller isn't this application. Other applications can
+     * reach call() through a URI permission, which grants them one note, not every method.
+     */
+    private void enforceCallerIsSelf(String method) {
+        if (Binder.getCallingUid() != Process.myUid()) {
+            throw new SecurityException("Only " + getContext().getPackageName()
+                    + " can call " + method);
+        }
+    }
+
+    /**
+     * Runs one of the set-based methods of {@link NotePad.Methods} on the notes selected by the
+     * filter in the extras, as a single statement, and notifies the observers of the notes once.
+     *
+     * @return A bundle with the number of notes changed.
+     * @throws IllegalArgumentException if there is no filter, or the argument is invalid.
+     */
+    private Bundle updateByFilter(String method, String arg, Bundle extras) {
+        long start = ProviderMetrics.start();
+        boolean delete = NotePad.Methods.METHOD_DELETE_BY_FILTER.equals(method);
+        long rows = -1;
+        try {
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            ArrayList<String> args = new ArrayList<String>();
+            String where = buildFilterWhere(extras, args);
+            int count;
+
+            if (delete) {
+                // Notifies the trash's observers when notes were moved there
+                count = trashNotes(db, where, args.toArray(new String[args.size()]));
+            } else {
+                ContentValues values = new ContentValues();
+                try {
+                    if (NotePad.Methods.METHOD_RECATEGORIZE.equals(method)) {
+                        long categoryId = Long.parseLong(arg);
+                        if (DatabaseUtils.queryNumEntries(db, NotePad.Categories.TABLE_NAME,
+                                NotePad.Categories._ID + " = " + categoryId) == 0) {
+                            throw new IllegalArgumentException("Unknown category " + arg);
+                        }
+                        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, categoryId);
+
+                        // Leaves the notes already in the category alone
+                        where = where + " AND " + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " != "
+                                + categoryId;
+                    } else {
+                        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                                arg != null ? Long.parseLong(arg) : System.currentTimeMillis());
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid argument " + arg + " of "
+                            + method);
+                }
+                count = db.update(NotePad.Notes.TABLE_NAME, values,
+                        LIVE_NOTES_WHERE + " AND " + where,
+                        args.toArray(new String[args.size()]));
+            }
+
+            if (count > 0) {
+                notifyChange(NotePad.Notes.CONTENT_URI);
+                onChangesLogged(count);
+            }
+            rows = count;
+
+            Bundle result = new Bundle();
+            result.putInt(NotePad.Methods.KEY_COUNT, count);
+            return result;
+        } finally {
+            mMetrics.record(delete ? ProviderMetrics.DELETE : ProviderMetrics.UPDATE, NOTES,
+                    start, rows);
+        }
+    }
+
+    /**
+     * Builds the selection of the notes that match the KEY_FILTER_ extras of a set-based
+     * method, and adds its arguments to args. The search terms are matched against the
+     * full-text index when it can serve them, as in {@link #querySearch}.
+     *
+     * @throws IllegalArgumentException if the extras hold no filter.
+     */
+    private String buildFilterWhere(Bundle extras, ArrayList<String> args) {
+        StringBuilder where = new StringBuilder();
+        if (extras != null && extras.containsKey(NotePad.Methods.KEY_FILTER_CATEGORY_ID)) {
+            where.append(NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?");
+            args.add(Long.toString(extras.getLong(NotePad.Methods.KEY_FILTER_CATEGORY_ID)));
+        }
+        if (extras != null && extras.containsKey(NotePad.Methods.KEY_FILTER_MODIFIED_BEFORE)) {
+            if (where.length() > 0) {
+                where.append(" AND ");
+            }
+            where.append(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " < ?");
+            args.add(Long.toString(extras.getLong(NotePad.Methods.KEY_FILTER_MODIFIED_BEFORE)));
+        }
+        String terms = extras != null ? extras.getString(NotePad.Methods.KEY_FILTER_QUERY) : null;
+        if (!TextUtils.isEmpty(terms) && !TextUtils.isEmpty(terms.trim())) {
+            if (where.length() > 0) {
+                where.append(" AND ");
+            }
+            String match = mOpenHelper.isSearchIndexReady()
+                ? NoteTokenizer.buildMatchQuery(terms) : null;
+            if (match != null) {
+                where.append(SEARCH_INDEXED_WHERE);
+                args.add(match);
+            } else {
+                where.append(buildLikeWhere(terms, args));
+            }
+        }
+        if (where.length() == 0) {
+            throw new IllegalArgumentException("A set-based method needs a filter");
+        }
+        return where.toString();
+    }
+
+    /**
+     * This is called by "adb shell dumpsys activity provider NotePadProvider", and prints the
+     * query shapes that took the longest and the latest slow queries.
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mSlowQueries.dump(writer);
+    }
+
     /**
      * A test package can call this to get a handle to the database underlying NotePadProvider,
      * so it can insert test data into the database. The test case class is responsible for
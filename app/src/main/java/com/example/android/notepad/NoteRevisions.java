@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores the revision history of notes. Editing a note usually changes one region of its text,
+ * so each revision is stored as a delta against the revision before it: the lengths of the text
+ * that the two share at the start and at the end, and the text that replaces everything in
+ * between. A delta's size follows the size of the edit, not of the note.
+ *
+ * Every {@link #SNAPSHOT_INTERVAL} revisions, the full text is stored instead, deflated by
+ * {@link NoteCompression} if it is as long as the notes that are stored compressed. Rebuilding a
+ * revision starts from the snapshot at or before it, so it never applies more than
+ * SNAPSHOT_INTERVAL - 1 deltas.
+ *
+ * A note keeps at most {@link #MAX_REVISIONS} revisions. Older ones are dropped a snapshot and
+ * its deltas at a time, so that the oldest revision kept is always a snapshot.
+ */
+final class NoteRevisions {
+
+    /**
+     * The number of revisions from one full snapshot of a note's text to the next
+     */
+    static final int SNAPSHOT_INTERVAL = 20;
+
+    /**
+     * The most revisions kept for a note. A multiple of SNAPSHOT_INTERVAL, so that the oldest
+     * revisions can be dropped whenever a snapshot is added.
+     */
+    static final int MAX_REVISIONS = 5 * SNAPSHOT_INTERVAL;
+
+    // The columns of the revisions table. A snapshot has no prefix or suffix length, and its
+    // text is the full text of the note, or a BLOB of the deflated text if it is long.
+    private static final String COLUMN_NAME_PREFIX = "prefix";
+    private static final String COLUMN_NAME_SUFFIX = "suffix";
+    private static final String COLUMN_NAME_TEXT = "text";
+
+    // The columns read to rebuild revisions, in order
+    private static final String[] DELTA_COLUMNS = new String[] {
+            NotePad.Revisions._ID,
+            NotePad.Revisions.COLUMN_NAME_REVISION,
+            NotePad.Revisions.COLUMN_NAME_SAVED,
+            COLUMN_NAME_PREFIX,
+            COLUMN_NAME_SUFFIX,
+            COLUMN_NAME_TEXT
+    };
+
+    // The columns read when no text is rebuilt: the first three of DELTA_COLUMNS
+    private static final String[] LIST_COLUMNS = new String[] {
+            NotePad.Revisions._ID,
+            NotePad.Revisions.COLUMN_NAME_REVISION,
+            NotePad.Revisions.COLUMN_NAME_SAVED
+    };
+
+    // Every column that a revisions query can return
+    private static final List<String> COLUMNS = Arrays.asList(
+            NotePad.Revisions._ID,
+            NotePad.Revisions.COLUMN_NAME_NOTE_ID,
+            NotePad.Revisions.COLUMN_NAME_REVISION,
+            NotePad.Revisions.COLUMN_NAME_SAVED,
+            NotePad.Revisions.COLUMN_NAME_NOTE);
+
+    // The columns returned for a null projection. The text is left out, since rebuilding it for
+    // every revision of a large note would hold all of those texts in memory at once.
+    private static final String[] DEFAULT_COLUMNS = new String[] {
+            NotePad.Revisions._ID,
+            NotePad.Revisions.COLUMN_NAME_NOTE_ID,
+            NotePad.Revisions.COLUMN_NAME_REVISION,
+            NotePad.Revisions.COLUMN_NAME_SAVED
+    };
+
+    // This class cannot be instantiated
+    private NoteRevisions() {
+    }
+
+    /**
+     * Creates the revisions table, and the trigger that deletes a note's revisions with it.
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + NotePad.Revisions.TABLE_NAME + " ("
+                + NotePad.Revisions._ID + " INTEGER PRIMARY KEY,"
+                + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+                + NotePad.Revisions.COLUMN_NAME_REVISION + " INTEGER NOT NULL,"
+                + NotePad.Revisions.COLUMN_NAME_SAVED + " INTEGER,"
+                + COLUMN_NAME_PREFIX + " INTEGER,"
+                + COLUMN_NAME_SUFFIX + " INTEGER,"
+                + COLUMN_NAME_TEXT + " TEXT,"
+                + "UNIQUE (" + NotePad.Revisions.COLUMN_NAME_NOTE_ID + ", "
+                + NotePad.Revisions.COLUMN_NAME_REVISION + ")"
+                + ");");
+
+        db.execSQL("CREATE TRIGGER " + NotePad.Revisions.TABLE_NAME + "_note_delete"
+                + " AFTER DELETE ON " + NotePad.Notes.TABLE_NAME + " BEGIN "
+                + "DELETE FROM " + NotePad.Revisions.TABLE_NAME + " WHERE "
+                + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = old." + NotePad.Notes._ID
+                + "; END;");
+    }
+
+    /**
+     * Records a save that changes a note's text from oldText to newText. Must be called in the
+     * transaction of the save, before the note is updated. If the note has no history yet, its
+     * old text is recorded first, as revision 1, so that the save can be undone. Once the note
+     * has more than {@link #MAX_REVISIONS} revisions, each new snapshot drops the oldest ones.
+     *
+     * @param oldSaved The time that the old text was saved.
+     * @param saved The time of this save.
+     */
+    static void record(SQLiteDatabase db, long noteId, String oldText, long oldSaved,
+                       String newText, long saved) {
+        if (TextUtils.equals(oldText, newText)) {
+            return;
+        }
+
+        long latest = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX("
+                + NotePad.Revisions.COLUMN_NAME_REVISION + "), 0) FROM "
+                + NotePad.Revisions.TABLE_NAME + " WHERE "
+                + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ?",
+                new String[] { Long.toString(noteId) });
+
+        if (latest == 0 && oldText != null) {
+            insert(db, noteId, ++latest, oldSaved, null, null, oldText);
+        }
+
+        long revision = latest + 1;
+        if (oldText == null || newText == null || isSnapshot(revision)) {
+            insert(db, noteId, revision, saved, null, null, newText);
+            if (isSnapshot(revision)) {
+                prune(db, noteId, revision);
+            }
+            return;
+        }
+
+        // Finds the text shared at the start, then at the end without overlapping the start
+        int prefix = 0;
+        int limit = Math.min(oldText.length(), newText.length());
+        while (prefix < limit && oldText.charAt(prefix) == newText.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        limit -= prefix;
+        while (suffix < limit && oldText.charAt(oldText.length() - 1 - suffix)
+                == newText.charAt(newText.length() - 1 - suffix)) {
+            suffix++;
+        }
+
+        insert(db, noteId, revision, saved, prefix, suffix,
+                newText.substring(prefix, newText.length() - suffix));
+    }
+
+    // Tests whether a revision is stored as a snapshot.
+    private static boolean isSnapshot(long revision) {
+        return (revision - 1) % SNAPSHOT_INTERVAL == 0;
+    }
+
+    // Stores a revision. The text of a snapshot is deflated if it is long.
+    private static void insert(SQLiteDatabase db, long noteId, long revision, long saved,
+                               Integer prefix, Integer suffix, String text) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Revisions.COLUMN_NAME_NOTE_ID, noteId);
+        values.put(NotePad.Revisions.COLUMN_NAME_REVISION, revision);
+        values.put(NotePad.Revisions.COLUMN_NAME_SAVED, saved);
+        values.put(COLUMN_NAME_PREFIX, prefix);
+        values.put(COLUMN_NAME_SUFFIX, suffix);
+        if (prefix == null && text != null
+                && text.length() > NoteCompression.COMPRESSION_THRESHOLD) {
+            values.put(COLUMN_NAME_TEXT, NoteCompression.compress(text));
+        } else {
+            values.put(COLUMN_NAME_TEXT, text);
+        }
+        db.insertOrThrow(NotePad.Revisions.TABLE_NAME, null, values);
+    }
+
+    /*
+     * Drops the revisions that a note no longer keeps, once the snapshot at the given revision
+     * has been added: those before the first snapshot that leaves at most MAX_REVISIONS.
+     */
+    private static void prune(SQLiteDatabase db, long noteId, long snapshot) {
+        long firstKept = snapshot - MAX_REVISIONS + SNAPSHOT_INTERVAL;
+        if (firstKept <= 1) {
+            return;
+        }
+        db.delete(NotePad.Revisions.TABLE_NAME, NotePad.Revisions.COLUMN_NAME_NOTE_ID
+                + " = ? AND " + NotePad.Revisions.COLUMN_NAME_REVISION + " < ?", new String[] {
+                Long.toString(noteId), Long.toString(firstKept)
+        });
+    }
+
+    /**
+     * Reads the revisions of a note, latest first, or a single revision if revision isn't -1.
+     * The text of a revision is only rebuilt if the projection asks for it, which it may only do
+     * for a single revision; the default projection leaves it out.
+     *
+     * @throws IllegalArgumentException if the projection names an unknown column, or asks for
+     * the text of every revision.
+     */
+    static Cursor query(SQLiteDatabase db, long noteId, long revision, String[] projection) {
+        String[] columns = projection != null ? projection : DEFAULT_COLUMNS;
+        int[] indexes = new int[columns.length];
+        boolean rebuild = false;
+        for (int index = 0; index < columns.length; index++) {
+            indexes[index] = COLUMNS.indexOf(columns[index]);
+            if (indexes[index] < 0) {
+                throw new IllegalArgumentException("Unknown column " + columns[index]);
+            }
+            rebuild |= NotePad.Revisions.COLUMN_NAME_NOTE.equals(columns[index]);
+        }
+        if (rebuild && revision < 0) {
+            throw new IllegalArgumentException("The " + NotePad.Revisions.COLUMN_NAME_NOTE
+                    + " column can only be read for a single revision");
+        }
+
+        /*
+         * A single revision is rebuilt from the snapshot at or before it.
+         */
+        String selection = NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ?";
+        String[] selectionArgs = new String[] { Long.toString(noteId) };
+        if (revision >= 0) {
+            long first = rebuild ? revision - (revision - 1) % SNAPSHOT_INTERVAL : revision;
+            selection += " AND " + NotePad.Revisions.COLUMN_NAME_REVISION + " BETWEEN ? AND ?";
+            selectionArgs = new String[] {
+                    selectionArgs[0], Long.toString(first), Long.toString(revision)
+            };
+        }
+
+        Cursor deltas = db.query(NotePad.Revisions.TABLE_NAME,
+                rebuild ? DELTA_COLUMNS : LIST_COLUMNS, selection,
+                selectionArgs, null, null, NotePad.Revisions.COLUMN_NAME_REVISION);
+        ArrayList<Object[]> rows = new ArrayList<Object[]>(deltas.getCount());
+        try {
+            String text = null;
+            while (deltas.moveToNext()) {
+                if (rebuild) {
+                    text = apply(text, deltas);
+                }
+                if (revision >= 0 && deltas.getLong(1) != revision) {
+                    continue;
+                }
+
+                Object[] values = new Object[] {
+                        deltas.getLong(0), noteId, deltas.getLong(1), deltas.getLong(2), text
+                };
+                Object[] row = new Object[columns.length];
+                for (int index = 0; index < columns.length; index++) {
+                    row[index] = values[indexes[index]];
+                }
+                rows.add(row);
+            }
+        } finally {
+            deltas.close();
+        }
+
+        // Returns the latest revision first
+        MatrixCursor c = new MatrixCursor(columns, rows.size());
+        for (int index = rows.size() - 1; index >= 0; index--) {
+            c.addRow(rows.get(index));
+        }
+        return c;
+    }
+
+    // Applies the revision at the cursor's position to the text of the revision before it.
+    private static String apply(String text, Cursor delta) {
+        if (delta.isNull(3) || text == null) {
+            return delta.getType(5) == Cursor.FIELD_TYPE_BLOB
+                    ? NoteCompression.decompress(delta.getBlob(5)) : delta.getString(5);
+        }
+        int prefix = delta.getInt(3);
+        int suffix = delta.getInt(4);
+        String middle = delta.isNull(5) ? "" : delta.getString(5);
+        return text.substring(0, prefix) + middle + text.substring(text.length() - suffix);
+    }
+}
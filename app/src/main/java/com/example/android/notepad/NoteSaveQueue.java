@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Process;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Writes the editors' saves to the provider on a single background thread, so that a save never
+ * makes an activity transition wait for the database.
+ *
+ * Saves are queued by note URI. A save of a note that is still queued is merged into the queued
+ * one, the later value of each column winning, so that a burst of saves of one note is written
+ * once. All the saves queued while the writer is busy are written together, with
+ * {@link ContentResolver#applyBatch}, in a single transaction with a single notification.
+ *
+ * Readers that must see the queued saves, such as an editor opening a note that was just saved,
+ * call {@link #flush()} first.
+ *
+ * A save or delete that fails to be written stays queued, merged with any later save of the same
+ * note, and is written again with the next write, which the next save, delete or flush starts.
+ */
+final class NoteSaveQueue {
+
+    // For logging and debugging purposes
+    private static final String TAG = "NoteSaveQueue";
+
+    private static NoteSaveQueue sInstance;
+
+    private final ContentResolver mResolver;
+    private final Executor mWriter;
+
+    // The queued saves and deletes, by note URI, in the order they were first queued. A null
+    // value stands for a delete. Guarded by this.
+    private LinkedHashMap<Uri, ContentValues> mPending = new LinkedHashMap<Uri, ContentValues>();
+
+    // Whether a write of the queued saves is scheduled on the writer. Guarded by this.
+    private boolean mScheduled;
+
+    // The number of saves and deletes queued so far, and of those written. Guarded by this.
+    private long mQueued;
+    private long mWritten;
+
+    // The notes whose queued save or delete failed to be written, and is held for a retry.
+    // Guarded by this.
+    private final HashSet<Uri> mFailed = new HashSet<Uri>();
+
+    /**
+     * Returns the queue of the application.
+     */
+    static synchronized NoteSaveQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NoteSaveQueue(context.getApplicationContext().getContentResolver(),
+                    Executors.newSingleThreadExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, TAG);
+                        }
+                    }));
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param resolver The resolver to write to.
+     * @param writer Runs the writes, one at a time. Set to package visibility for testing
+     * purposes.
+     */
+    NoteSaveQueue(ContentResolver resolver, Executor writer) {
+        mResolver = resolver;
+        mWriter = writer;
+    }
+
+    /**
+     * Queues an update of a note. Returns at once.
+     *
+     * @param noteUri The URI of the note.
+     * @param values The columns to update. They are copied.
+     */
+    synchronized void save(Uri noteUri, ContentValues values) {
+        ContentValues pending = mPending.get(noteUri);
+        if (pending != null) {
+            pending.putAll(values);
+        } else if (mPending.containsKey(noteUri)) {
+            // The note is already being deleted
+            return;
+        } else {
+            mPending.put(noteUri, new ContentValues(values));
+        }
+        queued();
+    }
+
+    /**
+     * Queues the delete of a note, which drops the queued saves of the note. Returns at once.
+     */
+    synchronized void delete(Uri noteUri) {
+        mPending.remove(noteUri);
+        mPending.put(noteUri, null);
+        queued();
+    }
+
+    // Counts a queued save or delete, and schedules a write if none is.
+    private void queued() {
+        mQueued++;
+        if (!mScheduled) {
+            mScheduled = true;
+            mWriter.execute(mWrite);
+        }
+    }
+
+    /**
+     * Blocks until every save and delete queued before the call has been written, or has failed
+     * to be written. Saves and deletes held for a retry are written again first. Returns at once
+     * if there are none.
+     *
+     * @return True if every save and delete was written; false if some failed, and are still
+     * queued for a retry.
+     */
+    boolean flush() {
+        synchronized (this) {
+            if (!mFailed.isEmpty()) {
+                queued();
+            }
+            long target = mQueued;
+            boolean interrupted = false;
+            while (mWritten < target) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return mFailed.isEmpty();
+        }
+    }
+
+    /*
+     * Writes everything queued so far in one batch. Runs on the writer.
+     */
+    private final Runnable mWrite = new Runnable() {
+        @Override
+        public void run() {
+            LinkedHashMap<Uri, ContentValues> pending;
+            long queued;
+            synchronized (NoteSaveQueue.this) {
+                pending = mPending;
+                queued = mQueued;
+                mPending = new LinkedHashMap<Uri, ContentValues>();
+                mScheduled = false;
+            }
+
+            LinkedHashMap<Uri, ContentValues> failed = pending;
+            try {
+                failed = write(pending);
+            } finally {
+                synchronized (NoteSaveQueue.this) {
+                    requeue(failed);
+                    mWritten = queued;
+                    NoteSaveQueue.this.notifyAll();
+                }
+            }
+        }
+    };
+
+    /*
+     * Puts the saves and deletes that failed back in the queue, ahead of the ones queued since,
+     * which are merged into them. A failed delete drops the later saves of its note, as a queued
+     * delete does.
+     */
+    private void requeue(LinkedHashMap<Uri, ContentValues> failed) {
+        mFailed.clear();
+        if (failed.isEmpty()) {
+            return;
+        }
+        mFailed.addAll(failed.keySet());
+
+        LinkedHashMap<Uri, ContentValues> pending = failed;
+        for (Map.Entry<Uri, ContentValues> entry : mPending.entrySet()) {
+            Uri noteUri = entry.getKey();
+            ContentValues values = entry.getValue();
+            ContentValues previous = pending.get(noteUri);
+            if (values == null || !pending.containsKey(noteUri)) {
+                pending.put(noteUri, values);
+            } else if (previous != null) {
+                previous.putAll(values);
+            }
+        }
+        mPending = pending;
+    }
+
+    /*
+     * Writes a set of saves and deletes in one transaction. If the batch fails, writes each one
+     * on its own, so that one bad save doesn't lose the others.
+     *
+     * @return The saves and deletes that failed, by note URI.
+     */
+    private LinkedHashMap<Uri, ContentValues> write(LinkedHashMap<Uri, ContentValues> pending) {
+        LinkedHashMap<Uri, ContentValues> failed = new LinkedHashMap<Uri, ContentValues>();
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(pending.size());
+        for (Map.Entry<Uri, ContentValues> entry : pending.entrySet()) {
+            operations.add(entry.getValue() != null
+                    ? ContentProviderOperation.newUpdate(entry.getKey())
+                            .withValues(entry.getValue()).build()
+                    : ContentProviderOperation.newDelete(entry.getKey()).build());
+        }
+
+        try {
+            mResolver.applyBatch(NotePad.AUTHORITY, operations);
+            return failed;
+        } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+            Log.w(TAG, "Failed to write " + operations.size() + " saves together", e);
+        }
+
+        for (ContentProviderOperation operation : operations) {
+            ArrayList<ContentProviderOperation> single = new ArrayList<ContentProviderOperation>(1);
+            single.add(operation);
+            try {
+                mResolver.applyBatch(NotePad.AUTHORITY, single);
+            } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+                Log.e(TAG, "Failed to write a save of " + operation.getUri()
+                        + ", keeping it for a retry", e);
+                failed.put(operation.getUri(), pending.get(operation.getUri()));
+            }
+        }
+        return failed;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.util.ArrayList;
+
+/**
+ * Prepares text for the full-text index, and search terms for matching against it.
+ *
+ * The index uses SQLite's simple tokenizer, which only splits on ASCII characters other than
+ * letters and digits, and only folds the case of ASCII letters. CJK text isn't written with
+ * spaces between words, so a run of it would be a single token that no term inside it could
+ * match. The provider therefore indexes a segmented form of each note's title and text instead:
+ * every CJK run is replaced by its overlapping two-character tokens (bigrams) followed by its
+ * single characters (unigrams), other letters are folded to lower case, and other characters
+ * become spaces. A CJK term of one character then matches a unigram, and a longer one matches
+ * the phrase of its bigrams, so any part of a CJK run can be found, as a substring search would.
+ */
+final class NoteTokenizer {
+
+    // This class cannot be instantiated
+    private NoteTokenizer() {
+    }
+
+    /**
+     * Returns the form of a note's title or text that is put into the full-text index, or null
+     * if the text is null.
+     */
+    static String segment(String text) {
+        if (text == null) {
+            return null;
+        }
+        StringBuilder tokens = new StringBuilder(text.length() + 16);
+        int index = 0;
+        while (index < text.length()) {
+            int c = text.codePointAt(index);
+            if (isCjk(c)) {
+                index = appendCjkRun(text, index, tokens, false);
+            } else {
+                if (isTokenChar(c)) {
+                    tokens.appendCodePoint(Character.toLowerCase(c));
+                } else {
+                    tokens.append(' ');
+                }
+                index += Character.charCount(c);
+            }
+        }
+        return tokens.toString();
+    }
+
+    /**
+     * Converts the user's search terms to an FTS MATCH expression against the segmented text, in
+     * which every term must match. A word of other letters must match the start of a token; a
+     * CJK run must appear as it is.
+     *
+     * @return The MATCH expression, or null if the terms hold no letters or digits.
+     */
+    static String buildMatchQuery(String terms) {
+        if (terms == null) {
+            return null;
+        }
+
+        StringBuilder match = new StringBuilder();
+        StringBuilder word = new StringBuilder();
+        int index = 0;
+        while (index <= terms.length()) {
+            int c = index < terms.length() ? terms.codePointAt(index) : ' ';
+            if (isTokenChar(c) && !isCjk(c)) {
+                word.appendCodePoint(Character.toLowerCase(c));
+                index += Character.charCount(c);
+                continue;
+            }
+
+            // The segmented text has no double quotes, which delimit phrases in FTS syntax
+            if (word.length() > 0) {
+                appendTerm(match).append('"').append(word).append("\"*");
+                word.setLength(0);
+            }
+            if (isCjk(c)) {
+                StringBuilder run = new StringBuilder();
+                index = appendCjkRun(terms, index, run, true);
+                appendTerm(match).append('"').append(run).append('"');
+            } else {
+                index += Character.charCount(c);
+            }
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    // Starts another term of a MATCH expression, which is implicitly ANDed with the others.
+    private static StringBuilder appendTerm(StringBuilder match) {
+        if (match.length() > 0) {
+            match.append(' ');
+        }
+        return match;
+    }
+
+    /**
+     * Appends the tokens of the CJK run that starts at the given index of a text, separated by
+     * spaces: its bigrams, then its unigrams, or for a search term, its bigrams only if it has
+     * any.
+     *
+     * @return The index of the first character after the run.
+     */
+    private static int appendCjkRun(String text, int index, StringBuilder tokens, boolean term) {
+        ArrayList<String> chars = new ArrayList<String>();
+        while (index < text.length()) {
+            int c = text.codePointAt(index);
+            if (!isCjk(c)) {
+                break;
+            }
+            chars.add(new String(Character.toChars(c)));
+            index += Character.charCount(c);
+        }
+
+        if (tokens.length() > 0 && tokens.charAt(tokens.length() - 1) != ' ') {
+            tokens.append(' ');
+        }
+        for (int bigram = 0; bigram + 1 < chars.size(); bigram++) {
+            tokens.append(chars.get(bigram)).append(chars.get(bigram + 1)).append(' ');
+        }
+        if (!term || chars.size() == 1) {
+            for (String unigram : chars) {
+                tokens.append(unigram).append(' ');
+            }
+        }
+
+        // A term's run is quoted right after it
+        if (term) {
+            tokens.setLength(tokens.length() - 1);
+        }
+        return index;
+    }
+
+    /**
+     * Tests whether a character belongs to a token, as opposed to separating tokens.
+     */
+    private static boolean isTokenChar(int c) {
+        if (Character.isLetterOrDigit(c)) {
+            return true;
+        }
+        int type = Character.getType(c);
+        return type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK;
+    }
+
+    /**
+     * Tests whether a character is written in a CJK script: Han ideographs, kana or hangul.
+     */
+    static boolean isCjk(int c) {
+        if (Character.isIdeographic(c)) {
+            return true;
+        }
+        Character.UnicodeBlock block = Character.UnicodeBlock.of(c);
+        return block == Character.UnicodeBlock.HIRAGANA
+                || block == Character.UnicodeBlock.KATAKANA
+                || block == Character.UnicodeBlock.KATAKANA_PHONETIC_EXTENSIONS
+                || block == Character.UnicodeBlock.HANGUL_SYLLABLES
+                || block == Character.UnicodeBlock.HANGUL_JAMO
+                || block == Character.UnicodeBlock.HANGUL_COMPATIBILITY_JAMO;
+    }
+}
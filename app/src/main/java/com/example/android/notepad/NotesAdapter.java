@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.res.ColorStateList;
+import android.graphics.drawable.GradientDrawable;
+import android.support.annotation.NonNull;
+import android.support.v7.recyclerview.extensions.ListAdapter;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.util.LongSparseArray;
+import android.util.SparseArray;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * 笔记列表的适配器。列表内容是从游标读出的不可变快照 {@link Note}，每次刷新提交一份新快照，
+ * 由 {@link ListAdapter} 在后台线程与旧快照比较，只通知有变化的行：编辑一条笔记只重新绑定
+ * 那一行，其他行保持不动，插入、删除和移动带有条目动画。
+ *
+ * 笔记ID作为稳定ID，点击和长按菜单通过 {@link RecyclerView#getChildItemId} 找到对应的笔记。
+ *
+ * 滚动时每绑定一行都不分配对象：视图由 {@link NoteHolder} 缓存，分类背景和文字颜色按颜色
+ * 缓存后复用，时间由 {@link TimestampFormatter} 按分钟缓存格式化结果。
+ */
+final class NotesAdapter extends ListAdapter<NotesAdapter.Note, NotesAdapter.NoteHolder> {
+
+    /**
+     * 列表中的一条笔记，只包含列表显示的列。
+     */
+    static final class Note {
+        final long id;
+        final String title;
+        final long modified;
+        final String category;
+        final int categoryColor;
+        final String categoryIcon;
+
+        Note(long id, String title, long modified, String category, int categoryColor,
+                String categoryIcon) {
+            this.id = id;
+            this.title = title;
+            this.modified = modified;
+            this.category = category;
+            this.categoryColor = categoryColor;
+            this.categoryIcon = categoryIcon;
+        }
+
+        // 显示的内容是否相同，相同的行不需要重新绑定
+        boolean sameContentsAs(Note other) {
+            return modified == other.modified
+                    && categoryColor == other.categoryColor
+                    && TextUtils.equals(title, other.title)
+                    && TextUtils.equals(category, other.category)
+                    && TextUtils.equals(categoryIcon, other.categoryIcon);
+        }
+    }
+
+    /*
+     * 按笔记ID判断是否为同一行，再比较显示的内容。在后台线程调用。
+     */
+    private static final DiffUtil.ItemCallback<Note> DIFF_CALLBACK =
+            new DiffUtil.ItemCallback<Note>() {
+                @Override
+                public boolean areItemsTheSame(@NonNull Note oldNote, @NonNull Note newNote) {
+                    return oldNote.id == newNote.id;
+                }
+
+                @Override
+                public boolean areContentsTheSame(@NonNull Note oldNote, @NonNull Note newNote) {
+                    return oldNote.sameContentsAs(newNote);
+                }
+            };
+
+    /**
+     * 缓存一行中的各个视图，绑定时不再查找。
+     */
+    static final class NoteHolder extends RecyclerView.ViewHolder {
+        final TextView title;
+        final TextView category;
+        final TextView icon;
+        final TextView timestamp;
+
+        // 这一行用过的分类背景，按颜色缓存。同一个 Drawable 不能同时作为多个视图的背景，
+        // 因此每行各有一份；分类只有几种，每行每种颜色只创建一次
+        private final SparseArray<GradientDrawable> mCategoryBackgrounds =
+                new SparseArray<GradientDrawable>();
+
+        NoteHolder(View view) {
+            super(view);
+            title = view.findViewById(android.R.id.text1);
+            category = view.findViewById(R.id.category_text);
+            icon = view.findViewById(R.id.icon_view);
+            timestamp = view.findViewById(R.id.timestamp_text);
+        }
+
+        // 返回指定颜色的分类背景
+        GradientDrawable categoryBackground(int color) {
+            GradientDrawable drawable = mCategoryBackgrounds.get(color);
+            if (drawable == null) {
+                drawable = new GradientDrawable();
+                drawable.setColor(color);
+                drawable.setCornerRadius(12f);
+                mCategoryBackgrounds.put(color, drawable);
+            }
+            return drawable;
+        }
+    }
+
+    /**
+     * 格式化笔记的修改时间。显示的时间精确到分钟，因此按分钟缓存格式化的结果，同一分钟的
+     * 时间不再重新格式化；未缓存的时间也复用同一个 SimpleDateFormat 和 Date。
+     * 只在 UI 线程使用。
+     */
+    static final class TimestampFormatter {
+        private static final long MINUTE_MILLIS = 60 * 1000;
+
+        // 最多缓存的分钟数，超过时清空重来
+        private static final int MAX_CACHED_MINUTES = 1024;
+
+        private final SimpleDateFormat mFormat;
+        private final Date mDate = new Date();
+        private final LongSparseArray<String> mCache = new LongSparseArray<String>();
+
+        TimestampFormatter(Locale locale) {
+            mFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm", locale);
+        }
+
+        String format(long timestamp) {
+            long minute = timestamp / MINUTE_MILLIS;
+            if (timestamp % MINUTE_MILLIS < 0) {
+                minute--;
+            }
+            String text = mCache.get(minute);
+            if (text == null) {
+                if (mCache.size() >= MAX_CACHED_MINUTES) {
+                    mCache.clear();
+                }
+                mDate.setTime(minute * MINUTE_MILLIS);
+                text = mFormat.format(mDate);
+                mCache.put(minute, text);
+            }
+            return text;
+        }
+    }
+
+    private final View.OnClickListener mClickListener;
+    private final View.OnCreateContextMenuListener mMenuListener;
+    private final TimestampFormatter mTimestamps = new TimestampFormatter(Locale.getDefault());
+
+    // 图标的文字颜色，按分类颜色缓存
+    private final SparseArray<ColorStateList> mIconColors = new SparseArray<ColorStateList>();
+
+    /**
+     * @param clickListener 点击一行时调用
+     * @param menuListener 长按一行时创建上下文菜单
+     */
+    NotesAdapter(View.OnClickListener clickListener,
+            View.OnCreateContextMenuListener menuListener) {
+        super(DIFF_CALLBACK);
+        mClickListener = clickListener;
+        mMenuListener = menuListener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * 返回指定位置的笔记。
+     */
+    Note getNote(int position) {
+        return getItem(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return getItem(position).id;
+    }
+
+    @NonNull
+    @Override
+    public NoteHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.noteslist_item, parent, false);
+        view.setOnClickListener(mClickListener);
+        view.setOnCreateContextMenuListener(mMenuListener);
+        return new NoteHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull NoteHolder holder, int position) {
+        Note note = getItem(position);
+
+        // 设置标题
+        holder.title.setText(note.title);
+
+        // 设置分类标签，颜色来自分类表，文字为布局中的白色
+        holder.category.setBackground(holder.categoryBackground(note.categoryColor));
+        holder.category.setText(note.category);
+
+        // 设置图标
+        holder.icon.setText(note.categoryIcon);
+        holder.icon.setTextColor(iconColor(note.categoryColor));
+
+        // 设置时间
+        holder.timestamp.setText(mTimestamps.format(note.modified));
+    }
+
+    // 返回指定分类颜色的图标文字颜色
+    private ColorStateList iconColor(int color) {
+        ColorStateList colors = mIconColors.get(color);
+        if (colors == null) {
+            colors = ColorStateList.valueOf(color);
+            mIconColors.put(color, colors);
+        }
+        return colors;
+    }
+}
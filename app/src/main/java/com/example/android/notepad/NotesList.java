@@ -18,53 +18,56 @@ package com.example.android.notepad;
 
 import com.example.android.notepad.NotePad;
 
-import android.app.ListActivity;
+import android.app.Activity;
 import android.content.ClipboardManager;
 import android.content.ClipData;
 import android.content.ComponentName;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
-import android.graphics.Color;
-import android.graphics.drawable.GradientDrawable;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.OperationCanceledException;
+import android.support.v7.widget.DefaultItemAnimator;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.text.TextUtils;
-import android.util.Log;
 import android.view.ContextMenu;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
-import android.view.ViewGroup;
 import android.view.ContextMenu.ContextMenuInfo;
-import android.widget.AdapterView;
-import android.widget.LinearLayout;
-import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
-import android.widget.TextView;
 import android.widget.SearchView;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
+import java.util.ArrayList;
 
 
-public class NotesList extends ListActivity {
-
-    private static final String TAG = "NotesList";
+public class NotesList extends Activity implements View.OnClickListener {
 
     private static final String[] PROJECTION = new String[] {
             NotePad.Notes._ID,
             NotePad.Notes.COLUMN_NAME_TITLE,
             NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
-            NotePad.Notes.COLUMN_NAME_CATEGORY
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_COLOR,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_ICON
     };
 
+    private static final int COLUMN_INDEX_ID = 0;
     private static final int COLUMN_INDEX_TITLE = 1;
     private static final int COLUMN_INDEX_MODIFIED = 2;
     private static final int COLUMN_INDEX_CATEGORY = 3;
+    private static final int COLUMN_INDEX_CATEGORY_COLOR = 4;
+    private static final int COLUMN_INDEX_CATEGORY_ICON = 5;
+
+    // 不按分类筛选时的分类ID
+    private static final long ALL_CATEGORIES = -1;
 
     // 菜单项ID
     private static final int MENU_ITEM_SEARCH = 100;
@@ -72,8 +75,32 @@ public class NotesList extends ListActivity {
 
     // 搜索和分类相关变量
     private String mCurrentSearchQuery = "";
-    private String mCurrentCategory = "所有";
-    private SimpleCursorAdapter mAdapter;
+    private long mCurrentCategoryId = ALL_CATEGORIES;
+    private RecyclerView mNotesView;
+    private LinearLayoutManager mLayoutManager;
+    private NotesAdapter mAdapter;
+
+    // 分页加载：每页的笔记数，以及距列表末尾还剩多少行时加载下一页
+    private static final int PAGE_SIZE = 50;
+    private static final int PREFETCH_DISTANCE = PAGE_SIZE / 2;
+
+    // 已加载的笔记。每次变化都换成一个新列表提交给适配器，已提交的列表不再修改
+    private ArrayList<NotesAdapter.Note> mNotes = new ArrayList<NotesAdapter.Note>();
+    private boolean mLoadedAll;
+
+    // 上下文菜单对应的笔记
+    private long mContextNoteId = RecyclerView.NO_ID;
+
+    // 笔记变化时重新加载已显示的页。只在界面可见时注册
+    private ContentObserver mNotesObserver;
+
+    // 正在后台执行的加载，同一时间最多一个
+    private PageLoadTask mLoadTask;
+
+    // 最近一次刷新读到的各分类及其笔记数，供标题栏和分类对话框使用
+    private long[] mCategoryIds;
+    private String[] mCategoryNames;
+    private int[] mCategoryCounts;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -87,175 +114,303 @@ public class NotesList extends ListActivity {
             intent.setData(NotePad.Notes.CONTENT_URI);
         }
 
-        getListView().setOnCreateContextMenuListener(this);
+        setContentView(R.layout.noteslist);
+        mNotesView = (RecyclerView) findViewById(R.id.notes_list);
+        mLayoutManager = new LinearLayoutManager(this);
+        mNotesView.setLayoutManager(mLayoutManager);
+        mNotesView.setItemAnimator(new DefaultItemAnimator());
         setupAdapter();
+
+        // 滚动到接近末尾时加载下一页
+        mNotesView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                loadMoreIfNeeded();
+            }
+        });
+
+        mNotesObserver = new ContentObserver(new Handler()) {
+            @Override
+            public void onChange(boolean selfChange) {
+                refreshList();
+            }
+        };
+    }
+
+    /**
+     * 界面可见时监听笔记的变化。不可见期间的变化没有通知，因此每次回到前台都重新加载，
+     * 第一次显示时也由这里加载第一页。
+     */
+    @Override
+    protected void onStart() {
+        super.onStart();
+        getContentResolver().registerContentObserver(NotePad.Notes.CONTENT_URI, true,
+                mNotesObserver);
+        refreshList();
+    }
+
+    /**
+     * 界面不可见时停止监听，并取消正在执行的加载，回到前台时会重新加载。
+     */
+    @Override
+    protected void onStop() {
+        super.onStop();
+        getContentResolver().unregisterContentObserver(mNotesObserver);
+        if (mLoadTask != null) {
+            mLoadTask.cancel();
+            mLoadTask = null;
+        }
     }
 
     private void setupAdapter() {
-        Cursor cursor = getFilteredCursor();
+        mAdapter = new NotesAdapter(this, this);
+        mNotesView.setAdapter(mAdapter);
+    }
 
-        String[] dataColumns = {
-                NotePad.Notes.COLUMN_NAME_TITLE,
-                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
-                NotePad.Notes.COLUMN_NAME_CATEGORY
-        };
+    /**
+     * 在后台线程加载笔记：刷新时加载第一页或已显示的条数，并读取各分类的笔记数；加载下一页时
+     * 接在已加载的笔记之后。查询条件在创建时取得，完成后在 UI 线程提交给适配器。取消时同时
+     * 取消正在执行的查询。
+     */
+    private class PageLoadTask extends AsyncTask<Void, Void, ArrayList<NotesAdapter.Note>> {
 
-        int[] viewIDs = {
-                android.R.id.text1,
-                R.id.timestamp_text,
-                R.id.category_text
-        };
+        private final CancellationSignal mCancellation = new CancellationSignal();
 
-        mAdapter = new SimpleCursorAdapter(
-                this,
-                R.layout.noteslist_item,
-                cursor,
-                dataColumns,
-                viewIDs
-        ) {
-            @Override
-            public View getView(int position, View convertView, ViewGroup parent) {
-                View view = super.getView(position, convertView, parent);
-
-                // 获取当前项的数据
-                Cursor cursor = (Cursor) getItem(position);
-                if (cursor != null) {
-                    String category = cursor.getString(COLUMN_INDEX_CATEGORY);
-                    if (category == null) {
-                        category = "未分类";
-                    }
-
-                    String title = cursor.getString(COLUMN_INDEX_TITLE);
-                    long modified = cursor.getLong(COLUMN_INDEX_MODIFIED);
-
-                    // 获取分类颜色和图标
-                    int color = getCategoryColor(category);
-                    String icon = getCategoryIcon(category);
-
-                    // 设置分类标签
-                    TextView categoryView = view.findViewById(R.id.category_text);
-                    if (categoryView != null) {
-                        GradientDrawable drawable = new GradientDrawable();
-                        drawable.setColor(color);
-                        drawable.setCornerRadius(12f);
-                        categoryView.setBackground(drawable);
-                        categoryView.setText(category);
-                        categoryView.setTextColor(Color.WHITE);
-                    }
-
-                    // 设置图标
-                    TextView iconView = view.findViewById(R.id.icon_view);
-                    if (iconView != null) {
-                        iconView.setText(icon);
-                        iconView.setTextColor(color);
-                    }
-
-                    // 设置时间
-                    TextView timeView = view.findViewById(R.id.timestamp_text);
-                    if (timeView != null) {
-                        timeView.setText(formatTimestamp(modified));
-                    }
-
-                    // 设置标题
-                    TextView titleView = view.findViewById(android.R.id.text1);
-                    if (titleView != null && title != null) {
-                        titleView.setText(title);
-                    }
-                }
-                return view;
-            }
+        // 查询条件
+        private final Uri mListUri = getIntent().getData();
+        private final String mSearchQuery = mCurrentSearchQuery;
+        private final long mCategoryId = mCurrentCategoryId;
 
-            @Override
-            public void setViewText(TextView v, String text) {
-                // 这里不设置文本，在getView中统一设置
-                if (v.getId() == R.id.timestamp_text) {
-                    // 时间戳在getView中设置
-                    return;
-                } else if (v.getId() == R.id.category_text) {
-                    // 分类在getView中设置
-                    return;
+        // 加载下一页时接在其后的已加载笔记；刷新时为 null
+        private final ArrayList<NotesAdapter.Note> mBase;
+        private final int mLimit;
+
+        // 是否已经到达末尾
+        private boolean mLoadedAll;
+
+        // 刷新时读到的各分类及其笔记数
+        private long[] mIds;
+        private String[] mNames;
+        private int[] mCounts;
+
+        PageLoadTask(ArrayList<NotesAdapter.Note> base, int limit) {
+            mBase = base;
+            mLimit = limit;
+        }
+
+        /**
+         * 取消加载，以及正在执行的查询。
+         */
+        void cancel() {
+            cancel(false);
+            mCancellation.cancel();
+        }
+
+        @Override
+        protected ArrayList<NotesAdapter.Note> doInBackground(Void... params) {
+            try {
+                ArrayList<NotesAdapter.Note> notes;
+                String after = null;
+                if (mBase == null) {
+                    notes = new ArrayList<NotesAdapter.Note>();
                 } else {
-                    super.setViewText(v, text);
+                    notes = new ArrayList<NotesAdapter.Note>(mBase);
+                    NotesAdapter.Note last = mBase.get(mBase.size() - 1);
+                    after = NotePad.Notes.buildPageToken(last.modified, last.id);
                 }
+                mLoadedAll = readPage(queryPage(mListUri, mSearchQuery, mCategoryId, after,
+                        notes.size(), mLimit, mCancellation), mLimit, notes);
+                if (mBase == null) {
+                    readCounts();
+                }
+                return notes;
+            } catch (OperationCanceledException e) {
+                return null;
             }
-        };
-
-        setListAdapter(mAdapter);
-    }
+        }
 
-    // 获取分类颜色的辅助方法
-    private int getCategoryColor(String category) {
-        if (category == null) {
-            return 0xFF607D8B;
+        // 从计数表读取各分类及其笔记数。计数由数据库维护，读取时不需要统计笔记
+        private void readCounts() {
+            Cursor cursor = getContentResolver().query(
+                    NotePad.Categories.COUNTS_URI,
+                    COUNTS_PROJECTION,
+                    null,
+                    null,
+                    null,
+                    mCancellation
+            );
+            if (cursor == null) {
+                return;
+            }
+            try {
+                mIds = new long[cursor.getCount()];
+                mNames = new String[mIds.length];
+                mCounts = new int[mIds.length];
+                for (int i = 0; cursor.moveToNext(); i++) {
+                    mIds[i] = cursor.getLong(0);
+                    mNames[i] = cursor.getString(1);
+                    mCounts[i] = cursor.getInt(2);
+                }
+            } finally {
+                cursor.close();
+            }
         }
-        switch (category) {
-            case "工作": return 0xFFFF9800;
-            case "个人": return 0xFF2196F3;
-            case "想法": return 0xFF9C27B0;
-            case "学习": return 0xFF4CAF50;
-            case "待办事项": return 0xFFF44336;
-            default: return 0xFF607D8B;
+
+        @Override
+        protected void onPostExecute(ArrayList<NotesAdapter.Note> notes) {
+            if (mLoadTask == this) {
+                mLoadTask = null;
+            }
+            if (notes != null) {
+                onPageLoaded(this, notes);
+            }
         }
     }
 
-    // 获取分类图标的辅助方法
-    private String getCategoryIcon(String category) {
-        if (category == null) {
-            return "📝";
+    /**
+     * 在 UI 线程提交加载的结果。刷新换上新列表并更新标题栏；下一页只在有新笔记时提交。
+     * 之后如果仍显示到接近末尾，继续加载下一页。
+     */
+    private void onPageLoaded(PageLoadTask load, ArrayList<NotesAdapter.Note> notes) {
+        // 下一页接在加载开始时的列表之后，列表已经换过时丢弃
+        if (load.mBase != null && load.mBase != mNotes) {
+            return;
         }
-        switch (category) {
-            case "工作": return "💼";
-            case "个人": return "👤";
-            case "想法": return "💡";
-            case "学习": return "📚";
-            case "待办事项": return "✓";
-            default: return "📝";
+        mLoadedAll = load.mLoadedAll;
+        if (load.mBase == null || notes.size() > mNotes.size()) {
+            submitNotes(notes);
         }
+        if (load.mIds != null) {
+            mCategoryIds = load.mIds;
+            mCategoryNames = load.mNames;
+            mCategoryCounts = load.mCounts;
+            updateTitle();
+        }
+        loadMoreIfNeeded();
     }
 
-    private Cursor getFilteredCursor() {
+    /**
+     * 查询一页笔记。普通列表按 (modified, _id) 游标翻页，从上一页最后一条之后继续；
+     * 搜索结果按相关度排序，没有稳定的键，因此按偏移量翻页。在后台线程调用。
+     *
+     * @param listUri 笔记列表的 URI
+     * @param searchQuery 搜索词，为空时不搜索
+     * @param categoryId 筛选的分类，或 ALL_CATEGORIES
+     * @param after 上一页最后一条笔记的游标，第一页为 null
+     * @param offset 搜索结果中已加载的条数
+     * @param limit 本页最多返回的条数
+     * @param cancellation 用于取消查询
+     */
+    private Cursor queryPage(Uri listUri, String searchQuery, long categoryId, String after,
+            int offset, int limit, CancellationSignal cancellation) {
         String selection = null;
         String[] selectionArgs = null;
 
-        if (!TextUtils.isEmpty(mCurrentSearchQuery)) {
-            selection = "(" + NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ? OR " +
-                    NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?)";
-            String searchArg = "%" + mCurrentSearchQuery + "%";
-            selectionArgs = new String[]{searchArg, searchArg};
+        if (categoryId != ALL_CATEGORIES) {
+            selection = NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?";
+            selectionArgs = new String[]{Long.toString(categoryId)};
         }
 
-        if (!"所有".equals(mCurrentCategory)) {
-            if (selection == null) {
-                selection = NotePad.Notes.COLUMN_NAME_CATEGORY + " = ?";
-                selectionArgs = new String[]{mCurrentCategory};
-            } else {
-                selection += " AND " + NotePad.Notes.COLUMN_NAME_CATEGORY + " = ?";
-                String[] newArgs = new String[selectionArgs.length + 1];
-                System.arraycopy(selectionArgs, 0, newArgs, 0, selectionArgs.length);
-                newArgs[selectionArgs.length] = mCurrentCategory;
-                selectionArgs = newArgs;
-            }
+        // 有搜索词时使用全文索引，结果按相关度排序
+        if (!TextUtils.isEmpty(searchQuery)) {
+            Uri searchUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_QUERY, searchQuery)
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_OFFSET,
+                            Integer.toString(offset))
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT,
+                            Integer.toString(limit))
+                    .build();
+            return getContentResolver().query(
+                    searchUri,
+                    PROJECTION,
+                    selection,
+                    selectionArgs,
+                    null,
+                    cancellation
+            );
         }
 
-        return managedQuery(
-                getIntent().getData(),
+        Uri.Builder pageUri = listUri.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, Integer.toString(limit));
+        if (after != null) {
+            pageUri.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER, after);
+        }
+        return getContentResolver().query(
+                pageUri.build(),
                 PROJECTION,
                 selection,
                 selectionArgs,
-                NotePad.Notes.DEFAULT_SORT_ORDER
+                NotePad.Notes.PAGE_SORT_ORDER,
+                cancellation
         );
     }
 
-    private String formatTimestamp(long timestamp) {
-        Date date = new Date(timestamp);
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.getDefault());
-        return sdf.format(date);
+    /**
+     * 把一页笔记读入列表并关闭游标。
+     *
+     * @return 是否已经到达末尾：查询失败或不满一页
+     */
+    private static boolean readPage(Cursor page, int limit, ArrayList<NotesAdapter.Note> notes) {
+        if (page == null) {
+            return true;
+        }
+        try {
+            while (page.moveToNext()) {
+                notes.add(new NotesAdapter.Note(
+                        page.getLong(COLUMN_INDEX_ID),
+                        page.getString(COLUMN_INDEX_TITLE),
+                        page.getLong(COLUMN_INDEX_MODIFIED),
+                        page.getString(COLUMN_INDEX_CATEGORY),
+                        page.getInt(COLUMN_INDEX_CATEGORY_COLOR),
+                        page.getString(COLUMN_INDEX_CATEGORY_ICON)));
+            }
+            return page.getCount() < limit;
+        } finally {
+            page.close();
+        }
+    }
+
+    // 换上新的笔记列表。适配器在后台线程和旧列表比较，只更新有变化的行
+    private void submitNotes(ArrayList<NotesAdapter.Note> notes) {
+        mNotes = notes;
+        mAdapter.submitList(notes);
+    }
+
+    // 显示到接近已加载内容的末尾时加载下一页。适配器的条数在比较完成后才更新，因此和已加载
+    // 的条数比较
+    private void loadMoreIfNeeded() {
+        int lastVisible = mLayoutManager.findLastVisibleItemPosition();
+        if (!mLoadedAll && lastVisible != RecyclerView.NO_POSITION
+                && lastVisible >= mNotes.size() - PREFETCH_DISTANCE) {
+            loadNextPage();
+        }
     }
 
+    // 从已加载内容的末尾继续加载一页。上一页不满时 mLoadedAll 已为 true，不会调用到这里。
+    // 已有加载在执行时不再加载，它完成后会再检查一次
+    private void loadNextPage() {
+        if (mNotes.isEmpty() || mLoadTask != null) {
+            return;
+        }
+        mLoadTask = new PageLoadTask(mNotes, PAGE_SIZE);
+        mLoadTask.execute();
+    }
+
+    /**
+     * 重新加载列表。笔记变化时保留已加载的条数，使滚动位置不变；筛选条件变化时调用方会先
+     * 将 reset 设为 true，只加载第一页。正在执行的加载会被取消。
+     */
     private void refreshList() {
-        Cursor newCursor = getFilteredCursor();
-        mAdapter.changeCursor(newCursor);
-        mAdapter.notifyDataSetChanged();
+        refreshList(false);
+    }
+
+    private void refreshList(boolean reset) {
+        int limit = reset ? PAGE_SIZE : Math.max(PAGE_SIZE, mNotes.size());
+        if (mLoadTask != null) {
+            mLoadTask.cancel();
+        }
+        mLoadTask = new PageLoadTask(null, limit);
+        mLoadTask.execute();
     }
 
     @Override
@@ -278,7 +433,7 @@ public class NotesList extends ListActivity {
             @Override
             public boolean onQueryTextChange(String newText) {
                 mCurrentSearchQuery = newText;
-                refreshList();
+                refreshList(true);
                 return true;
             }
         });
@@ -314,23 +469,64 @@ public class NotesList extends ListActivity {
         return super.onOptionsItemSelected(item);
     }
 
+    // 读取各分类的笔记数时使用的列
+    private static final String[] COUNTS_PROJECTION = new String[] {
+            NotePad.Categories._ID,
+            NotePad.Categories.COLUMN_NAME_NAME,
+            NotePad.Categories.COLUMN_NAME_NOTE_COUNT
+    };
+
     private void showCategoryDialog() {
-        final String[] categories = {"所有", "工作", "个人", "想法", "学习", "待办事项", "未分类"};
+        // 使用最近一次刷新读到的分类及其笔记数，第一项为"所有"。第一次加载完成前不显示
+        if (mCategoryIds == null) {
+            return;
+        }
+        final String[] names = new String[mCategoryIds.length + 1];
+        final long[] ids = new long[names.length];
+        ids[0] = ALL_CATEGORIES;
+        int total = 0;
+        for (int i = 0; i < mCategoryIds.length; i++) {
+            ids[i + 1] = mCategoryIds[i];
+            names[i + 1] = mCategoryNames[i] + " (" + mCategoryCounts[i] + ")";
+            total += mCategoryCounts[i];
+        }
+        names[0] = "所有 (" + total + ")";
 
         android.app.AlertDialog.Builder builder = new android.app.AlertDialog.Builder(this);
         builder.setTitle("选择分类");
-        builder.setItems(categories, (dialog, which) -> {
-            mCurrentCategory = categories[which];
-            refreshList();
-            if ("所有".equals(mCurrentCategory)) {
-                setTitle("所有笔记");
-            } else {
-                setTitle("分类: " + mCurrentCategory);
-            }
+        builder.setItems(names, (dialog, which) -> {
+            mCurrentCategoryId = ids[which];
+            refreshList(true);
         });
         builder.show();
     }
 
+    /**
+     * 在标题栏显示当前分类及其笔记数，使用最近一次刷新读到的计数。
+     */
+    private void updateTitle() {
+        String name = null;
+        int count = 0;
+        for (int i = 0; i < mCategoryIds.length; i++) {
+            if (mCurrentCategoryId == ALL_CATEGORIES) {
+                count += mCategoryCounts[i];
+            } else if (mCategoryIds[i] == mCurrentCategoryId) {
+                name = mCategoryNames[i];
+                count = mCategoryCounts[i];
+            }
+        }
+
+        if (name == null && mCurrentCategoryId != ALL_CATEGORIES) {
+            // 当前分类已被删除，改为显示所有笔记
+            mCurrentCategoryId = ALL_CATEGORIES;
+            refreshList(true);
+        } else if (name == null) {
+            setTitle("所有笔记 (" + count + ")");
+        } else {
+            setTitle("分类: " + name + " (" + count + ")");
+        }
+    }
+
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
         super.onPrepareOptionsMenu(menu);
@@ -346,10 +542,14 @@ public class NotesList extends ListActivity {
             mPasteItem.setEnabled(false);
         }
 
-        final boolean haveItems = getListAdapter().getCount() > 0;
+        final boolean haveItems = mAdapter.getItemCount() > 0;
 
         if (haveItems) {
-            Uri uri = ContentUris.withAppendedId(getIntent().getData(), getSelectedItemId());
+            // 列表没有选中项，使用获得焦点的一行
+            View focused = mNotesView.getFocusedChild();
+            long selectedId = focused != null ? mNotesView.getChildItemId(focused)
+                    : RecyclerView.NO_ID;
+            Uri uri = ContentUris.withAppendedId(getIntent().getData(), selectedId);
 
             Intent[] specifics = new Intent[1];
             specifics[0] = new Intent(Intent.ACTION_EDIT, uri);
@@ -379,30 +579,26 @@ public class NotesList extends ListActivity {
         return true;
     }
 
+    /**
+     * 长按一行时创建上下文菜单。RecyclerView 不提供菜单信息，笔记由被长按的行找到，
+     * 记在 mContextNoteId 中供 onContextItemSelected 使用。
+     */
     @Override
     public void onCreateContextMenu(ContextMenu menu, View view, ContextMenuInfo menuInfo) {
-        AdapterView.AdapterContextMenuInfo info;
-
-        try {
-            info = (AdapterView.AdapterContextMenuInfo) menuInfo;
-        } catch (ClassCastException e) {
-            Log.e(TAG, "bad menuInfo", e);
-            return;
-        }
-
-        Cursor cursor = (Cursor) getListAdapter().getItem(info.position);
-
-        if (cursor == null) {
+        int position = mNotesView.getChildAdapterPosition(view);
+        if (position == RecyclerView.NO_POSITION) {
             return;
         }
+        NotesAdapter.Note note = mAdapter.getNote(position);
+        mContextNoteId = note.id;
 
         MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.list_context_menu, menu);
 
-        menu.setHeaderTitle(cursor.getString(COLUMN_INDEX_TITLE));
+        menu.setHeaderTitle(note.title);
 
-        Intent intent = new Intent(null, Uri.withAppendedPath(getIntent().getData(),
-                Integer.toString((int) info.id) ));
+        Intent intent = new Intent(null, ContentUris.withAppendedId(getIntent().getData(),
+                note.id));
         intent.addCategory(Intent.CATEGORY_ALTERNATIVE);
         intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
         menu.addIntentOptions(Menu.CATEGORY_ALTERNATIVE, 0, 0,
@@ -411,16 +607,11 @@ public class NotesList extends ListActivity {
 
     @Override
     public boolean onContextItemSelected(MenuItem item) {
-        AdapterView.AdapterContextMenuInfo info;
-
-        try {
-            info = (AdapterView.AdapterContextMenuInfo) item.getMenuInfo();
-        } catch (ClassCastException e) {
-            Log.e(TAG, "bad menuInfo", e);
+        if (mContextNoteId == RecyclerView.NO_ID) {
             return false;
         }
 
-        Uri noteUri = ContentUris.withAppendedId(getIntent().getData(), info.id);
+        Uri noteUri = ContentUris.withAppendedId(getIntent().getData(), mContextNoteId);
 
         int id = item.getItemId();
         if (id == R.id.context_open) {
@@ -441,14 +632,21 @@ public class NotesList extends ListActivity {
                     null,
                     null
             );
-            refreshList();
+            // 笔记移入回收站，列表由 mNotesObserver 刷新
             return true;
         }
         return super.onContextItemSelected(item);
     }
 
+    /**
+     * 点击一行时打开笔记，或者把它返回给选择笔记的调用方。
+     */
     @Override
-    protected void onListItemClick(ListView l, View v, int position, long id) {
+    public void onClick(View view) {
+        long id = mNotesView.getChildItemId(view);
+        if (id == RecyclerView.NO_ID) {
+            return;
+        }
         Uri uri = ContentUris.withAppendedId(getIntent().getData(), id);
 
         String action = getIntent().getAction();
@@ -459,4 +657,4 @@ public class NotesList extends ListActivity {
             startActivity(new Intent(Intent.ACTION_EDIT, uri));
         }
     }
-}
\ No newline at end of file
+}
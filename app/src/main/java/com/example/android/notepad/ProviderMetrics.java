@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Counts the operations of the provider, per operation and URI pattern: the number of calls and
+ * of failures, the rows they affected, and a histogram of their latencies. Recording only
+ * increments atomic counters, so it takes no lock and never blocks a caller.
+ *
+ * The latency histograms are log-linear, as HDR histograms are: each power of two of
+ * microseconds is split into {@link #SUB_BUCKETS} buckets of equal width, so that every
+ * recorded latency is known within 25%, from a microsecond up to days, in a few hundred
+ * counters.
+ */
+final class ProviderMetrics {
+
+    /*
+     * The operations that are counted
+     */
+    static final int QUERY = 0;
+    static final int INSERT = 1;
+    static final int UPDATE = 2;
+    static final int DELETE = 3;
+    static final int OPEN_TYPED_ASSET_FILE = 4;
+    static final int WRITE_DATA_TO_PIPE = 5;
+
+    // The names of the operations in snapshots, by operation
+    private static final String[] OPERATION_NAMES = new String[] {
+            "query", "insert", "update", "delete", "openTypedAssetFile", "writeDataToPipe"
+    };
+
+    // The number of buckets that each power of two is split into, and its logarithm
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Latencies are recorded up to 2^40 microseconds, about 12 days; longer ones are clamped
+    private static final int MAX_LATENCY_BITS = 40;
+    private static final int BUCKETS = (MAX_LATENCY_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    // The percentiles that snapshots report
+    private static final double[] PERCENTILES = new double[] { 0.5, 0.9, 0.99 };
+    private static final String[] PERCENTILE_KEYS = new String[] {
+            NotePad.Methods.KEY_METRIC_P50_MICROS,
+            NotePad.Methods.KEY_METRIC_P90_MICROS,
+            NotePad.Methods.KEY_METRIC_P99_MICROS
+    };
+
+    /**
+     * The counters of one operation on one URI pattern
+     */
+    private static final class Series {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong totalMicros = new AtomicLong();
+        final AtomicLong maxMicros = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    }
+
+    // The names of the URI patterns, by match code
+    private final String[] mPatterns;
+
+    // The series of each operation and match code, created on first use. Index 0 of each
+    // operation's range is for URIs that match no pattern.
+    private final AtomicReferenceArray<Series> mSeries;
+
+    /**
+     * @param patterns The names of the URI patterns, by match code. Codes without a name are
+     * counted with the URIs that match no pattern.
+     */
+    ProviderMetrics(String[] patterns) {
+        mPatterns = patterns;
+        mSeries = new AtomicReferenceArray<Series>(OPERATION_NAMES.length * patterns.length);
+    }
+
+    /**
+     * Returns the start time to pass to {@link #record}.
+     */
+    static long start() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Records an operation that started at the given time and ends now.
+     *
+     * @param operation The operation, such as {@link #QUERY}.
+     * @param match The code that the URI matcher returned for the operation's URI.
+     * @param startNanos The time returned by {@link #start()} when the operation started.
+     * @param rows The number of rows that the operation affected, or -1 if it failed.
+     */
+    void record(int operation, int match, long startNanos, long rows) {
+        long micros = (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000;
+        Series series = getSeries(operation, match);
+
+        series.calls.incrementAndGet();
+        if (rows < 0) {
+            series.failures.incrementAndGet();
+        } else {
+            series.rows.addAndGet(rows);
+        }
+        series.totalMicros.addAndGet(micros);
+        series.buckets.incrementAndGet(bucketOf(micros));
+
+        long max = series.maxMicros.get();
+        while (micros > max && !series.maxMicros.compareAndSet(max, micros)) {
+            max = series.maxMicros.get();
+        }
+    }
+
+    // Returns the series of an operation on a URI pattern, creating it if it is the first.
+    private Series getSeries(int operation, int match) {
+        if (match < 0 || match >= mPatterns.length || mPatterns[match] == null) {
+            match = 0;
+        }
+        int index = operation * mPatterns.length + match;
+        Series series = mSeries.get(index);
+        if (series == null) {
+            mSeries.compareAndSet(index, null, new Series());
+            series = mSeries.get(index);
+        }
+        return series;
+    }
+
+    /**
+     * Returns the histogram bucket of a latency, in microseconds. Latencies below
+     * {@link #SUB_BUCKETS} have a bucket each; above, each power of two has SUB_BUCKETS buckets,
+     * selected by the bits that follow the highest one.
+     */
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(0, micros);
+        }
+        micros = Math.min(micros, (1L << MAX_LATENCY_BITS) - 1);
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the smallest latency, in microseconds, above those recorded in a bucket.
+     */
+    static long bucketLimit(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket + 1;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << shift;
+    }
+
+    /**
+     * Returns a snapshot of every series that has recorded an operation, keyed by the name of
+     * the operation and of the URI pattern, such as "query notes/#". Each series is a bundle
+     * with the KEY_METRIC_ keys of {@link NotePad.Methods}. The counters of a series are read
+     * one at a time while operations go on, so they may be off by the operations in flight.
+     */
+    Bundle snapshot() {
+        Bundle snapshot = new Bundle();
+        for (int index = 0; index < mSeries.length(); index++) {
+            Series series = mSeries.get(index);
+            if (series == null) {
+                continue;
+            }
+            int operation = index / mPatterns.length;
+            int match = index % mPatterns.length;
+            snapshot.putBundle(OPERATION_NAMES[operation] + " "
+                    + (match == 0 ? "unknown" : mPatterns[match]), snapshot(series));
+        }
+        return snapshot;
+    }
+
+    // Returns a snapshot of one series.
+    private static Bundle snapshot(Series series) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        int used = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            counts[bucket] = series.buckets.get(bucket);
+            total += counts[bucket];
+            if (counts[bucket] > 0) {
+                used++;
+            }
+        }
+
+        Bundle values = new Bundle();
+        values.putLong(NotePad.Methods.KEY_METRIC_CALLS, series.calls.get());
+        values.putLong(NotePad.Methods.KEY_METRIC_FAILURES, series.failures.get());
+        values.putLong(NotePad.Methods.KEY_METRIC_ROWS, series.rows.get());
+        values.putLong(NotePad.Methods.KEY_METRIC_TOTAL_MICROS, series.totalMicros.get());
+        long max = series.maxMicros.get();
+        values.putLong(NotePad.Methods.KEY_METRIC_MAX_MICROS, max);
+
+        // Each percentile is the upper limit of the bucket that holds it, or the maximum
+        for (int index = 0; index < PERCENTILES.length; index++) {
+            long rank = (long) Math.ceil(PERCENTILES[index] * total);
+            long seen = 0;
+            long value = 0;
+            for (int bucket = 0; bucket < BUCKETS && total > 0; bucket++) {
+                seen += counts[bucket];
+                if (seen >= rank) {
+                    value = Math.min(bucketLimit(bucket), max);
+                    break;
+                }
+            }
+            values.putLong(PERCENTILE_KEYS[index], value);
+        }
+
+        // The non-empty buckets, by upper limit, so that the agent can merge histograms
+        long[] limits = new long[used];
+        long[] bucketCounts = new long[used];
+        for (int bucket = 0, next = 0; bucket < BUCKETS; bucket++) {
+            if (counts[bucket] > 0) {
+                limits[next] = bucketLimit(bucket);
+                bucketCounts[next] = counts[bucket];
+                next++;
+            }
+        }
+        values.putLongArray(NotePad.Methods.KEY_METRIC_BUCKET_LIMITS, limits);
+        values.putLongArray(NotePad.Methods.KEY_METRIC_BUCKET_COUNTS, bucketCounts);
+        return values;
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.text.TextUtils;
+import android.text.format.DateFormat;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Records the queries that take longer than a threshold. The latest
+ * {@link #CAPACITY} are kept in a ring buffer, and every query shape that was ever slow is
+ * totalled, so that {@link #dump(PrintWriter)} can list both the latest slow queries and the
+ * shapes that cost the most overall.
+ *
+ * A query's shape is its URI pattern, projection, selection and sort order, with the literals
+ * in the caller's SQL replaced by "?". Selection arguments are only counted. Neither the text
+ * of notes nor the search terms in URIs are ever recorded.
+ */
+final class SlowQueryLog {
+
+    /**
+     * The duration, in milliseconds, above which a query is logged unless set otherwise
+     */
+    static final long DEFAULT_THRESHOLD_MILLIS = 100;
+
+    // The number of slow queries kept
+    private static final int CAPACITY = 64;
+
+    // The number of query shapes totalled. When it is reached, the cheapest shape is dropped.
+    private static final int SHAPE_CAPACITY = 100;
+
+    // The number of query shapes that dump() lists
+    private static final int DUMP_SHAPES = 10;
+
+    // Matches the string and blob literals, then the numeric literals, of SQL
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMERIC_LITERAL =
+            Pattern.compile("(?<![\\w.])\\d+(?:\\.\\d+)?(?:[eE][-+]?\\d+)?(?![\\w.])");
+
+    /**
+     * A slow query
+     */
+    private static final class Entry {
+        String shape;
+        int argCount;
+        long nanos;
+        long rows;
+        String caller;
+        long time;
+    }
+
+    /**
+     * The totals of the slow queries of one shape
+     */
+    private static final class Shape {
+        final String shape;
+        int count;
+        long totalNanos;
+        long maxNanos;
+
+        Shape(String shape) {
+            this.shape = shape;
+        }
+    }
+
+    private volatile long mThresholdNanos = DEFAULT_THRESHOLD_MILLIS * 1000000;
+
+    // The ring buffer, and the number of slow queries ever added to it. Guarded by this.
+    private final Entry[] mEntries = new Entry[CAPACITY];
+    private long mCount;
+
+    // The totals by shape. Guarded by this.
+    private final HashMap<String, Shape> mShapes = new HashMap<String, Shape>();
+
+    /**
+     * Sets the duration above which queries are logged. A negative threshold turns the log off.
+     */
+    void setThresholdMillis(long millis) {
+        mThresholdNanos = millis < 0 ? Long.MAX_VALUE : millis * 1000000;
+    }
+
+    /**
+     * Returns the duration above which queries are logged, in milliseconds, or -1 if the log is
+     * off.
+     */
+    long getThresholdMillis() {
+        long nanos = mThresholdNanos;
+        return nanos == Long.MAX_VALUE ? -1 : nanos / 1000000;
+    }
+
+    /**
+     * Tests whether a query of the given duration is logged. This is all that a query that isn't
+     * slow costs.
+     */
+    boolean isSlow(long nanos) {
+        return nanos >= mThresholdNanos;
+    }
+
+    /**
+     * Logs a slow query.
+     *
+     * @param pattern The URI pattern of the query.
+     * @param caller The package of the calling application, or null for this one.
+     */
+    void add(String pattern, String[] projection, String selection, String[] selectionArgs,
+             String sortOrder, long nanos, long rows, String caller) {
+        String shape = shapeOf(pattern, projection, selection, sortOrder);
+
+        synchronized (this) {
+            Entry entry = mEntries[(int) (mCount % CAPACITY)];
+            if (entry == null) {
+                entry = new Entry();
+                mEntries[(int) (mCount % CAPACITY)] = entry;
+            }
+            mCount++;
+            entry.shape = shape;
+            entry.argCount = selectionArgs != null ? selectionArgs.length : 0;
+            entry.nanos = nanos;
+            entry.rows = rows;
+            entry.caller = caller;
+            entry.time = System.currentTimeMillis();
+
+            Shape totals = mShapes.get(shape);
+            if (totals == null) {
+                if (mShapes.size() >= SHAPE_CAPACITY) {
+                    mShapes.remove(Collections.min(mShapes.values(), BY_TOTAL).shape);
+                }
+                totals = new Shape(shape);
+                mShapes.put(shape, totals);
+            }
+            totals.count++;
+            totals.totalNanos += nanos;
+            totals.maxNanos = Math.max(totals.maxNanos, nanos);
+        }
+    }
+
+    // Orders query shapes by their total duration.
+    private static final Comparator<Shape> BY_TOTAL = new Comparator<Shape>() {
+        @Override
+        public int compare(Shape a, Shape b) {
+            return a.totalNanos < b.totalNanos ? -1 : (a.totalNanos == b.totalNanos ? 0 : 1);
+        }
+    };
+
+    /**
+     * Returns the shape of a query, with the literals of its SQL replaced by "?".
+     */
+    static String shapeOf(String pattern, String[] projection, String selection,
+                          String sortOrder) {
+        StringBuilder shape = new StringBuilder(pattern != null ? pattern : "unknown");
+        shape.append(" SELECT ").append(
+                projection != null ? redact(TextUtils.join(", ", projection)) : "*");
+        if (!TextUtils.isEmpty(selection)) {
+            shape.append(" WHERE ").append(redact(selection));
+        }
+        if (!TextUtils.isEmpty(sortOrder)) {
+            shape.append(" ORDER BY ").append(redact(sortOrder));
+        }
+        return shape.toString();
+    }
+
+    /**
+     * Replaces the string, blob and numeric literals of some SQL by "?".
+     */
+    static String redact(String sql) {
+        sql = STRING_LITERAL.matcher(sql).replaceAll("?");
+        return NUMERIC_LITERAL.matcher(sql).replaceAll("?");
+    }
+
+    /**
+     * Prints the query shapes that took the longest in total, then the latest slow queries.
+     */
+    synchronized void dump(PrintWriter pw) {
+        long threshold = getThresholdMillis();
+        pw.println("Slow queries (threshold " + (threshold < 0 ? "off" : threshold + " ms")
+                + ", " + mCount + " logged):");
+
+        ArrayList<Shape> shapes = new ArrayList<Shape>(mShapes.values());
+        Collections.sort(shapes, Collections.reverseOrder(BY_TOTAL));
+        pw.println("  Worst query shapes, by total time:");
+        for (int index = 0; index < shapes.size() && index < DUMP_SHAPES; index++) {
+            Shape shape = shapes.get(index);
+            pw.println("    " + formatMillis(shape.totalNanos) + " total, "
+                    + formatMillis(shape.maxNanos) + " max, " + shape.count + "x: "
+                    + shape.shape);
+        }
+
+        pw.println("  Latest slow queries:");
+        for (long index = mCount - 1; index >= 0 && index >= mCount - CAPACITY; index--) {
+            Entry entry = mEntries[(int) (index % CAPACITY)];
+            pw.println("    " + DateFormat.format("MM-dd HH:mm:ss", entry.time) + " "
+                    + formatMillis(entry.nanos) + ", " + entry.rows + " rows, "
+                    + (entry.caller != null ? entry.caller : "self") + ": " + entry.shape
+                    + (entry.argCount > 0 ? " [" + entry.argCount + " args]" : ""));
+        }
+    }
+
+    // Formats a duration in milliseconds, with one decimal.
+    private static String formatMillis(long nanos) {
+        return (nanos / 1000000) + "." + (nanos / 100000 % 10) + " ms";
+    }
+}
@@ -20,7 +20,12 @@ import android.app.Activity;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.View;
 import android.widget.EditText;
 
@@ -28,10 +33,9 @@ import android.widget.EditText;
  * This Activity allows the user to edit a note's title. It displays a floating window
  * containing an EditText.
  *
- * NOTE: Notice that the provider operations in this Activity are taking place on the UI thread.
- * This is not a good practice. It is only done here to make the code more readable. A real
- * application should use the {@link android.content.AsyncQueryHandler}
- * or {@link android.os.AsyncTask} object to perform operations asynchronously on a separate thread.
+ * The title is loaded by a {@link TitleLoadTask} on a background thread, as {@link NoteEditor}
+ * loads its note, and shown when the load finishes. It is saved through the
+ * {@link NoteSaveQueue}, on a background thread, so the UI thread never waits for the database.
  */
 public class TitleEditor extends Activity {
 
@@ -49,8 +53,11 @@ public class TitleEditor extends Activity {
     // The position of the title column in a Cursor returned by the provider.
     private static final int COLUMN_INDEX_TITLE = 1;
 
-    // A Cursor object that will contain the results of querying the provider for a note.
-    private Cursor mCursor;
+    // Whether the title has been loaded. Nothing is saved before it is.
+    private boolean mLoaded;
+
+    // The load that is running, if any
+    private TitleLoadTask mLoadTask;
 
     // An EditText object for preserving the edited title.
     private EditText mText;
@@ -58,6 +65,11 @@ public class TitleEditor extends Activity {
     // A URI object for the note whose title is being edited.
     private Uri mUri;
 
+    // Incremented by every change to the title, and its value when the title was last loaded
+    // or saved. The title is only saved if they differ.
+    private int mTextGeneration;
+    private int mSavedTextGeneration;
+
     /**
      * This method is called by Android when the Activity is first started. From the incoming
      * Intent, it determines what kind of editing is desired, and then does it.
@@ -73,50 +85,129 @@ public class TitleEditor extends Activity {
         // title we need to edit.
         mUri = getIntent().getData();
 
-        /*
-         * Using the URI passed in with the triggering Intent, gets the note.
-         *
-         * Note: This is being done on the UI thread. It will block the thread until the query
-         * completes. In a sample app, going against a simple provider based on a local database,
-         * the block will be momentary, but in a real app you should use
-         * android.content.AsyncQueryHandler or android.os.AsyncTask.
-         */
-
-        mCursor = managedQuery(
-            mUri,        // The URI for the note that is to be retrieved.
-            PROJECTION,  // The columns to retrieve
-            null,        // No selection criteria are used, so no where columns are needed.
-            null,        // No where columns are used, so no where values are needed.
-            null         // No sort order is needed.
-        );
-
         // Gets the View ID for the EditText box
         mText = (EditText) this.findViewById(R.id.title);
+
+        // Counts the changes to the title
+        mText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                mTextGeneration++;
+            }
+        });
     }
 
     /**
      * This method is called when the Activity is about to come to the foreground. This happens
      * when the Activity comes to the top of the task stack, OR when it is first starting.
      *
-     * Displays the current title for the selected note.
+     * Starts loading the current title for the selected note, which {@link #onTitleLoaded}
+     * displays when the load finishes.
      */
     @Override
     protected void onResume() {
         super.onResume();
 
-        // Verifies that the query made in onCreate() actually worked. If it worked, then the
-        // Cursor object is not null. If it is *empty*, then mCursor.getCount() == 0.
-        if (mCursor != null) {
+        if (mLoadTask != null) {
+            mLoadTask.cancel();
+        }
+        mLoadTask = new TitleLoadTask(mTextGeneration);
+        mLoadTask.execute();
+    }
+
+    /**
+     * Loads the note's title on a background thread, once the queued saves have been written:
+     * the note editor may have saved the note just before. Cancelling the task also cancels a
+     * query that is still running.
+     */
+    private class TitleLoadTask extends AsyncTask<Void, Void, Boolean> {
+
+        private final CancellationSignal mCancellation = new CancellationSignal();
+
+        // The text generation when the load started
+        private final int mGeneration;
 
-            // The Cursor was just retrieved, so its index is set to one record *before* the first
-            // record retrieved. This moves it to the first record.
-            mCursor.moveToFirst();
+        // Whether the queued saves were written before the load
+        private boolean mSaved;
 
-            // Displays the current title text in the EditText object.
-            mText.setText(mCursor.getString(COLUMN_INDEX_TITLE));
+        // The loaded title
+        private String mTitle;
+
+        TitleLoadTask(int generation) {
+            mGeneration = generation;
+        }
+
+        /**
+         * Cancels the load, and the query that is running, if any.
+         */
+        void cancel() {
+            cancel(false);
+            mCancellation.cancel();
+        }
+
+        /**
+         * @return True if the note was found.
+         */
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            mSaved = NoteSaveQueue.getInstance(TitleEditor.this).flush();
+            try {
+                Cursor cursor = getContentResolver().query(
+                        mUri,        // The URI for the note that is to be retrieved.
+                        PROJECTION,  // The columns to retrieve
+                        null,        // No selection criteria are used.
+                        null,        // No where columns are used, so no where values are needed.
+                        null,        // No sort order is needed.
+                        mCancellation
+                );
+                if (cursor == null) {
+                    return false;
+                }
+                try {
+                    if (!cursor.moveToFirst()) {
+                        return false;
+                    }
+                    mTitle = cursor.getString(COLUMN_INDEX_TITLE);
+                    return true;
+                } finally {
+                    cursor.close();
+                }
+            } catch (OperationCanceledException e) {
+                return false;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean found) {
+            if (mLoadTask == this) {
+                mLoadTask = null;
+            }
+            if (found) {
+                onTitleLoaded(this);
+            }
         }
     }
 
+    /**
+     * Displays a loaded title. If the user has typed since the load started, their text is kept,
+     * and so is the title they saved if the save failed to be written, and is queued for a retry.
+     */
+    private void onTitleLoaded(TitleLoadTask load) {
+        if (!mLoaded || (mTextGeneration == load.mGeneration && load.mSaved)) {
+            mText.setText(load.mTitle);
+            mSavedTextGeneration = mTextGeneration;
+        }
+        mLoaded = true;
+    }
+
     /**
      * This method is called when the Activity loses focus.
      *
@@ -132,10 +223,14 @@ public class TitleEditor extends Activity {
     protected void onPause() {
         super.onPause();
 
-        // Verifies that the query made in onCreate() actually worked. If it worked, then the
-        // Cursor object is not null. If it is *empty*, then mCursor.getCount() == 0.
+        // A load that hasn't finished is started again when the Activity resumes
+        if (mLoadTask != null) {
+            mLoadTask.cancel();
+            mLoadTask = null;
+        }
 
-        if (mCursor != null) {
+        // Nothing is written if the title wasn't loaded, or wasn't edited.
+        if (mLoaded && mTextGeneration != mSavedTextGeneration) {
 
             // Creates a values map for updating the provider.
             ContentValues values = new ContentValues();
@@ -144,19 +239,13 @@ public class TitleEditor extends Activity {
             values.put(NotePad.Notes.COLUMN_NAME_TITLE, mText.getText().toString());
 
             /*
-             * Updates the provider with the note's new title.
+             * Queues the update of the provider with the note's new title.
              *
-             * Note: This is being done on the UI thread. It will block the thread until the
-             * update completes. In a sample app, going against a simple provider based on a
-             * local database, the block will be momentary, but in a real app you should use
-             * android.content.AsyncQueryHandler or android.os.AsyncTask.
+             * Note: The update is written on a background thread, so this doesn't block the UI
+             * thread.
              */
-            getContentResolver().update(
-                mUri,    // The URI for the note to update.
-                values,  // The values map containing the columns to update and the values to use.
-                null,    // No selection criteria is used, so no "where" columns are needed.
-                null     // No "where" columns are used, so no "where" values are needed.
-            );
+            NoteSaveQueue.getInstance(this).save(mUri, values);
+            mSavedTextGeneration = mTextGeneration;
 
         }
     }